@@ -1,22 +1,427 @@
-import java.util.Collection;
-import java.util.Objects;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Parameters;
 
 public class Application {
 
+  private static final String NDJSON_PREFIX = "src/main/resources/NDJson/test_resources";
+  private static final String BUNDLE_FILE = "src/main/resources/Bundle/GeneratedBundle.json";
+  private static final String PARAMETERS_FILE =
+      "src/main/resources/Parameters/GeneratedParameters.json";
+  private static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+  private static final String DEFAULT_VIEW_DIRECTORY = "src/main/resources/ViewDefinition";
+  /**
+   * The options selecting where the generated resources go, by output. At most one output can be
+   * selected, the others would be ignored.
+   */
+  private static final List<List<String>> OUTPUT_OPTIONS = List.of(List.of("shard"),
+      List.of("incremental", "watch"), List.of("patient-compartments"), List.of("load-url"),
+      List.of("part-lines", "part-mb"), List.of("upload-url"), List.of("jdbc-url"));
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
+    var options = GeneratorOptions.parse(args);
+    if (options.has("merge-manifests")) {
+      mergeShardManifests(Path.of(options.get("merge-manifests", null)),
+          options.get("parameters", PARAMETERS_FILE));
+      return;
+    }
+    if (options.has("scan-references")) {
+      var report = new RunReport();
+      var check = ReferenceIntegrityCheck.scan(Path.of(options.get("scan-references", null)));
+      check.report(report);
+      report.print();
+      if (check.unresolved() > 0) {
+        System.exit(1);
+      }
+      return;
+    }
+    checkOutputOptions(options);
+    var report = new RunReport();
+    DeferredReference.setEnabled(options.getBoolean("deferred-references"));
+    if (options.has("quantity-distributions")) {
+      QuantityDistributions.setCurrent(
+          QuantityDistributions.load(Path.of(options.get("quantity-distributions", null))));
+    }
+    if (options.getBoolean("watch")) {
+      watch(options);
+      return;
+    }
     var bluePrints = BluePrintLoader.loadBluePrints(
-        "src/main/resources/BluePrint/TestDataResourceBluePrint.json");
-    var resources = bluePrints.stream().map(FhirResourceFactory::createTestResourceFromBluePrint)
-        .filter(Objects::nonNull).flatMap(
-            Collection::stream)
+        options.get("blueprints", "src/main/resources/BluePrint/TestDataResourceBluePrint.json"),
+        BluePrintIndex.filter(options.get("blueprint-filter", "")));
+    var templateRegistry = FhirResourceFactory.loadTemplateRegistry(
+        options.get("templates", FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY));
+    var compiler = new BluePrintCompiler(templateRegistry);
+    List<CompiledBluePrint> compiledBluePrints = new ArrayList<>(compiler.compileAll(bluePrints));
+    if (options.has("blueprint-families")) {
+      var families = BluePrintFamily.loadAll(Path.of(options.get("blueprint-families", null)));
+      int index = bluePrints.size();
+      for (BluePrintFamily family : families) {
+        compiledBluePrints.addAll(compiler.compileFamily(index, family));
+        index += family.rows().size();
+      }
+      report.record("blueprint families", families.size() + " families, "
+          + (index - bluePrints.size()) + " blueprints");
+    }
+    report.record("value functions folded into templates",
+        compiler.foldedValueFunctions() + " of " + compiler.valueFunctions());
+    report.recordStartup();
+    if (options.getBoolean("training-run")) {
+      trainingRun(compiledBluePrints);
+      report.print();
+      return;
+    }
+
+    if (options.has("reference-date")) {
+      GeneratorRandom.setReferenceTime(LocalDate.parse(options.get("reference-date", null))
+          .atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+    long instances = options.getLong("instances", 1);
+    var plan = options.has("shard")
+        ? ShardPlan.parse(options.get("shard", null), compiledBluePrints.size(), instances)
+        : ShardPlan.single(compiledBluePrints.size(), instances);
+    var shardOutput = options.has("shard") ? new ShardOutput(
+        Path.of(options.get("output-dir", "src/main/resources/NDJson")), plan) : null;
+    var incrementalOutput = options.getBoolean("incremental") ? new IncrementalOutput(
+        Path.of(options.get("output-dir", "src/main/resources/NDJson"))) : null;
+    long seed = options.has("seed") ? options.getLong("seed", 0) : new SecureRandom().nextLong();
+    if (incrementalOutput != null) {
+      seed = keepPreviousRun(options, incrementalOutput, seed);
+    }
+    OutputManifest checkpoint = null;
+    if (options.getBoolean("resume")) {
+      if (shardOutput == null) {
+        throw new IllegalArgumentException("--resume requires --shard");
+      }
+      checkpoint = shardOutput.readCheckpoint().orElse(null);
+      if (checkpoint == null) {
+        System.out.println("No checkpoint found in " + shardOutput.checkpointFile()
+            + ", generating the shard from the beginning");
+      } else {
+        // The ids and random values of a unit only depend on the seed and the reference time.
+        seed = Long.parseLong(checkpoint.getProperty("seed"));
+        GeneratorRandom.setReferenceTime(Instant.parse(checkpoint.getProperty("referenceTime")));
+        report.record("resumed from unit", checkpoint.getProperty("nextUnit"));
+      }
+    }
+    for (String sink : List.of("tables", "verify-references")) {
+      // The sinks only see the resources generated by this run, not the kept ones
+      if (options.has(sink) && (options.getBoolean("resume") || incrementalOutput != null)) {
+        throw new IllegalArgumentException("--" + sink + " can not be combined with "
+            + (incrementalOutput != null ? "--incremental" : "--resume"));
+      }
+    }
+    var run = new GenerationRun(compiledBluePrints, plan, seed,
+        options.getInt("block-size", BlockGenerator.DEFAULT_BLOCK_SIZE));
+    report.record("seed", String.valueOf(seed));
+    report.record("shard", plan + " (units " + plan.firstUnit() + " to " + plan.endUnit() + ")");
+
+    List<ResourceSink> sinks = new ArrayList<>();
+    var validation = options.getBoolean("validate") ? createValidationStage(options,
+        compiledBluePrints) : null;
+    if (validation != null) {
+      sinks.add(validation);
+    }
+    var tables = options.has("tables") ? new TabularOutput(Path.of(options.get("tables", null)),
+        TabularOutput.Format.parse(options.get("table-format", "csv")),
+        ViewDefinition.loadAll(Path.of(options.get("views", DEFAULT_VIEW_DIRECTORY)))) : null;
+    if (tables != null) {
+      // The Patients and Organizations of deferred references only exist after a resolver
+      sinks.add(DeferredReference.isEnabled() ? new DeferredReferenceResolver(tables) : tables);
+    }
+    var references = options.getBoolean("verify-references") ? new ReferenceIntegrityCheck()
+        : null;
+    if (references != null) {
+      sinks.add(DeferredReference.isEnabled() ? new DeferredReferenceResolver(references)
+          : references);
+    }
+    if (shardOutput != null) {
+      var start = System.nanoTime();
+      long resourceCount = shardOutput.generate(run, sinks,
+          options.getLong("checkpoint-interval", DEFAULT_CHECKPOINT_INTERVAL), checkpoint);
+      report.recordDuration("generation", System.nanoTime() - start);
+      report.record("resources", String.valueOf(resourceCount));
+    } else if (incrementalOutput != null) {
+      var start = System.nanoTime();
+      var manifest = incrementalOutput.generate(run, sinks);
+      FhirResourceFactory.writeResource(manifest.toParameters(), PARAMETERS_FILE);
+      report.recordDuration("generation", System.nanoTime() - start);
+      report.record("regenerated blueprints", manifest.getProperty("regeneratedBluePrints")
+          + " of " + compiledBluePrints.size());
+    } else if (options.has("patient-compartments")) {
+      int instancesPerPatient = options.getInt("instances-per-patient", 1);
+      var start = System.nanoTime();
+      long resourceCount = new PatientCompartmentOutput(
+          Path.of(options.get("output-dir", "src/main/resources/NDJson")),
+          PatientCompartmentOutput.Layout.parse(options.get("patient-compartments", null)),
+          instancesPerPatient).generate(run, sinks);
+      report.recordDuration("generation", System.nanoTime() - start);
+      report.record("resources", String.valueOf(resourceCount));
+      report.record("patients", String.valueOf(instances / instancesPerPatient));
+    } else if (options.has("load-url")) {
+      int maxInFlight = options.getInt("load-in-flight", 64);
+      var load = new LoadGenerator(
+          LoadGenerator.createClient(options.get("load-url", null), maxInFlight),
+          LoadGenerator.Mode.parse(options.get("load-mode", "resource")),
+          Double.parseDouble(options.get("load-rate", "100")), maxInFlight,
+          options.getInt("load-bundle-size", 100));
+      sinks.add(new DeferredReferenceResolver(load));
+      runAndClose(run, sinks, report);
+      load.report(report);
+    } else if (options.has("part-lines") || options.has("part-mb")) {
+      var outputDir = Path.of(options.get("output-dir", "src/main/resources/NDJson"));
+      var parts = new PartitionedNDJsonWriter(outputDir,
+          options.getLong("part-lines", Long.MAX_VALUE),
+          options.getLong("part-mb", Long.MAX_VALUE >> 20) << 20,
+          options.getInt("part-threads", Runtime.getRuntime().availableProcessors()));
+      sinks.add(new DeferredReferenceResolver(parts));
+      runAndClose(run, sinks, report);
+      var manifest = parts.manifest().setProperty("seed", seed);
+      manifest.write(outputDir.resolve("manifest.json"));
+      FhirResourceFactory.writeResource(manifest.toParameters(), PARAMETERS_FILE);
+      parts.report(report);
+    } else if (options.has("upload-url")) {
+      upload(run, sinks, options, report);
+    } else if (options.has("jdbc-url")) {
+      var jdbc = new JdbcOutput(options.get("jdbc-url", null), options.get("jdbc-user", null),
+          options.get("jdbc-password", null), options.get("jdbc-table", JdbcOutput.DEFAULT_TABLE),
+          JdbcOutput.DEFAULT_SEARCH_COLUMNS, options.getInt("jdbc-threads", 4),
+          options.getInt("jdbc-batch-size", 1000), options.getInt("jdbc-commit-interval", 10000));
+      sinks.add(new DeferredReferenceResolver(jdbc));
+      runAndClose(run, sinks, report);
+      jdbc.report(report);
+    } else {
+      generate(run, sinks, options, report);
+    }
+    if (validation != null) {
+      validation.report(report);
+    }
+    if (tables != null) {
+      tables.report(report);
+    }
+    if (references != null) {
+      references.report(report);
+    }
+    report.print();
+  }
+
+  /**
+   * Rejects options selecting more than one output.
+   */
+  private static void checkOutputOptions(GeneratorOptions options) {
+    var selected = OUTPUT_OPTIONS.stream()
+        .filter(output -> output.stream().anyMatch(options::has))
+        .map(output -> "--" + String.join("/--", output))
         .toList();
-    var bundle = FhirTransactionBundleConverter.convertToFhirTransactionBundle(resources);
-    FhirResourceFactory.writeResource(bundle, "src/main/resources/Bundle/GeneratedBundle.json");
-    var params = FhirResourceFactory.writeNDJsonByResourceType(resources,
-        "src/main/resources/NDJson/test_resources");
-    FhirResourceFactory.writeResource(params,
-        "src/main/resources/Parameters/GeneratedParameters.json");
+    if (selected.size() > 1) {
+      throw new IllegalArgumentException(String.join(", ", selected)
+          + " select different outputs and can not be combined");
+    }
+  }
+
+  /**
+   * Unless they are given, the seed and reference time of the previous incremental run are kept,
+   * otherwise every blueprint would change.
+   *
+   * @return the seed of the previous run or the given seed
+   */
+  private static long keepPreviousRun(GeneratorOptions options, IncrementalOutput output,
+      long seed) throws IOException {
+    var previousRun = output.readManifest();
+    if (previousRun.isPresent() && !options.has("seed")) {
+      seed = Long.parseLong(previousRun.get().getProperty("seed"));
+    }
+    if (previousRun.isPresent() && !options.has("reference-date")) {
+      GeneratorRandom.setReferenceTime(
+          Instant.parse(previousRun.get().getProperty("referenceTime")));
+    }
+    return seed;
+  }
+
+  /**
+   * Generates an incremental output and updates it whenever the blueprints or the templates
+   * change, see {@link WatchMode}.
+   */
+  private static void watch(GeneratorOptions options) throws IOException {
+    if (options.has("reference-date")) {
+      GeneratorRandom.setReferenceTime(LocalDate.parse(options.get("reference-date", null))
+          .atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+    var output = new IncrementalOutput(
+        Path.of(options.get("output-dir", "src/main/resources/NDJson")));
+    long seed = keepPreviousRun(options, output,
+        options.has("seed") ? options.getLong("seed", 0) : new SecureRandom().nextLong());
+    try (var watchMode = new WatchMode(
+        Path.of(options.get("blueprints",
+            "src/main/resources/BluePrint/TestDataResourceBluePrint.json")),
+        BluePrintIndex.filter(options.get("blueprint-filter", "")),
+        Path.of(options.get("templates", FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY)),
+        output, Path.of(PARAMETERS_FILE),
+        options.getLong("instances", 1), seed,
+        options.getInt("block-size", BlockGenerator.DEFAULT_BLOCK_SIZE))) {
+      watchMode.watch();
+    }
+  }
+
+  /**
+   * Generates all resources of the run and writes the transaction bundle, one NDJSON file per
+   * resource type and the Parameters to import them.
+   */
+  private static void generate(GenerationRun run, List<ResourceSink> sinks,
+      GeneratorOptions options, RunReport report) throws IOException {
+    // In encode-early mode the resources are only kept as NDJSON bytes.
+    var encodedResources = options.getBoolean("encode-early") ? new EncodedResourceStore(
+        options.getLong("memory-threshold-mb", EncodedResourceStore.DEFAULT_MEMORY_THRESHOLD >> 20)
+            << 20) : null;
+    List<IBaseResource> resources = new ArrayList<>();
+    var resolver = new DeferredReferenceResolver(encodedResources != null ? encodedResources
+        : (bluePrint, generated) -> resources.addAll(generated));
+    sinks.add(resolver);
+    runAndClose(run, sinks, report);
+    if (DeferredReference.isEnabled()) {
+      report.record("deferred references", resolver.references() + " ("
+          + resolver.materialized() + " targets materialized)");
+    }
+
+    var start = System.nanoTime();
+    Parameters params;
+    long ndjsonStart;
+    var ndjsonBytes = new AtomicLong();
+    if (encodedResources != null) {
+      try (encodedResources) {
+        encodedResources.writeTransactionBundle(BUNDLE_FILE);
+        ndjsonStart = System.nanoTime();
+        params = encodedResources.writeNDJsonByResourceType(NDJSON_PREFIX, ndjsonBytes);
+      }
+    } else {
+      var bundle = FhirTransactionBundleConverter.convertToFhirTransactionBundle(resources);
+      FhirResourceFactory.writeResource(bundle, BUNDLE_FILE);
+      ndjsonStart = System.nanoTime();
+      params = FhirResourceFactory.writeNDJsonByResourceType(resources, NDJSON_PREFIX,
+          ndjsonBytes);
+    }
+    report.recordRate("NDJSON output", ndjsonBytes.get() / 1e6,
+        System.nanoTime() - ndjsonStart, "MB");
+    FhirResourceFactory.writeResource(params, PARAMETERS_FILE);
+    report.recordDuration("writing", System.nanoTime() - start);
+  }
+
+  /**
+   * Generates all resources of the run and uploads them in dependency order, see
+   * {@link WaveUploader}.
+   */
+  private static void upload(GenerationRun run, List<ResourceSink> sinks,
+      GeneratorOptions options, RunReport report) throws IOException {
+    List<IBaseResource> resources = new ArrayList<>();
+    sinks.add(new DeferredReferenceResolver((bluePrint, generated) -> resources.addAll(generated)));
+    runAndClose(run, sinks, report);
+
+    int threads = options.getInt("upload-threads", 8);
+    var uploader = new WaveUploader(
+        LoadGenerator.createClient(options.get("upload-url", null), threads), threads,
+        options.getInt("upload-bundle-size", WaveUploader.DEFAULT_BUNDLE_SIZE), 500);
+    var start = System.nanoTime();
+    WaveUploader.report(uploader.upload(resources), report);
+    report.recordDuration("upload", System.nanoTime() - start);
+  }
+
+  private static void runAndClose(GenerationRun run, List<ResourceSink> sinks, RunReport report)
+      throws IOException {
+    var start = System.nanoTime();
+    long resourceCount = run.run(sinks);
+    for (ResourceSink sink : sinks) {
+      sink.close();
+    }
+    report.recordDuration("generation", System.nanoTime() - start);
+    report.record("resources", String.valueOf(resourceCount));
+  }
+
+  /**
+   * Combines the manifests of all shards in a directory and writes the Parameters listing the
+   * NDJSON files of every shard.
+   *
+   * @param directory      directory containing the manifest-shard-*.json files
+   * @param parametersFile file to write the Parameters to
+   */
+  private static void mergeShardManifests(Path directory, String parametersFile)
+      throws IOException {
+    List<OutputManifest> manifests = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : files.filter(f -> f.getFileName().toString().startsWith("manifest-shard-"))
+          .sorted().toList()) {
+        manifests.add(OutputManifest.read(file));
+      }
+    }
+    var merged = OutputManifest.mergeShards(manifests);
+    merged.write(directory.resolve("manifest.json"));
+    FhirResourceFactory.writeResource(merged.toParameters(), parametersFile);
+  }
+
+  /**
+   * Creates the validation stage and validates the templates once to warm up its caches.
+   *
+   * @param options            the command line options
+   * @param compiledBluePrints the compiled blueprints
+   * @return the validation stage
+   */
+  private static ResourceValidationStage createValidationStage(GeneratorOptions options,
+      List<CompiledBluePrint> compiledBluePrints) throws IOException {
+    var ctx = SharedFhirContext.get();
+    var validationSupport = ResourceValidationStage.createValidationSupport(ctx, Path.of(
+        options.get("structure-definitions",
+            ResourceValidationStage.DEFAULT_STRUCTURE_DEFINITION_DIRECTORY)));
+    var validation = new ResourceValidationStage(ctx, validationSupport,
+        options.getInt("validation-threads", Runtime.getRuntime().availableProcessors()),
+        options.getInt("validation-sample-rate", 1),
+        ResultSeverityEnum.fromCode(options.get("validation-severity", "error")));
+    // One template per resource type and profile, the templates only differ in their values.
+    validation.warmUp(compiledBluePrints.stream().collect(Collectors.toMap(
+        compiled -> compiled.resourceType() + compiled.template().getMeta().getProfile()
+            .toString(), CompiledBluePrint::template, (first, second) -> first,
+        LinkedHashMap::new)).values());
+    return validation;
+  }
+
+  /**
+   * Exercises template copying, FHIRPath evaluation, the fixed value functions and the parser
+   * without contacting the terminology server or writing files. Used as the training run when
+   * creating the AppCDS archive (mvn package -Pappcds).
+   *
+   * @param compiledBluePrints the compiled blueprints
+   */
+  private static void trainingRun(List<CompiledBluePrint> compiledBluePrints) {
+    var ctx = SharedFhirContext.get();
+    var fhirPath = ctx.newFhirPath();
+    var parser = ctx.newJsonParser();
+    for (CompiledBluePrint compiled : compiledBluePrints) {
+      var resource = compiled.template().copy();
+      for (var entry : compiled.bluePrint().entrySet()) {
+        if (entry.getValue().startsWith("fixed")) {
+          JavaFunctionParser.parse(entry.getValue());
+        }
+        try {
+          fhirPath.evaluate(resource, entry.getKey(), Base.class);
+        } catch (RuntimeException e) {
+          // Some blueprint paths only evaluate after their value is set, loading the classes is
+          // all that matters here.
+        }
+      }
+      parser.encodeResourceToString(resource);
+    }
   }
 
 }
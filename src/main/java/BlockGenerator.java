@@ -0,0 +1,154 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Generates a block of consecutive units of a compiled blueprint value function by value function
+ * instead of resource by resource. Every value function is parsed and its method looked up once
+ * per blueprint, a function with a block variant in {@link GeneratorFunctions} fills the values of
+ * all units of the block in one loop, and the resources are then assembled from these columns.
+ *
+ * <p>The units keep their own random, ids and timeline in a {@link UnitBlock}, and the value
+ * functions of a unit are evaluated in the order of the blueprint, so the resources are the same
+ * as those {@link GenerationRun#generate(CompiledBluePrint, long)} generates unit by unit.
+ */
+public class BlockGenerator {
+
+  public static final int DEFAULT_BLOCK_SIZE = 64;
+
+  /**
+   * Block variant of a value function.
+   */
+  @FunctionalInterface
+  interface BlockFunction {
+
+    /**
+     * @param block     the units
+     * @param arguments the arguments of the call
+     * @param values    the values of the units
+     */
+    void fill(UnitBlock block, Object[] arguments, Object[] values);
+  }
+
+  private static final Map<String, BlockFunction> BLOCK_FUNCTIONS = Map.of(
+      "randomID", (block, arguments, values) -> GeneratorFunctions.randomIDs(block, values),
+      "randomDateTime",
+      (block, arguments, values) -> GeneratorFunctions.randomDateTimes(block, values),
+      "randomIdentifierCodeValue",
+      (block, arguments, values) -> GeneratorFunctions.randomIdentifierCodeValues(block, values),
+      "randomIdentifierSystemURI",
+      (block, arguments, values) -> GeneratorFunctions.randomIdentifierSystemURIs(block, values),
+      "randomCoding", (block, arguments, values) -> GeneratorFunctions.randomCodings(block,
+          (String) arguments[0], values),
+      "randomCode", (block, arguments, values) -> GeneratorFunctions.randomCodes(block,
+          (String) arguments[0], values));
+
+  /**
+   * A value function of the blueprint, parsed like {@link JavaFunctionParser#parse(String)} does.
+   * Calls with nested calls as arguments are parsed for every unit.
+   */
+  private record Column(String fhirPath, String function, Method method, Object[] arguments,
+                        BlockFunction blockFunction) {
+
+    @SuppressWarnings("unchecked")
+    Class<? extends IBase> fill(UnitBlock block, Object[] values)
+        throws ReflectiveOperationException {
+      if (blockFunction != null) {
+        blockFunction.fill(block, arguments, values);
+        return (Class<? extends IBase>) method.getReturnType();
+      }
+      Class<? extends IBase> valueType = null;
+      for (int i = 0; i < block.size; i++) {
+        block.restore(i);
+        if (method != null) {
+          values[i] = method.invoke(null, arguments);
+          valueType = (Class<? extends IBase>) method.getReturnType();
+        } else {
+          var result = JavaFunctionParser.parse(function);
+          if (result == null) {
+            throw new IllegalArgumentException("Could not parse " + function);
+          }
+          values[i] = result.result();
+          valueType = result.return_type();
+        }
+        block.save(i);
+      }
+      return valueType;
+    }
+  }
+
+  private final CompiledBluePrint bluePrint;
+  private final List<Column> columns = new ArrayList<>();
+
+  /**
+   * @param bluePrint the compiled blueprint
+   */
+  public BlockGenerator(CompiledBluePrint bluePrint) {
+    this.bluePrint = bluePrint;
+    bluePrint.bluePrint().forEach((fhirPath, function) -> columns.add(column(fhirPath, function)));
+  }
+
+  private static Column column(String fhirPath, String function) {
+    int startParen = function.indexOf('(');
+    int endParen = function.lastIndexOf(')');
+    String[] parameters = {};
+    if (endParen > startParen + 1) {
+      parameters = function.substring(startParen + 1, endParen).split(",");
+    }
+    Object[] arguments = new Object[parameters.length];
+    for (int i = 0; i < parameters.length; i++) {
+      if (parameters[i].contains("(") && parameters[i].contains(")")) {
+        return new Column(fhirPath, function, null, null, null);
+      }
+      var argument = parameters[i].trim();
+      arguments[i] = argument.equals("None") ? null : argument;
+    }
+    try {
+      var name = function.substring(0, startParen);
+      var method = JavaFunctionParser.getMethod(GeneratorFunctions.class, name,
+          parameters.length);
+      method.setAccessible(true);
+      var blockFunction = method.getParameterCount() == parameters.length
+          ? BLOCK_FUNCTIONS.get(name) : null;
+      return new Column(fhirPath, function, method, arguments, blockFunction);
+    } catch (NoSuchMethodException | RuntimeException e) {
+      return new Column(fhirPath, function, null, null, null);
+    }
+  }
+
+  /**
+   * Generates the units of a block.
+   *
+   * @param block the units, their state is advanced
+   * @return the resources of every unit, each the modified resource last
+   */
+  List<List<IBaseResource>> generate(UnitBlock block)
+      throws ReflectiveOperationException {
+    Object[][] values = new Object[columns.size()][block.size];
+    List<Class<? extends IBase>> valueTypes = new ArrayList<>(columns.size());
+    try {
+      for (int c = 0; c < columns.size(); c++) {
+        valueTypes.add(columns.get(c).fill(block, values[c]));
+      }
+    } finally {
+      GeneratorRandom.endUnit();
+      TemporalGenerator.endUnit();
+    }
+    var fhirPathEngine = FhirResourceFactory.fhirPathEngine();
+    List<List<IBaseResource>> generated = new ArrayList<>(block.size);
+    for (int i = 0; i < block.size; i++) {
+      var resource = bluePrint.template().copy();
+      List<IBaseResource> resources = new ArrayList<>();
+      for (int c = 0; c < columns.size(); c++) {
+        FhirResourceFactory.setValue(fhirPathEngine, resource, columns.get(c).fhirPath(),
+            valueTypes.get(c), values[c][i], resources);
+      }
+      resources.add(resource);
+      generated.add(resources);
+    }
+    return generated;
+  }
+}
@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Compiles blueprints by resolving the template each blueprint modifies. Calls of {@link Pure}
+ * generator functions are evaluated once and folded into a copy of the template, so generating a
+ * resource only evaluates the random value functions.
+ */
+public class BluePrintCompiler {
+
+  private static final String LOINC_CODING_PREFIX = "fixedCoding(http://loinc.org,";
+  private static final String QUANTITY_FUNCTION_PREFIX = "randomQuantity(";
+  private static final String PATIENT_REFERENCE_FUNCTION = "randomPatientReference()";
+
+  private final FhirTemplateRegistry registry;
+  private long valueFunctions;
+  private long foldedValueFunctions;
+
+  public BluePrintCompiler(FhirTemplateRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Compiles a single blueprint.
+   *
+   * @param index     position of the blueprint in the blueprint file
+   * @param bluePrint map of fhirPath to value function
+   * @return the compiled blueprint or empty if no template is registered for the blueprint
+   */
+  public Optional<CompiledBluePrint> compile(int index, HashMap<String, String> bluePrint) {
+    var template = registry.resolve(bluePrint);
+    if (template.isEmpty()) {
+      var variant = FhirTemplateRegistry.valueVariant(bluePrint);
+      System.out.println("No template registered for " + BluePrintLoader.getResourceName(bluePrint)
+          + (variant.isEmpty() ? "" : " with value " + variant) + ", skipping blueprint " + index);
+      return Optional.empty();
+    }
+    var valueFunctions = withLoincCode(patientReferenceFirst(bluePrint));
+    var foldedTemplate = template.get().copy();
+    var remaining = foldPureFunctions(foldedTemplate, valueFunctions);
+    synchronized (this) {
+      this.valueFunctions += valueFunctions.size();
+      this.foldedValueFunctions += valueFunctions.size() - remaining.size();
+    }
+    return Optional.of(new CompiledBluePrint(index, remaining, foldedTemplate));
+  }
+
+  /**
+   * Compiles a blueprint family. The template is resolved and the pure value functions without
+   * placeholders are folded once for the whole family, so a row only copies the folded template,
+   * replaces the placeholders of the remaining value functions and folds the pure ones among them.
+   * The compiled blueprints are the same as those of the blueprints of the rows written out, see
+   * {@link BluePrintFamily#instantiate}.
+   *
+   * @param firstIndex position of the first blueprint of the family, the rows follow in order
+   * @param family     the blueprint family
+   * @return the compiled blueprints of the rows or an empty list if no template is registered
+   */
+  public List<CompiledBluePrint> compileFamily(int firstIndex, BluePrintFamily family) {
+    var template = registry.resolve(family.bluePrint());
+    if (template.isEmpty()) {
+      System.out.println("No template registered for " + BluePrintLoader.getResourceName(
+          family.bluePrint()) + ", skipping blueprint family " + family.name());
+      return List.of();
+    }
+    var valueFunctions = withLoincCode(patientReferenceFirst(family.bluePrint()));
+    var constant = new LinkedHashMap<String, String>();
+    valueFunctions.forEach((fhirPath, function) -> {
+      if (!function.contains("${")) {
+        constant.put(fhirPath, function);
+      }
+    });
+    var familyTemplate = template.get().copy();
+    var unfolded = foldPureFunctions(familyTemplate, constant);
+    var parameterized = new LinkedHashMap<String, String>();
+    valueFunctions.forEach((fhirPath, function) -> {
+      if (!constant.containsKey(fhirPath) || unfolded.containsKey(fhirPath)) {
+        parameterized.put(fhirPath, function);
+      }
+    });
+    List<CompiledBluePrint> compiled = new ArrayList<>(family.rows().size());
+    long folded = 0;
+    for (int i = 0; i < family.rows().size(); i++) {
+      var row = family.rows().get(i);
+      var rowFunctions = new LinkedHashMap<String, String>();
+      parameterized.forEach((fhirPath, function) ->
+          rowFunctions.put(fhirPath, BluePrintFamily.substitute(function, row)));
+      var rowTemplate = familyTemplate.copy();
+      var remaining = foldPureFunctions(rowTemplate, rowFunctions);
+      folded += valueFunctions.size() - remaining.size();
+      compiled.add(new CompiledBluePrint(firstIndex + i, remaining, rowTemplate));
+    }
+    synchronized (this) {
+      this.valueFunctions += (long) valueFunctions.size() * compiled.size();
+      this.foldedValueFunctions += folded;
+    }
+    return compiled;
+  }
+
+  /**
+   * Sets the results of the pure value functions with literal arguments in the template.
+   *
+   * @param template  copy of the template of the blueprint, modified in place
+   * @param bluePrint map of fhirPath to value function
+   * @return the value functions that remain to be evaluated for every resource
+   */
+  static HashMap<String, String> foldPureFunctions(Resource template,
+      HashMap<String, String> bluePrint) {
+    var pure = new LinkedHashMap<String, String>();
+    var remaining = new LinkedHashMap<String, String>();
+    bluePrint.forEach((fhirPath, function) ->
+        (isPureCall(function) ? pure : remaining).put(fhirPath, function));
+    if (pure.isEmpty()) {
+      return bluePrint;
+    }
+    try {
+      FhirResourceFactory.modifyResource(SharedFhirContext.get(), template, pure);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      e.printStackTrace();
+      return bluePrint;
+    }
+    return remaining;
+  }
+
+  private static boolean isPureCall(String function) {
+    int startParen = function.indexOf('(');
+    int endParen = function.lastIndexOf(')');
+    if (startParen < 0 || endParen < startParen) {
+      return false;
+    }
+    var arguments = function.substring(startParen + 1, endParen);
+    if (arguments.indexOf('(') >= 0 || arguments.indexOf(')') >= 0) {
+      return false;
+    }
+    try {
+      return JavaFunctionParser.getMethod(GeneratorFunctions.class,
+          function.substring(0, startParen),
+          arguments.isEmpty() ? 0 : arguments.split(",").length).isAnnotationPresent(Pure.class);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of value functions of all compiled blueprints
+   */
+  public synchronized long valueFunctions() {
+    return valueFunctions;
+  }
+
+  /**
+   * @return the number of value functions folded into the templates
+   */
+  public synchronized long foldedValueFunctions() {
+    return foldedValueFunctions;
+  }
+
+  /**
+   * Orders the blueprint so the patient reference is created first and the dates of the resource
+   * lie on the timeline of its patient, see {@link TemporalGenerator}.
+   *
+   * @param bluePrint map of fhirPath to value function
+   * @return the blueprint with the patient reference first
+   */
+  static HashMap<String, String> patientReferenceFirst(HashMap<String, String> bluePrint) {
+    var ordered = new LinkedHashMap<String, String>();
+    bluePrint.forEach((fhirPath, function) -> {
+      if (function.equals(PATIENT_REFERENCE_FUNCTION)) {
+        ordered.put(fhirPath, function);
+      }
+    });
+    ordered.putAll(bluePrint);
+    return ordered;
+  }
+
+  /**
+   * Passes the LOINC code of a blueprint's fixed code to its randomQuantity calls, so the value is
+   * drawn from the distribution of the code, see {@link QuantityDistributions}.
+   *
+   * @param bluePrint map of fhirPath to value function
+   * @return the blueprint or a copy with the LOINC code added to the randomQuantity calls
+   */
+  static HashMap<String, String> withLoincCode(HashMap<String, String> bluePrint) {
+    String loincCode = null;
+    for (String function : bluePrint.values()) {
+      if (function.startsWith(LOINC_CODING_PREFIX)) {
+        loincCode = function.substring(LOINC_CODING_PREFIX.length()).split(",")[0].trim();
+      }
+    }
+    if (loincCode == null) {
+      return bluePrint;
+    }
+    HashMap<String, String> compiled = null;
+    for (var entry : bluePrint.entrySet()) {
+      var function = entry.getValue();
+      if (!function.startsWith(QUANTITY_FUNCTION_PREFIX)) {
+        continue;
+      }
+      // The arguments of randomQuantity never contain parentheses, so the call ends at the first
+      // closing parenthesis, which also drops the duplicated one of some blueprints.
+      var arguments = function.substring(QUANTITY_FUNCTION_PREFIX.length(),
+          function.indexOf(')'));
+      if (arguments.split(",").length == 5) {
+        if (compiled == null) {
+          compiled = new LinkedHashMap<>(bluePrint);
+        }
+        compiled.put(entry.getKey(),
+            QUANTITY_FUNCTION_PREFIX + arguments + ", " + loincCode + ")");
+      }
+    }
+    return compiled == null ? bluePrint : compiled;
+  }
+
+  /**
+   * Compiles a list of blueprints. Blueprints without a registered template are skipped.
+   *
+   * @param bluePrints list of maps of fhirPath to value function
+   * @return the compiled blueprints in the order of the input
+   */
+  public List<CompiledBluePrint> compileAll(List<HashMap<String, String>> bluePrints) {
+    List<CompiledBluePrint> compiled = new ArrayList<>();
+    for (int i = 0; i < bluePrints.size(); i++) {
+      compile(i, bluePrints.get(i)).ifPresent(compiled::add);
+    }
+    return compiled;
+  }
+}
@@ -0,0 +1,197 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A blueprint shared by many blueprints that only differ in a few arguments, i.e. the LOINC code
+ * and the unit of the laboratory Observations. The value functions of the blueprint contain
+ * placeholders like ${code}, which are replaced by the columns of a row of the parameter table.
+ * The family is compiled once and instantiated for every row, see
+ * {@link BluePrintCompiler#compileFamily(int, BluePrintFamily)}.
+ *
+ * <p>A family file is a JSON object with the blueprint and either a parameter table in a CSV file
+ * next to it, the first line naming the columns, or the rows themselves:
+ * <pre>
+ * {"bluePrint": {"Observation.code.coding": "fixedCoding(http://loinc.org, ${code}, None, None)"},
+ *  "parameters": "ObservationLabQuantity.csv"}
+ * {"bluePrint": {...}, "rows": [{"code": "2951-2", "unit": "mmol/L"}]}
+ * </pre>
+ *
+ * @param name      the name of the family, the name of its file
+ * @param bluePrint map of fhirPath to value function with placeholders
+ * @param rows      the parameters of the blueprints of the family, by placeholder name
+ */
+public record BluePrintFamily(String name, LinkedHashMap<String, String> bluePrint,
+                              List<Map<String, String>> rows) {
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)}");
+
+  /**
+   * Loads the family files of a directory in the order of their names, or a single family file.
+   *
+   * @param path a family file or a directory of family files (*.json)
+   * @return the families
+   */
+  public static List<BluePrintFamily> loadAll(Path path) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return List.of(load(path));
+    }
+    List<BluePrintFamily> families = new ArrayList<>();
+    try (Stream<Path> files = Files.list(path)) {
+      for (Path file : files.filter(file -> file.toString().endsWith(".json")).sorted()
+          .toList()) {
+        families.add(load(file));
+      }
+    }
+    return families;
+  }
+
+  /**
+   * Loads a family file.
+   *
+   * @param file the family file
+   * @return the family
+   */
+  public static BluePrintFamily load(Path file) throws IOException {
+    LinkedHashMap<String, String> bluePrint = null;
+    List<Map<String, String>> rows = null;
+    try (JsonParser parser = BluePrintIndex.JSON_FACTORY.createParser(
+        Files.newInputStream(file))) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException(file + " is not a blueprint family object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var field = parser.getCurrentName();
+        switch (field) {
+          case "bluePrint" -> {
+            parser.nextToken();
+            bluePrint = BluePrintLoader.readBluePrint(parser);
+          }
+          case "parameters" -> rows = loadParameters(
+              file.resolveSibling(BluePrintLoader.readValue(parser)));
+          case "rows" -> {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+              throw new IOException("The rows of " + file + " are not an array");
+            }
+            rows = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+              rows.add(BluePrintLoader.readBluePrint(parser));
+            }
+          }
+          default -> throw new IOException("Unknown field " + field + " in " + file);
+        }
+      }
+    }
+    if (bluePrint == null || bluePrint.isEmpty() || rows == null) {
+      throw new IOException(file + " needs a bluePrint and either parameters or rows");
+    }
+    var name = file.getFileName().toString().replaceFirst("\\.json$", "");
+    var family = new BluePrintFamily(name, bluePrint, List.copyOf(rows));
+    family.checkRows();
+    return family;
+  }
+
+  /**
+   * Loads a parameter table from a CSV file whose first line names the columns. Lines starting
+   * with # are comments.
+   *
+   * @param file the CSV file
+   * @return the rows, by column name
+   */
+  static List<Map<String, String>> loadParameters(Path file) throws IOException {
+    List<Map<String, String>> rows = new ArrayList<>();
+    try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String[] header = null;
+      for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+        if (line.isBlank() || line.startsWith("#")) {
+          continue;
+        }
+        String[] columns = line.split(",", -1);
+        if (header == null) {
+          header = columns;
+          continue;
+        }
+        if (columns.length != header.length) {
+          throw new IOException("Expected " + header.length + " columns: " + line);
+        }
+        var row = new LinkedHashMap<String, String>();
+        for (int i = 0; i < header.length; i++) {
+          row.put(header[i].trim(), columns[i].trim());
+        }
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @return the names of the placeholders of the value functions
+   */
+  public Set<String> placeholders() {
+    Set<String> placeholders = new LinkedHashSet<>();
+    for (String function : bluePrint.values()) {
+      var matcher = PLACEHOLDER.matcher(function);
+      while (matcher.find()) {
+        placeholders.add(matcher.group(1));
+      }
+    }
+    return placeholders;
+  }
+
+  private void checkRows() throws IOException {
+    var placeholders = placeholders();
+    for (int i = 0; i < rows.size(); i++) {
+      if (!rows.get(i).keySet().containsAll(placeholders)) {
+        throw new IOException("Row " + (i + 1) + " of the blueprint family " + name
+            + " has no value for some of " + placeholders);
+      }
+    }
+  }
+
+  /**
+   * Replaces the placeholders of a value by the parameters of a row.
+   *
+   * @param value a value function or a value set by a folded function
+   * @param row   the parameters by placeholder name
+   * @return the value with the parameters, the value itself if it has no placeholder
+   */
+  static String substitute(String value, Map<String, String> row) {
+    if (value == null || !value.contains("${")) {
+      return value;
+    }
+    var matcher = PLACEHOLDER.matcher(value);
+    var result = new StringBuilder();
+    while (matcher.find()) {
+      var parameter = row.get(matcher.group(1));
+      if (parameter == null) {
+        throw new IllegalArgumentException("No parameter " + matcher.group(1) + " for " + value);
+      }
+      matcher.appendReplacement(result, Matcher.quoteReplacement(parameter));
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+
+  /**
+   * @param row the parameters by placeholder name
+   * @return the blueprint of the row, as if it was written out in a blueprint file
+   */
+  public LinkedHashMap<String, String> instantiate(Map<String, String> row) {
+    var instance = new LinkedHashMap<String, String>();
+    bluePrint.forEach((fhirPath, function) -> instance.put(fhirPath, substitute(function, row)));
+    return instance;
+  }
+}
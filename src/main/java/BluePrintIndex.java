@@ -0,0 +1,215 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Offsets of the blueprints in a blueprint file, a JSON array of objects. The index is built on
+ * first use with a single pass of a pull parser, then a subset of the blueprints is loaded from
+ * the memory mapped file without parsing the rest. The index is kept with the size and a CRC32C
+ * checksum of the file, so it is built again once the content changes, even if the size and the
+ * modification time stay the same.
+ */
+public final class BluePrintIndex {
+
+  static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final Pattern LOINC_CODE = Pattern.compile(
+      "fixedCoding\\(\\s*http://loinc\\.org\\s*,\\s*([^,)\\s]+)");
+
+  private static final Map<Path, BluePrintIndex> INDEXES = new ConcurrentHashMap<>();
+
+  /**
+   * Position and key properties of a blueprint.
+   *
+   * @param index        position of the blueprint in the file
+   * @param offset       byte offset of the blueprint object
+   * @param length       length of the blueprint object in bytes
+   * @param resourceType the resource type of the blueprint
+   * @param loincCode    the LOINC code of the first fixedCoding of http://loinc.org or null
+   */
+  public record Entry(int index, long offset, int length, String resourceType,
+                      String loincCode) {
+
+  }
+
+  private final Path file;
+  private final long size;
+  private final long checksum;
+  private final List<Entry> entries;
+
+  private BluePrintIndex(Path file, long size, long checksum, List<Entry> entries) {
+    this.file = file;
+    this.size = size;
+    this.checksum = checksum;
+    this.entries = entries;
+  }
+
+  /**
+   * Returns the index of a blueprint file, built on the first call and again once the file
+   * changed.
+   *
+   * @param file the blueprint file
+   * @return the index
+   */
+  public static BluePrintIndex of(Path file) throws IOException {
+    var key = file.toAbsolutePath().normalize();
+    long size = Files.size(key);
+    long checksum = checksum(key);
+    var index = INDEXES.get(key);
+    if (index == null || index.size != size || index.checksum != checksum) {
+      index = build(key, size, checksum);
+      INDEXES.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * @return the CRC32C of the file content, computed on the memory mapped file
+   */
+  private static long checksum(Path file) throws IOException {
+    var crc = new CRC32C();
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    return crc.getValue();
+  }
+
+  private static BluePrintIndex build(Path file, long size, long checksum)
+      throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (JsonParser parser = JSON_FACTORY.createParser(Files.newInputStream(file))) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException(file + " is not a JSON array of blueprints");
+      }
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        long offset = parser.getTokenLocation().getByteOffset();
+        String resourceType = null;
+        String loincCode = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          if (resourceType == null) {
+            resourceType = BluePrintLoader.getResourceName(parser.getCurrentName());
+          }
+          var value = BluePrintLoader.readValue(parser);
+          if (loincCode == null) {
+            var matcher = LOINC_CODE.matcher(value);
+            if (matcher.find()) {
+              loincCode = matcher.group(1);
+            }
+          }
+        }
+        long end = parser.getCurrentLocation().getByteOffset();
+        entries.add(new Entry(entries.size(), offset, (int) (end - offset), resourceType,
+            loincCode));
+      }
+    }
+    return new BluePrintIndex(file, size, checksum, List.copyOf(entries));
+  }
+
+  public List<Entry> entries() {
+    return entries;
+  }
+
+  /**
+   * Loads the blueprints accepted by the filter, in file order, from the memory mapped file.
+   *
+   * @param filter selects the blueprints to load, see {@link #filter(String)}
+   * @return the blueprints, their entries in the order of the file
+   */
+  public Stream<LinkedHashMap<String, String>> load(Predicate<Entry> filter) throws IOException {
+    MappedByteBuffer buffer;
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    return entries.stream().filter(filter).map(entry -> {
+      var slice = buffer.slice((int) entry.offset(), entry.length());
+      try (JsonParser parser = JSON_FACTORY.createParser(new ByteBufferInputStream(slice))) {
+        parser.nextToken();
+        return BluePrintLoader.readBluePrint(parser);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Invalid blueprint " + entry.index() + " in " + file, e);
+      }
+    });
+  }
+
+  /**
+   * Parses a blueprint filter: comma separated conditions that all have to hold.
+   * <ul>
+   *   <li>type=Condition: the resource type</li>
+   *   <li>index=100-200: the position in the file, both inclusive</li>
+   *   <li>loinc=2*: the LOINC code, a trailing * matches any suffix</li>
+   * </ul>
+   *
+   * @param spec the filter, an empty filter accepts every blueprint
+   * @return the filter
+   */
+  public static Predicate<Entry> filter(String spec) {
+    Predicate<Entry> filter = entry -> true;
+    for (String condition : spec.split(",")) {
+      if (condition.isBlank()) {
+        continue;
+      }
+      var parts = condition.trim().split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Invalid blueprint filter " + condition);
+      }
+      var value = parts[1];
+      filter = filter.and(switch (parts[0]) {
+        case "type" -> entry -> value.equals(entry.resourceType());
+        case "index" -> {
+          var range = value.split("-", 2);
+          int from = Integer.parseInt(range[0]);
+          int to = range.length == 2 ? Integer.parseInt(range[1]) : from;
+          yield entry -> entry.index() >= from && entry.index() <= to;
+        }
+        case "loinc" -> value.endsWith("*")
+            ? entry -> entry.loincCode() != null
+            && entry.loincCode().startsWith(value.substring(0, value.length() - 1))
+            : entry -> value.equals(entry.loincCode());
+        default -> throw new IllegalArgumentException("Invalid blueprint filter " + condition);
+      });
+    }
+    return filter;
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+}
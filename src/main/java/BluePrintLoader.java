@@ -1,22 +1,13 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
-import org.jetbrains.annotations.NotNull;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
+import java.util.function.Predicate;
 
 public class BluePrintLoader {
 
@@ -24,15 +15,16 @@ public class BluePrintLoader {
    * Loads a single blueprint from a json file.
    *
    * @param jsonPath Path to the json file.
-   * @return A map of fhirPath to value function. I.e. {"Observation.code.coding":
-   * "fixedCoding(...)"}
+   * @return A map of fhirPath to value function in the order of the file. I.e.
+   * {"Observation.code.coding": "fixedCoding(...)"}
    */
   public static HashMap<String, String> loadFhirPathToValueFunctionFromJson(Path jsonPath)
       throws IOException {
-    String json = Files.readString(jsonPath);
-    JSONObject jsonObject = new JSONObject(json);
-
-    return toPathFunctionMap(jsonObject);
+    try (JsonParser parser = BluePrintIndex.JSON_FACTORY.createParser(
+        Files.newInputStream(jsonPath))) {
+      parser.nextToken();
+      return readBluePrint(parser);
+    }
   }
 
   /**
@@ -43,49 +35,73 @@ public class BluePrintLoader {
    * "randomCoding(...)"}
    */
   public static List<HashMap<String, String>> loadBluePrints(String filePath) {
-    Stream<JSONObject> bluePrints = Stream.empty();
+    return loadBluePrints(filePath, entry -> true);
+  }
+
+  /**
+   * Loads the blueprints of a json file accepted by a filter, see {@link BluePrintIndex}.
+   *
+   * @param filePath Path to the json file.
+   * @param filter   selects the blueprints to load
+   * @return A list of maps of fhirPath to value function in the order of the file.
+   */
+  public static List<HashMap<String, String>> loadBluePrints(String filePath,
+      Predicate<BluePrintIndex.Entry> filter) {
     try {
-      bluePrints = loadJsonArrayFromFile(filePath);
-    } catch (JSONException | FileNotFoundException e) {
+      return BluePrintIndex.of(Path.of(filePath)).load(filter)
+          .map(bluePrint -> (HashMap<String, String>) bluePrint).toList();
+    } catch (IOException e) {
       e.printStackTrace();
+      return List.of();
     }
-
-    return bluePrints.map(BluePrintLoader::toPathFunctionMap).toList();
-
   }
 
-
   public static HashMap<String, String> loadBluePrint(String filePath) throws IOException {
-    byte[] encoded = Files.readAllBytes(Paths.get(filePath));
-    String jsonString = new String(encoded, StandardCharsets.UTF_8);
-
-    JSONObject jsonObject = new JSONObject(jsonString);
-    return toPathFunctionMap(jsonObject);
+    return loadFhirPathToValueFunctionFromJson(Path.of(filePath));
   }
 
-  @NotNull
-  private static HashMap<String, String> toPathFunctionMap(JSONObject jsonObject) {
-    return jsonObject.toMap().entrySet().stream().collect(
-        Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().toString(), (v1, v2) -> v1,
-            HashMap::new));
+  /**
+   * Reads a blueprint object, the parser is positioned at its start.
+   *
+   * @param parser the parser
+   * @return the blueprint, its entries in the order of the object
+   */
+  static LinkedHashMap<String, String> readBluePrint(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      throw new IOException("Expected a blueprint object at " + parser.getTokenLocation());
+    }
+    var bluePrint = new LinkedHashMap<String, String>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      var fhirPath = parser.getCurrentName();
+      bluePrint.put(fhirPath, readValue(parser));
+    }
+    return bluePrint;
   }
 
-
-  private static Stream<JSONObject> loadJsonArrayFromFile(String filePath)
-      throws FileNotFoundException, JSONException {
-    var file = new File(filePath);
-    var reader = new FileReader(file);
-    var jsonArray = new JSONArray(new JSONTokener(reader));
-    return jsonArrayToJsonObjectStream(jsonArray);
+  /**
+   * Reads the value of the current field of a blueprint.
+   *
+   * @param parser the parser, positioned at the field name
+   * @return the value function, the text of the value if it is not a string
+   */
+  static String readValue(JsonParser parser) throws IOException {
+    var token = parser.nextToken();
+    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+      throw new IOException("The value of " + parser.getCurrentName() + " at "
+          + parser.getTokenLocation() + " is not a value function");
+    }
+    return parser.getText();
   }
 
-  private static Stream<JSONObject> jsonArrayToJsonObjectStream(JSONArray jsonArray) {
-    return IntStream.range(0, jsonArray.length()).mapToObj(jsonArray::getJSONObject);
+  public static String getResourceName(Map<String, String> bluePrint) {
+    return getResourceName(bluePrint.keySet().iterator().next());
   }
 
-
-  public static String getResourceName(HashMap<String, String> bluePrint) {
-    var path = (String) bluePrint.keySet().toArray()[0];
-    return path.split("\\.")[0];
+  /**
+   * @param fhirPath a FHIRPath of a blueprint
+   * @return the resource type the path starts with
+   */
+  public static String getResourceName(String fhirPath) {
+    return fhirPath.replaceFirst("^\\(+", "").split("\\.")[0];
   }
 }
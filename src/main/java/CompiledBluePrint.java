@@ -0,0 +1,18 @@
+import java.util.HashMap;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * A blueprint together with the template it modifies. The template is resolved once when the
+ * blueprint is compiled, so generating a resource only copies the template and applies the value
+ * functions of the blueprint.
+ *
+ * @param index     position of the blueprint in the blueprint file
+ * @param bluePrint map of fhirPath to value function
+ * @param template  resource that is copied for each generated resource
+ */
+public record CompiledBluePrint(int index, HashMap<String, String> bluePrint, Resource template) {
+
+  public String resourceType() {
+    return template.fhirType();
+  }
+}
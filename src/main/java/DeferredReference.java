@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * A reference to a resource that is not generated yet. It only carries the type and the id of its
+ * target, the target is generated by the output stage just before the referencing resource is
+ * written, see {@link DeferredReferenceResolver}. The target is generated in a unit derived from
+ * its id, so the same reference always materializes the same resources.
+ *
+ * <p>The ids of the targets are drawn from a pool of ids per target type and run, see
+ * {@link #create(Target)}, so units share their targets like observations share their patients.
+ *
+ * <p>Deferred references are only created when enabled with {@link #setEnabled(boolean)},
+ * otherwise the reference functions of {@link GeneratorFunctions} generate their targets eagerly.
+ */
+public final class DeferredReference {
+
+  /**
+   * The resource types that can be deferred and how their targets are generated.
+   */
+  public enum Target {
+    PATIENT("Patient", 1 << 15, GeneratorFunctions::deferredPatient),
+    ORGANIZATION("Organization", 1 << 8, id -> List.of(GeneratorFunctions.randomOrganization())),
+    MEDICATION("Medication", 1 << 12, id -> List.of(GeneratorFunctions.randomMedication()));
+
+    private final String resourceType;
+    private final int poolSize;
+    private final Function<UUID, List<IBaseResource>> factory;
+
+    Target(String resourceType, int poolSize, Function<UUID, List<IBaseResource>> factory) {
+      this.resourceType = resourceType;
+      this.poolSize = poolSize;
+      this.factory = factory;
+    }
+
+    public String resourceType() {
+      return resourceType;
+    }
+
+    /**
+     * @return number of distinct targets of this type in a run, all pools together fit into the
+     * window of a {@link DeferredReferenceResolver}
+     */
+    public int poolSize() {
+      return poolSize;
+    }
+  }
+
+  private static final String USER_DATA_KEY = DeferredReference.class.getName();
+
+  private static volatile boolean enabled = false;
+
+  private final Target target;
+  private final UUID id;
+
+  public DeferredReference(Target target, UUID id) {
+    this.target = target;
+    this.id = id;
+  }
+
+  /**
+   * Creates a reference to one of the targets of the pool of a type, drawn with the random of the
+   * current unit.
+   *
+   * @param target the type of the target
+   * @return the deferred reference
+   */
+  public static DeferredReference create(Target target) {
+    return new DeferredReference(target,
+        GeneratorRandom.pooledUuid(target.ordinal(), target.poolSize));
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    DeferredReference.enabled = enabled;
+  }
+
+  public Target target() {
+    return target;
+  }
+
+  public UUID id() {
+    return id;
+  }
+
+  /**
+   * @return the relative reference, i.e. Patient/id
+   */
+  public String key() {
+    return target.resourceType + "/" + id;
+  }
+
+  public Reference toReference() {
+    return new Reference(key());
+  }
+
+  /**
+   * Generates the target in the unit derived from its id. Must be called outside of a unit.
+   *
+   * @return the target and the resources it references, the target last
+   */
+  public List<IBaseResource> materialize() {
+    GeneratorRandom.startDerivedUnit(id);
+    try {
+      var resources = target.factory.apply(id);
+      var resource = resources.get(resources.size() - 1);
+      resource.setId(id.toString());
+      return resources;
+    } finally {
+      GeneratorRandom.endUnit();
+      TemporalGenerator.endUnit();
+    }
+  }
+
+  /**
+   * Records that an element references the target of a deferred reference.
+   *
+   * @param element   the referencing resource
+   * @param reference the deferred reference
+   */
+  @SuppressWarnings("unchecked")
+  public static void attach(IBase element, DeferredReference reference) {
+    var references = (List<DeferredReference>) element.getUserData(USER_DATA_KEY);
+    if (references == null) {
+      references = new ArrayList<>(1);
+      element.setUserData(USER_DATA_KEY, references);
+    }
+    references.add(reference);
+  }
+
+  /**
+   * Returns the deferred references recorded for an element. They stay recorded, so every
+   * {@link DeferredReferenceResolver} of a run materializes the targets for its own sink.
+   *
+   * @param element the referencing resource
+   * @return the deferred references of the element, empty if there are none
+   */
+  @SuppressWarnings("unchecked")
+  public static List<DeferredReference> attached(IBase element) {
+    var references = (List<DeferredReference>) element.getUserData(USER_DATA_KEY);
+    return references == null ? List.of() : references;
+  }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Output stage that materializes the targets of {@link DeferredReference}s just before the
+ * referencing resources are written. The targets precede the resources referencing them. A target
+ * that was materialized recently is not generated and written again, the window holds the keys of
+ * the last materialized targets. The default window is larger than the target pools of a run, so
+ * every target is written once until {@link #forget()} is called.
+ */
+public class DeferredReferenceResolver implements ResourceSink {
+
+  public static final int DEFAULT_WINDOW = 1 << 16;
+
+  private final ResourceSink sink;
+  private final Map<String, Boolean> recentTargets;
+  private long references = 0;
+  private long materialized = 0;
+
+  /**
+   * @param sink the sink writing the resources
+   */
+  public DeferredReferenceResolver(ResourceSink sink) {
+    this(sink, DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param sink   the sink writing the resources, may be null when only {@link #resolve(List)} is
+   *               used
+   * @param window number of recently materialized targets that are not materialized again
+   */
+  public DeferredReferenceResolver(ResourceSink sink, int window) {
+    this.sink = sink;
+    this.recentTargets = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > window;
+      }
+    };
+  }
+
+  @Override
+  public synchronized void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    sink.accept(bluePrint, resolve(resources));
+  }
+
+  /**
+   * Materializes the deferred references of the resources and of the materialized targets.
+   *
+   * @param resources the generated resources
+   * @return the materialized targets and the resources, every target before its first reference
+   */
+  public synchronized List<IBaseResource> resolve(List<IBaseResource> resources) {
+    List<IBaseResource> resolved = null;
+    for (int i = 0; i < resources.size(); i++) {
+      var deferred = DeferredReference.attached(resources.get(i));
+      if (deferred.isEmpty() && resolved == null) {
+        continue;
+      }
+      if (resolved == null) {
+        resolved = new ArrayList<>(resources.subList(0, i));
+      }
+      for (DeferredReference reference : deferred) {
+        materialize(reference, resolved);
+      }
+      resolved.add(resources.get(i));
+    }
+    return resolved == null ? resources : resolved;
+  }
+
+  private void materialize(DeferredReference reference, List<IBaseResource> resolved) {
+    references++;
+    if (recentTargets.put(reference.key(), Boolean.TRUE) != null) {
+      return;
+    }
+    materialized++;
+    resolved.addAll(resolve(reference.materialize()));
+  }
+
+  /**
+   * Forgets the recently materialized targets, so the output after this call does not depend on
+   * the output before, i.e. at a checkpoint.
+   */
+  public synchronized void forget() {
+    recentTargets.clear();
+  }
+
+  /**
+   * @return number of resolved deferred references
+   */
+  public synchronized long references() {
+    return references;
+  }
+
+  /**
+   * @return number of materialized targets, references to recent targets are not counted
+   */
+  public synchronized long materialized() {
+    return materialized;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (sink != null) {
+      sink.close();
+    }
+  }
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Parameters;
+
+/**
+ * Holds generated resources as NDJSON bytes instead of HAPI object graphs. Each resource is encoded
+ * when it is added and appended to the buffer of its resource type. When the buffers together hold
+ * more than the memory threshold, the largest buffer is spilled to a temporary file. The NDJSON
+ * files and the transaction bundle are assembled from the bytes.
+ */
+public class EncodedResourceStore implements ResourceSink {
+
+  /**
+   * Default number of bytes held in memory before buffers are spilled.
+   */
+  public static final long DEFAULT_MEMORY_THRESHOLD = 256L << 20;
+
+  private static final byte[] BUNDLE_START =
+      "{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[\n"
+          .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ENTRY_SEPARATOR = ",\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ENTRY_START = "{\"resource\":".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] BUNDLE_END = "\n]}".getBytes(StandardCharsets.UTF_8);
+
+  private final long memoryThreshold;
+  private final Map<String, SpillableByteBuffer> buffersByType = new TreeMap<>();
+  private final Map<String, Long> countsByType = new HashMap<>();
+  private long memoryBytes;
+
+  public EncodedResourceStore() {
+    this(DEFAULT_MEMORY_THRESHOLD);
+  }
+
+  /**
+   * @param memoryThreshold number of bytes held in memory before buffers are spilled to disk
+   */
+  public EncodedResourceStore(long memoryThreshold) {
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  /**
+   * Encodes a resource and appends it to the buffer of its resource type.
+   *
+   * @param resource the resource, no reference to it is kept
+   */
+  public void add(IBaseResource resource) {
+    byte[] encoded = FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON);
+    String resourceType = resource.fhirType();
+    synchronized (this) {
+      var buffer = buffersByType.computeIfAbsent(resourceType,
+          type -> new SpillableByteBuffer("encoded-" + type + "-"));
+      long before = buffer.memoryBytes();
+      buffer.write(encoded, 0, encoded.length);
+      buffer.write('\n');
+      memoryBytes += buffer.memoryBytes() - before;
+      countsByType.merge(resourceType, 1L, Long::sum);
+      if (memoryBytes > memoryThreshold) {
+        spillLargestBuffers();
+      }
+    }
+  }
+
+  public void addAll(Collection<? extends IBaseResource> resources) {
+    resources.forEach(this::add);
+  }
+
+  @Override
+  public void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources) {
+    addAll(resources);
+  }
+
+  private void spillLargestBuffers() {
+    try {
+      while (memoryBytes > memoryThreshold) {
+        var largest = buffersByType.values().stream()
+            .max((a, b) -> Long.compare(a.memoryBytes(), b.memoryBytes())).orElseThrow();
+        memoryBytes -= largest.memoryBytes();
+        largest.spill();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return number of resources by resource type
+   */
+  public synchronized Map<String, Long> counts() {
+    return Map.copyOf(countsByType);
+  }
+
+  /**
+   * @return number of encoded bytes by resource type
+   */
+  public synchronized Map<String, Long> sizes() {
+    Map<String, Long> sizes = new HashMap<>();
+    buffersByType.forEach((type, buffer) -> sizes.put(type, buffer.size()));
+    return sizes;
+  }
+
+  /**
+   * Writes one NDJSON file per resource type by copying the encoded bytes. A file is written
+   * through a {@link MappedNDJsonWriter}, or again through a buffered stream if the mapped file can
+   * not be written or truncated. A file that could not be written completely is deleted.
+   *
+   * @param filename prefix of the files, the resource type and ".ndjson" are appended
+   * @return Parameters listing the written files, see
+   * {@link FhirResourceFactory#createParameters(HashMap)}
+   */
+  public Parameters writeNDJsonByResourceType(String filename) throws IOException {
+    return writeNDJsonByResourceType(filename, new AtomicLong());
+  }
+
+  /**
+   * Writes one NDJSON file per resource type, see {@link #writeNDJsonByResourceType(String)}.
+   *
+   * @param filename prefix of the files, the resource type and ".ndjson" are appended
+   * @param bytes    incremented by the number of written bytes
+   * @return Parameters listing the written files
+   */
+  public synchronized Parameters writeNDJsonByResourceType(String filename, AtomicLong bytes)
+      throws IOException {
+    var fileNameByType = new HashMap<String, String>();
+    for (var entry : buffersByType.entrySet()) {
+      String typeFilename = String.format("%s-%s.ndjson", filename, entry.getKey());
+      fileNameByType.put(entry.getKey(), typeFilename);
+      try {
+        long written;
+        try (InputStream in = entry.getValue().openInputStream();
+            OutputStream out = new MappedNDJsonWriter(Path.of(typeFilename))) {
+          written = in.transferTo(out);
+        } catch (IOException e) {
+          System.out.println("Could not write " + typeFilename
+              + " through a mapped file, writing it again: " + e);
+          try (InputStream in = entry.getValue().openInputStream();
+              OutputStream out = newOutputStream(typeFilename)) {
+            written = in.transferTo(out);
+          }
+        }
+        bytes.addAndGet(written);
+      } catch (IOException | RuntimeException e) {
+        FhirResourceFactory.deleteIncomplete(Path.of(typeFilename));
+        throw e;
+      }
+    }
+    return FhirResourceFactory.createParameters(fileNameByType);
+  }
+
+  /**
+   * Writes a transaction bundle with a PUT request for each resource, assembled from the encoded
+   * bytes. The entries are grouped by resource type and written one per line.
+   *
+   * @param filename the file to write
+   */
+  public synchronized void writeTransactionBundle(String filename) throws IOException {
+    try (OutputStream out = newOutputStream(filename)) {
+      out.write(BUNDLE_START);
+      boolean first = true;
+      for (var entry : buffersByType.entrySet()) {
+        String resourceType = entry.getKey();
+        byte[] idPrefix = ("{\"resourceType\":\"" + resourceType + "\",\"id\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+        try (InputStream in = new BufferedInputStream(entry.getValue().openInputStream(),
+            FhirParserPool.BUFFER_SIZE)) {
+          var line = new ByteArrayOutputStream(8192);
+          while (readLine(in, line)) {
+            byte[] resource = line.toByteArray();
+            if (!first) {
+              out.write(ENTRY_SEPARATOR);
+            }
+            first = false;
+            out.write(ENTRY_START);
+            out.write(resource);
+            String id = idOf(resource, idPrefix);
+            String request = id == null
+                ? ",\"request\":{\"method\":\"POST\",\"url\":\"" + resourceType + "\"}}"
+                : ",\"request\":{\"method\":\"PUT\",\"url\":\"" + resourceType + "/" + id + "\"}}";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+          }
+        }
+      }
+      out.write(BUNDLE_END);
+    }
+  }
+
+  /**
+   * Reads the next line without its line break.
+   *
+   * @return false if the end of the stream was reached before any byte was read
+   */
+  private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+    line.reset();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        return true;
+      }
+      line.write(b);
+    }
+    return line.size() > 0;
+  }
+
+  /**
+   * Gets the id of an encoded resource. The parser always writes the id right after the resource
+   * type, so only the start of the resource is checked.
+   */
+  private static String idOf(byte[] resource, byte[] idPrefix) {
+    if (resource.length < idPrefix.length) {
+      return null;
+    }
+    for (int i = 0; i < idPrefix.length; i++) {
+      if (resource[i] != idPrefix[i]) {
+        return null;
+      }
+    }
+    int end = idPrefix.length;
+    while (end < resource.length && resource[end] != '"') {
+      end++;
+    }
+    return new String(resource, idPrefix.length, end - idPrefix.length, StandardCharsets.UTF_8);
+  }
+
+  private static OutputStream newOutputStream(String filename) throws IOException {
+    return new BufferedOutputStream(Files.newOutputStream(Path.of(filename)),
+        FhirParserPool.BUFFER_SIZE);
+  }
+
+  /**
+   * Deletes the spilled files and frees the buffers.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    for (SpillableByteBuffer buffer : buffersByType.values()) {
+      buffer.close();
+    }
+    buffersByType.clear();
+    countsByType.clear();
+    memoryBytes = 0;
+  }
+}
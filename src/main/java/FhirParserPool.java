@@ -0,0 +1,136 @@
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Provides the JSON parsers of the application. Each thread gets its own parser per output format
+ * and the parsers are configured once when they are created, so encoding from several threads is
+ * safe and the pretty printing of one writer never leaks into another. The parsers are not handed
+ * out to prevent callers from reconfiguring them.
+ */
+public final class FhirParserPool {
+
+  /**
+   * Size of the buffers between the encoder and the file.
+   */
+  public static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The output formats of the encoded resources.
+   */
+  public enum Format {
+    /**
+     * One resource per line without whitespace.
+     */
+    NDJSON(false),
+    /**
+     * Indented JSON, used for single resources and bundles.
+     */
+    PRETTY(true);
+
+    private final ThreadLocal<IParser> parsers;
+
+    Format(boolean prettyPrint) {
+      this.parsers = ThreadLocal.withInitial(
+          () -> SharedFhirContext.get().newJsonParser().setPrettyPrint(prettyPrint));
+    }
+  }
+
+  private static final ThreadLocal<ByteEncoder> BYTE_ENCODERS = ThreadLocal.withInitial(
+      ByteEncoder::new);
+
+  private FhirParserPool() {
+  }
+
+  /**
+   * Encodes a resource to a writer without building the encoded string first.
+   *
+   * @param resource the resource to encode
+   * @param format   the output format
+   * @param writer   the writer, see {@link #newWriter(OutputStream)}
+   */
+  public static void encode(IBaseResource resource, Format format, Writer writer)
+      throws IOException {
+    format.parsers.get().encodeResourceToWriter(resource, writer);
+  }
+
+  public static String encodeToString(IBaseResource resource, Format format) {
+    return format.parsers.get().encodeResourceToString(resource);
+  }
+
+  /**
+   * Encodes a resource to UTF-8 bytes, reusing the encoding buffer of the thread. If the encoding
+   * fails, the buffer is dropped, as its writer may still hold characters of the failed resource.
+   *
+   * @param resource the resource to encode
+   * @param format   the output format
+   * @return the encoded resource
+   */
+  public static byte[] encodeToBytes(IBaseResource resource, Format format) {
+    var encoder = BYTE_ENCODERS.get();
+    encoder.out.reset();
+    boolean encoded = false;
+    try {
+      encode(resource, format, encoder.writer);
+      encoder.writer.flush();
+      encoded = true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (!encoded) {
+        BYTE_ENCODERS.remove();
+      }
+    }
+    return encoder.out.toByteArray();
+  }
+
+  public static <T extends IBaseResource> T parse(Class<T> resourceType, String json) {
+    return Format.NDJSON.parsers.get().parseResource(resourceType, json);
+  }
+
+  public static <T extends IBaseResource> T parse(Class<T> resourceType, Reader reader) {
+    return Format.NDJSON.parsers.get().parseResource(resourceType, reader);
+  }
+
+  public static IBaseResource parse(String json) {
+    return Format.NDJSON.parsers.get().parseResource(json);
+  }
+
+  /**
+   * Creates a buffered UTF-8 writer on top of a stream.
+   *
+   * @param out the stream to write to
+   * @return the writer, closing it closes the stream
+   */
+  public static Writer newWriter(OutputStream out) {
+    return new BufferedWriter(new OutputStreamWriter(
+        new BufferedOutputStream(out, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a buffered UTF-8 writer that replaces the file.
+   *
+   * @param file the file to write
+   * @return the writer
+   */
+  public static Writer newWriter(Path file) throws IOException {
+    return newWriter(Files.newOutputStream(file));
+  }
+
+  private static class ByteEncoder {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    private final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+  }
+}
@@ -1,11 +1,16 @@
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
-import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.fhirpath.IFhirPath;
 import java.beans.IntrospectionException;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -13,35 +18,41 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.Condition;
-import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.Enumeration;
-import org.hl7.fhir.r4.model.MedicationAdministration;
-import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
-import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Reference;
-import org.hl7.fhir.r4.model.Resource;
-import org.hl7.fhir.r4.model.Specimen;
 import org.hl7.fhir.r4.model.UrlType;
 
 
 public class FhirResourceFactory {
 
-  private static final FhirContext ctx = FhirContext.forR4();
-  private static final IParser parser = ctx.newJsonParser().setPrettyPrint(true);
+  private static final FhirContext ctx = SharedFhirContext.get();
+
+  /**
+   * FHIRPath engine of the current thread for the shared FhirContext. Creating an engine costs
+   * far more than evaluating an expression, so it is not created per value function.
+   */
+  private static final ThreadLocal<IFhirPath> FHIR_PATH = ThreadLocal.withInitial(
+      () -> ctx.newFhirPath());
+
+  /**
+   * @return the FHIRPath engine of the current thread for the shared FhirContext
+   */
+  static IFhirPath fhirPathEngine() {
+    return FHIR_PATH.get();
+  }
 
   public static <T extends IBaseResource> IBaseResource createTestResource(
     Class<T> resourceType,
     String resourceToModifyPath)
     throws IOException, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
-      var json = new String(Files.readAllBytes(Paths.get(resourceToModifyPath)));
-      var resource = parser.parseResource(resourceType, json);
-      return resource;
+      var json = Files.readString(Paths.get(resourceToModifyPath), StandardCharsets.UTF_8);
+      return FhirParserPool.parse(resourceType, json);
     }
 
 
@@ -51,62 +62,67 @@ public class FhirResourceFactory {
       Class<T> resourceType,
       String resourceToModifyPath, HashMap<String, String> fhirPathToValueFunction)
       throws IOException, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
-    var json = new String(Files.readAllBytes(Paths.get(resourceToModifyPath)));
-    var resource = parser.parseResource(resourceType, json);
+    var json = Files.readString(Paths.get(resourceToModifyPath), StandardCharsets.UTF_8);
+    var resource = FhirParserPool.parse(resourceType, json);
     return modifyResource(ctx, resource, fhirPathToValueFunction);
   }
 
   public static void printResource(IBaseResource resource) {
     if (resource != null) {
-      System.out.println(parser.encodeResourceToString(resource));
+      System.out.println(FhirParserPool.encodeToString(resource, FhirParserPool.Format.PRETTY));
     } else {
       System.out.println("Resource is null");
     }
   }
 
+  /**
+   * Loads the templates used by {@link #createTestResourceFromBluePrint(HashMap)}.
+   *
+   * @param directory directory of the templates, the classpath is used if it does not exist
+   * @return the template registry
+   */
+  public static FhirTemplateRegistry loadTemplateRegistry(String directory) throws IOException {
+    return FhirTemplateRegistry.load(ctx, directory);
+  }
+
   public static List<IBaseResource> createTestResourceFromBluePrint(
       HashMap<String, String> bluePrint) {
-    String resourceName = BluePrintLoader.getResourceName(bluePrint);
-    try {
-      switch (resourceName) {
-        case "Condition":
-          return createModifiedTestResource(Condition.class,
-              "src/main/resources/FhirProfileToModify/DefaultCondition.json", bluePrint);
-        case "Consent":
-          return createModifiedTestResource(Consent.class,
-              "src/main/resources/FhirProfileToModify/DefaultConsent.json", bluePrint);
-        case "Observation":
-          if (bluePrint.containsKey("Observation.value as Quantity")) {
-            return createModifiedTestResource(Observation.class,
-                "src/main/resources/FhirProfileToModify/DefaultQuantityObservation.json",
-                bluePrint);
-          } else if (bluePrint.containsKey("(Observation.value as CodeableConcept).coding")) {
-            return createModifiedTestResource(Observation.class,
-                "src/main/resources/FhirProfileToModify/DefaultCodeableConceptObservation.json",
-                bluePrint);
-          }
-          break;
-        case "Procedure":
-          return createModifiedTestResource(Procedure.class,
-              "src/main/resources/FhirProfileToModify/DefaultProcedure.json", bluePrint);
-        case "Specimen":
-          return createModifiedTestResource(Specimen.class,
-              "src/main/resources/FhirProfileToModify/DefaultSpecimen.json", bluePrint);
-        case "Patient":
-          return createModifiedTestResource(org.hl7.fhir.r4.model.Patient.class,
-              "src/main/resources/FhirProfileToModify/DefaultPatient.json", bluePrint);
-        case "MedicationAdministration":
-          return createModifiedTestResource(MedicationAdministration.class,
-              "src/main/resources/FhirProfileToModify/DefaultMedicationAdministration.json",
-              bluePrint);
+    return DefaultCompiler.INSTANCE.compile(0, bluePrint)
+        .map(FhirResourceFactory::createTestResources).orElse(null);
+  }
 
-      }
-    } catch (IOException | InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
+  /**
+   * Creates the test resources of a compiled blueprint by modifying a copy of its template.
+   *
+   * @param bluePrint the compiled blueprint
+   * @return the modified resource and the resources it references
+   */
+  public static List<IBaseResource> createTestResources(CompiledBluePrint bluePrint) {
+    try {
+      return modifyResource(ctx, bluePrint.template().copy(), bluePrint.bluePrint());
+    } catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
       e.printStackTrace();
     }
     return null;
   }
 
+  /**
+   * Compiler over the templates of the default template directory, loaded on first use.
+   */
+  private static class DefaultCompiler {
+
+    private static final BluePrintCompiler INSTANCE = create();
+
+    private static BluePrintCompiler create() {
+      try {
+        return new BluePrintCompiler(
+            loadTemplateRegistry(FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
   /**
    * Modify the resource by setting the value of the fhirPath to the value returned by the
    * valueFunction.
@@ -120,6 +136,7 @@ public class FhirResourceFactory {
       HashMap<String, String> fhirPathToValueFunction)
       throws InvocationTargetException, NoSuchMethodException, IllegalAccessException {
     List<IBaseResource> resultingResources = new ArrayList<>();
+    var fhirPathEngine = ctx == FhirResourceFactory.ctx ? FHIR_PATH.get() : ctx.newFhirPath();
     for (var entry : fhirPathToValueFunction.entrySet()) {
       var fhirPath = entry.getKey();
       var valueFunction = entry.getValue();
@@ -127,35 +144,55 @@ public class FhirResourceFactory {
       if (result == null) {
         throw new IllegalArgumentException("Could not parse " + valueFunction);
       }
-      var valueType = result.return_type();
-      var value = result.result();
-
-      if (valueType == ResourceReferenceContainer.class) {
-        var extractedResources = extractResource(value).orElse(Collections.emptyList());
-        resultingResources.addAll(extractedResources);
-        value = ((ResourceReferenceContainer) value).reference();
-        valueType = Reference.class;
+      setValue(fhirPathEngine, resource, fhirPath, result.return_type(), result.result(),
+          resultingResources);
+    }
+    resultingResources.add((IBaseResource) resource);
+    return resultingResources;
+  }
+
+  /**
+   * Sets the value of a value function at the fhirPath of the resource. The resources a reference
+   * value comes with are added to the resulting resources.
+   *
+   * @param fhirPathEngine     FHIRPath engine
+   * @param resource           resource to modify
+   * @param fhirPath           fhirPath of the value
+   * @param valueType          return type of the value function
+   * @param value              value returned by the value function
+   * @param resultingResources the resources created for the resource
+   * @param <T>                type of resource
+   */
+  static <T extends IBase> void setValue(IFhirPath fhirPathEngine, T resource, String fhirPath,
+      Class<? extends IBase> valueType, Object value, List<IBaseResource> resultingResources)
+      throws InvocationTargetException, NoSuchMethodException, IllegalAccessException {
+    if (valueType == ResourceReferenceContainer.class) {
+      var extractedResources = extractResource(value).orElse(Collections.emptyList());
+      resultingResources.addAll(extractedResources);
+      var deferred = ((ResourceReferenceContainer) value).deferred();
+      if (deferred != null) {
+        DeferredReference.attach(resource, deferred);
       }
+      value = ((ResourceReferenceContainer) value).reference();
+      valueType = Reference.class;
+    }
 
-      try {
-        var evalResult = ctx.newFhirPath().evaluateFirst(resource, fhirPath, valueType);
-        Object finalValue = value;
-        evalResult.ifPresentOrElse(old_value -> FhirResourceFactory.updateObject(old_value,
-                finalValue),
-            () -> {
-              System.out.println("No value found for " + fhirPath);
+    try {
+      var evalResult = fhirPathEngine.evaluateFirst(resource, fhirPath, valueType);
+      Object finalValue = value;
+      evalResult.ifPresentOrElse(old_value -> FhirResourceFactory.updateObject(old_value,
+              finalValue),
+          () -> {
+            System.out.println("No value found for " + fhirPath);
 //              throw new RuntimeException("No value found for " + fhirPath);
-            });
-      } catch (FhirPathExecutionException e) {
-        if (fhirPath.endsWith(".status")) {
-          handleStatus(resource, fhirPath, value);
-        } else {
-          e.printStackTrace();
-        }
+          });
+    } catch (FhirPathExecutionException e) {
+      if (fhirPath.endsWith(".status")) {
+        handleStatus(resource, fhirPath, value);
+      } else {
+        e.printStackTrace();
       }
     }
-    resultingResources.add((IBaseResource) resource);
-    return resultingResources;
   }
 
   private static Optional<List<IBaseResource>> extractResource(Object value) {
@@ -195,7 +232,7 @@ public class FhirResourceFactory {
       var statusFactory = factoryConstructor.newInstance();
       var statusInstance = statusClassFactory.getMethod("fromCode", String.class)
           .invoke(statusFactory, value.toString());
-      var evalResult = ctx.newFhirPath().evaluateFirst(resource, fhirPath, Enumeration.class);
+      var evalResult = FHIR_PATH.get().evaluateFirst(resource, fhirPath, Enumeration.class);
       if (evalResult.isPresent()) {
         var method = resource.getClass().getMethod("setStatus", statusClass);
         method.invoke(resource, statusClass.cast(statusInstance));
@@ -241,37 +278,63 @@ public class FhirResourceFactory {
   }
 
   public static <T extends IBaseResource> void writeResource(T resource, String filename) {
-    try (FileWriter writer = new FileWriter(filename, false)) {
-      String encoded = parser.setPrettyPrint(true).encodeResourceToString(resource);
-      writer.write(encoded);
+    try (Writer writer = FhirParserPool.newWriter(Path.of(filename))) {
+      FhirParserPool.encode(resource, FhirParserPool.Format.PRETTY, writer);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  public static void writeNDJson(List<IBaseResource> resources, String filename) {
-    try (FileWriter writer = new FileWriter(filename, false)) {
-      for (IBaseResource resource : resources) {
-        Resource r = (Resource) resource;
-        parser.setPrettyPrint(false);
-        parser.encodeResourceToWriter(r, writer);
-        writer.append("\n");
+  /**
+   * Writes the resources as NDJSON through a {@link MappedNDJsonWriter}. If the mapped file can not
+   * be written or truncated, as on Windows while it is still mapped, the file is written again
+   * through a buffered stream. A file that could not be written completely is deleted.
+   *
+   * @return number of written bytes, 0 if the file could not be written
+   */
+  public static long writeNDJson(List<IBaseResource> resources, String filename) {
+    var file = Path.of(filename);
+    try {
+      var writer = new MappedNDJsonWriter(file);
+      try (writer) {
+        for (IBaseResource resource : resources) {
+          writer.write(resource);
+        }
+        return writer.bytes();
+      } catch (IOException e) {
+        System.out.println("Could not write " + filename
+            + " through a mapped file, writing it again: " + e);
       }
-    } catch (IOException e) {
+      long bytes = 0;
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file),
+          FhirParserPool.BUFFER_SIZE)) {
+        for (IBaseResource resource : resources) {
+          byte[] line = FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON);
+          out.write(line);
+          out.write('\n');
+          bytes += line.length + 1;
+        }
+      }
+      return bytes;
+    } catch (IOException | RuntimeException e) {
       e.printStackTrace();
+      deleteIncomplete(file);
+      return 0;
+    }
+  }
+
+  static void deleteIncomplete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      System.out.println("Could not delete the incomplete file " + file + ": " + e);
     }
   }
 
   public static Parameters createParameters(HashMap<String, String> fileNameByType) {
     List<ParametersParameterComponent> parameterList = new ArrayList<>();
     for (String resourceType : fileNameByType.keySet()) {
-      String typeFilename = String.format("%s", fileNameByType.get(resourceType));
-      String fileUrl = String.format("file:///%s", typeFilename);
-      ParametersParameterComponent parameter = new ParametersParameterComponent();
-      parameter.setName("source");
-      parameter.addPart().setName("resourceType").setValue(new CodeType(resourceType));
-      parameter.addPart().setName("url").setValue(new UrlType(fileUrl));
-      parameterList.add(parameter);
+      parameterList.add(createSourceParameter(resourceType, fileNameByType.get(resourceType)));
     }
     Parameters parameters = new Parameters();
     parameters.setParameter(parameterList);
@@ -279,8 +342,38 @@ public class FhirResourceFactory {
     return parameters;
   }
 
+  /**
+   * Creates the source parameter of a Pathling $import for a NDJSON file.
+   *
+   * @param resourceType type of the resources in the file
+   * @param filename     path of the file
+   * @return the source parameter
+   */
+  public static ParametersParameterComponent createSourceParameter(String resourceType,
+      String filename) {
+    String fileUrl = String.format("file:///%s", filename);
+    ParametersParameterComponent parameter = new ParametersParameterComponent();
+    parameter.setName("source");
+    parameter.addPart().setName("resourceType").setValue(new CodeType(resourceType));
+    parameter.addPart().setName("url").setValue(new UrlType(fileUrl));
+    return parameter;
+  }
+
   public static Parameters writeNDJsonByResourceType(List<IBaseResource> resources,
       String filename) {
+    return writeNDJsonByResourceType(resources, filename, new AtomicLong());
+  }
+
+  /**
+   * Writes one NDJSON file per resource type, see {@link #writeNDJson(List, String)}.
+   *
+   * @param resources the resources
+   * @param filename  prefix of the files, the resource type and ".ndjson" are appended
+   * @param bytes     incremented by the number of written bytes
+   * @return Parameters listing the files, see {@link #createParameters(HashMap)}
+   */
+  public static Parameters writeNDJsonByResourceType(List<IBaseResource> resources,
+      String filename, AtomicLong bytes) {
     Map<String, List<IBaseResource>> resourcesByType = new HashMap<>();
     for (IBaseResource resource : resources) {
       String resourceType = resource.fhirType();
@@ -294,7 +387,7 @@ public class FhirResourceFactory {
       String typeFilename = String.format("%s-%s.ndjson", filename, resourceType);
       fileNameByType.put(resourceType, typeFilename);
       List<IBaseResource> typeResources = resourcesByType.get(resourceType);
-      writeNDJson(typeResources, typeFilename);
+      bytes.addAndGet(writeNDJson(typeResources, typeFilename));
     }
     return createParameters(fileNameByType);
   }
@@ -0,0 +1,211 @@
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Registry of the FHIR resources that are modified to create test resources. Templates are indexed
+ * by their resource type and by the value[x] variant they carry, i.e. an Observation with a
+ * valueQuantity is registered as ("Observation", "Quantity").
+ */
+public class FhirTemplateRegistry {
+
+  /**
+   * Directory the templates are loaded from when no other directory is configured.
+   */
+  public static final String DEFAULT_TEMPLATE_DIRECTORY = "src/main/resources/FhirProfileToModify";
+
+  /**
+   * Classpath location of the templates, used when the template directory does not exist.
+   */
+  public static final String CLASSPATH_TEMPLATE_DIRECTORY = "FhirProfileToModify";
+
+  /**
+   * Variant key of templates without a value[x] element.
+   */
+  public static final String NO_VARIANT = "";
+
+  private static final Pattern VALUE_VARIANT_PATTERN = Pattern.compile(
+      "^\\(?\\w+\\.value as (\\w+)");
+
+  private final FhirContext ctx;
+  private final IParser parser;
+  private final Map<String, Map<String, Resource>> templatesByType = new LinkedHashMap<>();
+
+  public FhirTemplateRegistry(FhirContext ctx) {
+    this.ctx = ctx;
+    this.parser = ctx.newJsonParser();
+  }
+
+  /**
+   * Loads the templates from the given directory or, if it does not exist, from the classpath.
+   *
+   * @param ctx       FhirContext used to parse the templates
+   * @param directory directory containing one JSON resource per file
+   * @return a registry containing all templates found
+   */
+  public static FhirTemplateRegistry load(FhirContext ctx, String directory) throws IOException {
+    var registry = new FhirTemplateRegistry(ctx);
+    var path = Path.of(directory);
+    if (Files.isDirectory(path)) {
+      registry.registerDirectory(path);
+    } else {
+      registry.registerClasspathDirectory(CLASSPATH_TEMPLATE_DIRECTORY);
+    }
+    return registry;
+  }
+
+  /**
+   * Registers every JSON file of the directory as a template.
+   *
+   * @param directory directory containing one JSON resource per file
+   */
+  public void registerDirectory(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : files.filter(f -> f.toString().endsWith(".json")).sorted().toList()) {
+        registerFile(file);
+      }
+    }
+  }
+
+  /**
+   * Registers a JSON file as a template.
+   *
+   * @param file a JSON resource
+   * @return the registered template
+   */
+  public Resource registerFile(Path file) throws IOException {
+    var template = (Resource) parser.parseResource(Files.readString(file, StandardCharsets.UTF_8));
+    register(template);
+    return template;
+  }
+
+  /**
+   * Registers every JSON file of a classpath directory as a template. Works for exploded class
+   * directories as well as for jar files.
+   *
+   * @param directory classpath directory, i.e. "FhirProfileToModify"
+   */
+  public void registerClasspathDirectory(String directory) throws IOException {
+    URL url = FhirTemplateRegistry.class.getClassLoader().getResource(directory);
+    if (url == null) {
+      throw new IOException("No template directory found on the classpath: " + directory);
+    }
+    try {
+      URI uri = url.toURI();
+      if (uri.getScheme().equals("jar")) {
+        FileSystem fileSystem;
+        try {
+          fileSystem = FileSystems.getFileSystem(uri);
+        } catch (FileSystemNotFoundException e) {
+          fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap());
+        }
+        registerDirectory(fileSystem.getPath(directory));
+      } else {
+        registerDirectory(Path.of(uri));
+      }
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Registers a template under its resource type and value[x] variant. A later template with the
+   * same type and variant replaces the earlier one.
+   *
+   * @param template the resource to register
+   */
+  public void register(Resource template) {
+    templatesByType.computeIfAbsent(template.fhirType(), type -> new LinkedHashMap<>())
+        .put(valueVariant(template), template);
+  }
+
+  /**
+   * Resolves the template for a blueprint. The resource type is taken from the first key of the
+   * blueprint and the variant from a "X.value as Type" key, if there is one. A blueprint without
+   * such a key uses the template without variant or, if there is only one template for the type,
+   * that template.
+   *
+   * @param bluePrint map of fhirPath to value function
+   * @return the template or empty if no template is registered for the blueprint
+   */
+  public Optional<Resource> resolve(Map<String, String> bluePrint) {
+    var templates = templatesByType.get(BluePrintLoader.getResourceName(bluePrint));
+    if (templates == null) {
+      return Optional.empty();
+    }
+    var variant = valueVariant(bluePrint);
+    if (templates.containsKey(variant)) {
+      return Optional.of(templates.get(variant));
+    }
+    if (variant.equals(NO_VARIANT) && templates.size() == 1) {
+      return Optional.of(templates.values().iterator().next());
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @return the registered resource types
+   */
+  public List<String> resourceTypes() {
+    return List.copyOf(templatesByType.keySet());
+  }
+
+  /**
+   * @param resourceType the resource type
+   * @return the templates of the resource type by their value[x] variant
+   */
+  public Map<String, Resource> templates(String resourceType) {
+    return Collections.unmodifiableMap(templatesByType.getOrDefault(resourceType, new HashMap<>()));
+  }
+
+  /**
+   * Gets the value[x] variant of a blueprint from its "X.value as Type" key.
+   *
+   * @param bluePrint map of fhirPath to value function
+   * @return the type of the value, i.e. "Quantity", or {@link #NO_VARIANT}
+   */
+  public static String valueVariant(Map<String, String> bluePrint) {
+    for (String fhirPath : bluePrint.keySet()) {
+      Matcher matcher = VALUE_VARIANT_PATTERN.matcher(fhirPath);
+      if (matcher.find()) {
+        return matcher.group(1);
+      }
+    }
+    return NO_VARIANT;
+  }
+
+  /**
+   * @param template a template
+   * @return the type of its value[x] element or {@link #NO_VARIANT}
+   */
+  String valueVariant(Resource template) {
+    BaseRuntimeChildDefinition child = ctx.getResourceDefinition(template)
+        .getChildByName("value[x]");
+    if (child == null) {
+      return NO_VARIANT;
+    }
+    List<IBase> values = child.getAccessor().getValues(template);
+    return values.isEmpty() ? NO_VARIANT : values.get(0).fhirType();
+  }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Generates the units of a shard and passes the resources to the sinks. Every unit reseeds
+ * {@link GeneratorRandom} from the run seed and the unit key (blueprint index and instance), so a
+ * unit generates the same resources in every shard layout and the ids of different units never
+ * collide.
+ *
+ * <p>Consecutive units of the same blueprint are generated in blocks by a {@link BlockGenerator},
+ * which generates the same resources as generating the units one by one.
+ */
+public class GenerationRun {
+
+  private final List<CompiledBluePrint> bluePrints;
+  private final ShardPlan plan;
+  private final long seed;
+  private final int blockSize;
+  private final Map<CompiledBluePrint, BlockGenerator> blockGenerators =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+  // Blueprints whose block generation failed, they are generated unit by unit
+  private final Set<CompiledBluePrint> unitByUnit =
+      Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+  public GenerationRun(List<CompiledBluePrint> bluePrints, ShardPlan plan, long seed) {
+    this(bluePrints, plan, seed, BlockGenerator.DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param bluePrints the compiled blueprints
+   * @param plan       the units of the shard
+   * @param seed       the run seed
+   * @param blockSize  maximum number of units generated as a block, 1 generates unit by unit
+   */
+  public GenerationRun(List<CompiledBluePrint> bluePrints, ShardPlan plan, long seed,
+      int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("The block size must be at least 1");
+    }
+    if (plan.bluePrintCount() != bluePrints.size()) {
+      throw new IllegalArgumentException("The shard plan is for " + plan.bluePrintCount()
+          + " blueprints, got " + bluePrints.size());
+    }
+    this.bluePrints = bluePrints;
+    this.plan = plan;
+    this.seed = seed;
+    this.blockSize = blockSize;
+  }
+
+  public List<CompiledBluePrint> bluePrints() {
+    return bluePrints;
+  }
+
+  public ShardPlan plan() {
+    return plan;
+  }
+
+  public long seed() {
+    return seed;
+  }
+
+  public int blockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Generates all units of the shard.
+   *
+   * @param sinks the sinks receiving the generated resources, in order
+   * @return number of generated resources
+   */
+  public long run(List<? extends ResourceSink> sinks) throws IOException {
+    return run(plan.firstUnit(), plan.endUnit(), sinks);
+  }
+
+  /**
+   * Generates a range of units.
+   *
+   * @param firstUnit first unit to generate
+   * @param endUnit   unit after the last unit to generate
+   * @param sinks     the sinks receiving the generated resources, in order
+   * @return number of generated resources
+   */
+  public long run(long firstUnit, long endUnit, List<? extends ResourceSink> sinks)
+      throws IOException {
+    long count = 0;
+    for (long unit = firstUnit; unit < endUnit; ) {
+      int position = plan.bluePrintPosition(unit);
+      var bluePrint = bluePrints.get(position);
+      long blockEnd = Math.min(Math.min(endUnit, unit + blockSize),
+          (position + 1) * plan.instancesPerBluePrint());
+      for (List<IBaseResource> resources : generate(bluePrint, plan.instance(unit),
+          (int) (blockEnd - unit))) {
+        if (resources == null) {
+          continue;
+        }
+        for (ResourceSink sink : sinks) {
+          sink.accept(bluePrint, resources);
+        }
+        count += resources.size();
+      }
+      unit = blockEnd;
+    }
+    return count;
+  }
+
+  /**
+   * Generates consecutive instances of a blueprint as a block.
+   *
+   * @param bluePrint     the compiled blueprint
+   * @param firstInstance the first instance
+   * @param count         number of instances
+   * @return the generated resources of every instance, null for instances that failed
+   */
+  public List<List<IBaseResource>> generate(CompiledBluePrint bluePrint, long firstInstance,
+      int count) {
+    if (count > 1 && !unitByUnit.contains(bluePrint)) {
+      var block = new UnitBlock(seed,
+          bluePrint.index() * plan.instancesPerBluePrint() + firstInstance, count);
+      try {
+        return blockGenerators.computeIfAbsent(bluePrint, BlockGenerator::new).generate(block);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        // Generated unit by unit from now on, where a failure is handled as before
+        if (unitByUnit.add(bluePrint)) {
+          System.out.println("Could not generate blueprint " + bluePrint.index()
+              + " in blocks, generating it unit by unit: " + e);
+        }
+      }
+    }
+    List<List<IBaseResource>> generated = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      generated.add(generate(bluePrint, firstInstance + i));
+    }
+    return generated;
+  }
+
+  /**
+   * Generates one instance of a blueprint.
+   *
+   * @return the generated resources or null if the generation failed
+   */
+  public List<IBaseResource> generate(CompiledBluePrint bluePrint, long instance) {
+    GeneratorRandom.startUnit(seed,
+        bluePrint.index() * plan.instancesPerBluePrint() + instance);
+    try {
+      return FhirResourceFactory.createTestResources(bluePrint);
+    } finally {
+      GeneratorRandom.endUnit();
+      TemporalGenerator.endUnit();
+    }
+  }
+}
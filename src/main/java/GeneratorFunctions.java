@@ -1,22 +1,15 @@
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import com.github.javafaker.Faker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import java.math.BigInteger;
-import java.security.SecureRandom;
-import java.text.DecimalFormat;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -28,6 +21,7 @@ import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
@@ -52,12 +46,14 @@ import org.jetbrains.annotations.NotNull;
  */
 public class GeneratorFunctions {
 
-  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+  private static final String TERMINOLOGY_SERVER_URL =
+      "https://ontoserver.imi.uni-luebeck.de/fhir/";
 
-  private static final IGenericClient CLIENT = FHIR_CONTEXT.newRestfulGenericClient(
-      "https://ontoserver.imi.uni-luebeck.de/fhir/");
-
-  private static final Faker FAKER = new Faker(new Locale("de"));
+  /**
+   * Faker of the current thread, it draws from the random of {@link GeneratorRandom}.
+   */
+  private static final ThreadLocal<Faker> FAKER = ThreadLocal.withInitial(
+      () -> new Faker(new Locale("de"), GeneratorRandom.current()));
 
   /**
    * Cache for value set codes.
@@ -73,6 +69,15 @@ public class GeneratorFunctions {
         }
       });
 
+  private static final String CONSENT_POLICY_VALUE_SET =
+      "https://www.medizininformatik-initiative.de/fhir/fdpg/ValueSet/mii-vs-consent-policy";
+
+  /**
+   * Prototype of {@link #fullConsentProvision()}, replaced when the expansion in
+   * {@link #VALUE_SET_CODES_CACHE} is reloaded.
+   */
+  private static volatile ConsentProvisionPrototype consentProvisionPrototype;
+
 
   /**
    * Generates a random Patient.
@@ -87,7 +92,7 @@ public class GeneratorFunctions {
         "https://www.medizininformatik-initiative.de/fhir/core/modul-person/StructureDefinition/Patient"))));
     patient.setName(List.of(createHumanName("official", randomFamilyName(), randomGivenName())));
     patient.setGender(randomGender());
-    patient.setBirthDate(randomDate());
+    patient.setBirthDateElement(randomDate());
     patient.setAddress(
         List.of(createAddress(AddressType.PHYSICAL, List.of(randomStreetWithNumber()),
             randomCity(), null, randomCode("http://hl7.org/fhir/ValueSet/iso3166-1-2").getCode(),
@@ -99,6 +104,9 @@ public class GeneratorFunctions {
     identifier.setValue(randomGkvNumber());
     var org = randomOrganizationReference();
     identifier.setAssigner(org.reference());
+    if (org.deferred() != null) {
+      DeferredReference.attach(patient, org.deferred());
+    }
     resources = org.resources();
     patient.setIdentifier(List.of(identifier));
     resources = Stream.concat(resources.stream(), Stream.of(patient)).toList();
@@ -106,7 +114,7 @@ public class GeneratorFunctions {
   }
 
   public static String randomGkvNumber() {
-    var random = new Random();
+    var random = GeneratorRandom.current();
     var sb = new StringBuilder();
     for (int i = 0; i < 10; i++) {
       sb.append(random.nextInt(10));
@@ -116,7 +124,16 @@ public class GeneratorFunctions {
 
 
   public static IdType randomID() {
-    return new IdType(UUID.randomUUID().toString());
+    return new IdType(GeneratorRandom.nextUuid().toString());
+  }
+
+  /**
+   * Block variant of {@link #randomID()}.
+   */
+  static void randomIDs(UnitBlock block, Object[] values) {
+    for (int i = 0; i < block.size; i++) {
+      values[i] = new IdType(block.nextUuid(i).toString());
+    }
   }
 
   /**
@@ -126,12 +143,12 @@ public class GeneratorFunctions {
    */
   public static Organization randomOrganization() {
     Organization organization = new Organization();
-    organization.setId(UUID.randomUUID().toString());
-    organization.setName(FAKER.company().name());
+    organization.setId(GeneratorRandom.nextUuid().toString());
+    organization.setName(FAKER.get().company().name());
     Address address = new Address();
-    address.setCity(FAKER.address().city());
-    address.setPostalCode(FAKER.address().zipCode());
-    address.setCountry(FAKER.address().country());
+    address.setCity(FAKER.get().address().city());
+    address.setPostalCode(FAKER.get().address().zipCode());
+    address.setCountry(FAKER.get().address().country());
     organization.addAddress(address);
     return organization;
   }
@@ -159,7 +176,8 @@ public class GeneratorFunctions {
       version = valueSetUrl.split("\\|")[1];
       valueSetUrl = valueSetUrl.split("\\|")[0];
     }
-    ValueSetExpansionComponent expansion = CLIENT.operation().onType(ValueSet.class)
+    ValueSetExpansionComponent expansion = TerminologyClient.INSTANCE.operation()
+        .onType(ValueSet.class)
         .named("$expand")
         .withParameter(Parameters.class, "url", new StringType(valueSetUrl))
         .andParameter("version", new StringType(version))
@@ -178,55 +196,128 @@ public class GeneratorFunctions {
   public static Coding randomCoding(String valueSetUri) {
     var codes = VALUE_SET_CODES_CACHE.getUnchecked(valueSetUri);
     int numCodes = codes.size();
-    Random rand = new Random();
-    ValueSetExpansionContainsComponent chosen = codes.get(rand.nextInt(numCodes));
+    ValueSetExpansionContainsComponent chosen = codes.get(
+        GeneratorRandom.current().nextInt(numCodes));
+    return coding(chosen);
+  }
 
-    // Create a Coding object from the chosen code
+  private static Coding coding(ValueSetExpansionContainsComponent chosen) {
     Coding coding = new Coding();
     coding.setSystem(chosen.getSystem());
     coding.setCode(chosen.getCode());
     coding.setDisplay(chosen.getDisplay());
-
     return coding;
   }
 
   /**
-   * Generates a random Reference to a Patient.
+   * Block variant of {@link #randomCoding(String)}, the indices of the codes of all units are drawn
+   * before the Codings are created.
+   *
+   * @param block       the units
+   * @param valueSetUri the value set to choose the codes from
+   * @param values      the Codings, by unit
+   */
+  static void randomCodings(UnitBlock block, String valueSetUri, Object[] values) {
+    var codes = VALUE_SET_CODES_CACHE.getUnchecked(valueSetUri);
+    int numCodes = codes.size();
+    int[] indices = new int[block.size];
+    for (int i = 0; i < block.size; i++) {
+      indices[i] = block.nextInt(i, numCodes);
+    }
+    for (int i = 0; i < block.size; i++) {
+      values[i] = coding(codes.get(indices[i]));
+    }
+  }
+
+  /**
+   * Block variant of {@link #randomCode(String)}.
+   */
+  static void randomCodes(UnitBlock block, String valueSet, Object[] values) {
+    randomCodings(block, valueSet, values);
+    for (int i = 0; i < block.size; i++) {
+      values[i] = new CodeType(((Coding) values[i]).getCode());
+    }
+  }
+
+  /**
+   * Generates the Patient of a {@link DeferredReference}. Its birth date is derived from its id,
+   * so the timeline of the referencing resource can start at it before the Patient exists.
+   *
+   * @param id the id of the Patient
+   * @return the Patient and the resources it references, the Patient last
+   */
+  static List<IBaseResource> deferredPatient(UUID id) {
+    var resources = randomPatient();
+    ((Patient) resources.get(resources.size() - 1)).setBirthDateElement(deferredBirthDate(id));
+    return resources;
+  }
+
+  private static DateType deferredBirthDate(UUID patientId) {
+    long span = TemporalGenerator.timelineEnd() - TemporalGenerator.EARLIEST_EPOCH_SECOND;
+    return TemporalGenerator.date(TemporalGenerator.EARLIEST_EPOCH_SECOND
+        + Math.floorMod(GeneratorRandom.derivedSeed(patientId), span));
+  }
+
+  /**
+   * Generates a random Reference to a Patient. Inside a {@link PatientCompartment} the patient of
+   * the compartment is referenced instead. If {@link DeferredReference}s are enabled, the Patient
+   * is generated by the output stage.
    *
    * @return a random Reference to a Patient
    */
   public static ResourceReferenceContainer randomPatientReference() {
+    var compartmentPatient = PatientCompartment.patientReference();
+    if (compartmentPatient != null) {
+      return ResourceReferenceContainer.of(List.of(), compartmentPatient);
+    }
+    if (DeferredReference.isEnabled()) {
+      var deferred = DeferredReference.create(DeferredReference.Target.PATIENT);
+      TemporalGenerator.startUnitTimeline(deferredBirthDate(deferred.id()));
+      return ResourceReferenceContainer.of(deferred);
+    }
     List<IBaseResource> resources = randomPatient();
     Reference reference = new Reference();
     for (IBaseResource resource : resources) {
       if (resource instanceof Patient) {
         reference.setReference("Patient/" + resource.getIdElement().getIdPart());
         reference.setDisplay(((Patient) resource).getNameFirstRep().getNameAsSingleString());
+        TemporalGenerator.startUnitTimeline(((Patient) resource).getBirthDateElement());
       }
     }
     return ResourceReferenceContainer.of(resources, reference);
   }
 
   /**
-   * Generates a random DateTimeType.
+   * Generates a random DateTimeType on the timeline of the current patient, see
+   * {@link TemporalGenerator}.
    *
    * @return a random DateTimeType
    */
   public static DateTimeType randomDateTime() {
-    Instant now = Instant.now();
-    long minDay = Instant.parse("2000-01-01T00:00:00.00Z").getEpochSecond();
-    long maxDay = now.getEpochSecond();
-    long randomDay = minDay + (long) (Math.random() * (maxDay - minDay));
-    return new DateTimeType(Date.from(Instant.ofEpochSecond(randomDay)));
+    return TemporalGenerator.dateTime(TemporalGenerator.randomEpochSecond());
   }
 
+  /**
+   * Block variant of {@link #randomDateTime()}, the times of all units are drawn as epoch seconds
+   * before the DateTimeTypes are created.
+   */
+  static void randomDateTimes(UnitBlock block, Object[] values) {
+    long[] epochSeconds = new long[block.size];
+    TemporalGenerator.randomEpochSeconds(block, epochSeconds);
+    for (int i = 0; i < block.size; i++) {
+      values[i] = TemporalGenerator.dateTime(epochSeconds[i]);
+    }
+  }
 
-  public static Date randomDate() {
-    Instant now = Instant.now();
-    long minDay = Instant.parse("2000-01-01T00:00:00.00Z").getEpochSecond();
-    long maxDay = now.getEpochSecond();
-    long randomDay = minDay + (long) (Math.random() * (maxDay - minDay));
-    return Date.from(Instant.ofEpochSecond(randomDay));
+  /**
+   * Generates a random date between 2000 and the reference time, i.e. a birth date. The day is
+   * taken in {@link TemporalGenerator#TIME_ZONE}, not in the default time zone of the JVM.
+   *
+   * @return a random DateType
+   */
+  public static DateType randomDate() {
+    return TemporalGenerator.date(TemporalGenerator.randomEpochSecond(
+        TemporalGenerator.EARLIEST_EPOCH_SECOND, TemporalGenerator.timelineEnd()));
   }
 
   /**
@@ -238,6 +329,7 @@ public class GeneratorFunctions {
    * @param display the display of the coding
    * @return a Coding based on the given parameters
    */
+  @Pure
   public static Coding fixedCoding(String system, String code, String version,
       String display) {
     Coding coding = new Coding();
@@ -248,41 +340,29 @@ public class GeneratorFunctions {
     return coding;
   }
 
+  @Pure
   public static CodeType fixedCode(String value) {
     return new CodeType(value);
   }
 
+  @Pure
   public static UriType fixedURI(String value) {
     return new UriType(value);
   }
 
+  @Pure
   public static CanonicalType fixedCanonical(String value) {
     return new CanonicalType(value);
   }
 
   /**
-   * Generates a random Period.
+   * Generates a random Period on the timeline of the current patient, see
+   * {@link TemporalGenerator#randomPeriod()}.
    *
    * @return a random Period
    */
   public static Period randomPeriod() {
-    LocalDateTime startDate = LocalDateTime.of(2000, 1, 1, 0, 0);
-    LocalDateTime endDate = LocalDateTime.now();
-    long startMillis = startDate.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-    long endMillis = endDate.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-    long randomMillis = ThreadLocalRandom.current().nextLong(startMillis, endMillis);
-    LocalDateTime randomDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(randomMillis),
-        ZoneId.systemDefault());
-
-    Period period = new Period();
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
-    String randomStartString = randomDateTime.format(formatter) + "+01:00";
-    period.setStartElement(new DateTimeType(randomStartString));
-    LocalDateTime randomEndDateTime = randomDateTime.plusDays(
-        ThreadLocalRandom.current().nextInt(1, 365));
-    String randomEndString = randomEndDateTime.format(formatter) + "+01:00";
-    period.setEndElement(new DateTimeType(randomEndString));
-    return period;
+    return TemporalGenerator.randomPeriod();
   }
 
   /**
@@ -291,23 +371,55 @@ public class GeneratorFunctions {
    * @return a random Identifier code value
    */
   public static StringType randomIdentifierCodeValue() {
-    SecureRandom random = new SecureRandom();
-    String randomString = new BigInteger(50, random).toString(32);
+    String randomString = new BigInteger(50, GeneratorRandom.current()).toString(32);
     return new StringType(randomString.substring(0, 5));
   }
 
+  /**
+   * Block variant of {@link #randomIdentifierCodeValue()}. The 50 random bits of every unit are
+   * drawn as BigInteger(50, random) draws them: Random.nextBytes fills 7 bytes from two ints,
+   * lowest byte first, and BigInteger reads them big-endian without the 6 excess bits.
+   */
+  static void randomIdentifierCodeValues(UnitBlock block, Object[] values) {
+    long[] bits = new long[block.size];
+    for (int i = 0; i < block.size; i++) {
+      long first = block.nextInt(i) & 0xFFFFFFFFL;
+      long second = block.nextInt(i) & 0xFFFFFFFFL;
+      bits[i] = (first & 0x03) << 48 | (first >>> 8 & 0xFF) << 40 | (first >>> 16 & 0xFF) << 32
+          | (first >>> 24) << 24 | (second & 0xFF) << 16 | (second >>> 8 & 0xFF) << 8
+          | (second >>> 16 & 0xFF);
+    }
+    for (int i = 0; i < block.size; i++) {
+      values[i] = new StringType(Long.toString(bits[i], 32).substring(0, 5));
+    }
+  }
+
   public static UriType randomIdentifierSystemURI() {
     UriType uri = new UriType();
-    uri.setValue("urn:uuid:" + UUID.randomUUID());
+    uri.setValue("urn:uuid:" + GeneratorRandom.nextUuid());
     return uri;
   }
 
   /**
-   * Generates a random Reference to an Organization.
+   * Block variant of {@link #randomIdentifierSystemURI()}.
+   */
+  static void randomIdentifierSystemURIs(UnitBlock block, Object[] values) {
+    for (int i = 0; i < block.size; i++) {
+      values[i] = new UriType("urn:uuid:" + block.nextUuid(i));
+    }
+  }
+
+  /**
+   * Generates a random Reference to an Organization. If {@link DeferredReference}s are enabled,
+   * the Organization is generated by the output stage.
    *
    * @return a random Reference to an Organization
    */
   public static ResourceReferenceContainer randomOrganizationReference() {
+    if (DeferredReference.isEnabled()) {
+      return ResourceReferenceContainer.of(
+          DeferredReference.create(DeferredReference.Target.ORGANIZATION));
+    }
     var organization = randomOrganization();
     Reference reference = new Reference();
     reference.setReference("Organization/" + organization.getIdElement().getIdPart());
@@ -317,7 +429,7 @@ public class GeneratorFunctions {
 
   public static Medication randomMedication() {
     Medication medication = new Medication();
-    medication.setId(UUID.randomUUID().toString());
+    medication.setId(GeneratorRandom.nextUuid().toString());
     medication.setCode(
         new CodeableConcept().addCoding(randomCoding("http://fhir.de/ValueSet/bfarm/atc")));
     medication.setStatus(Medication.MedicationStatus.ACTIVE);
@@ -325,6 +437,10 @@ public class GeneratorFunctions {
   }
 
   public static ResourceReferenceContainer randomMedicationReference() {
+    if (DeferredReference.isEnabled()) {
+      return ResourceReferenceContainer.of(
+          DeferredReference.create(DeferredReference.Target.MEDICATION));
+    }
     var medication = randomMedication();
     Reference reference = new Reference();
     reference.setReference("Medication/" + medication.getIdElement().getIdPart());
@@ -333,38 +449,39 @@ public class GeneratorFunctions {
   }
 
   /**
-   * Generates a random Quantity. If the value is null, a random value between -100 and 100 is
-   * generated. If the comparator is not null, the value is adjusted to be within the comparator
-   * range.
+   * Generates a random Quantity, see
+   * {@link #randomQuantity(String, String, String, String, String, String)}.
+   */
+  public static Quantity randomQuantity(String value, String unit, String system, String code,
+      String comparator) {
+    return randomQuantity(value, unit, system, code, comparator, null);
+  }
+
+  /**
+   * Generates a random Quantity. If the value is null, it is drawn from the distribution of the
+   * LOINC code or the unit code in {@link QuantityDistributions}. If the comparator is not null,
+   * the value is replaced by a value of the distribution that satisfies the comparator against it.
    *
    * @param value      the value of the quantity
    * @param unit       the unit of the quantity
    * @param system     the system of the quantity
    * @param code       the code of the quantity
    * @param comparator the comparator of the quantity
+   * @param loincCode  the LOINC code of the observation, selects the distribution of the value
    * @return a random Quantity
    */
   public static Quantity randomQuantity(String value, String unit, String system, String code,
-      String comparator) {
-    DecimalFormat decimalFormat = new DecimalFormat("#,##");
-    Quantity quantity = new Quantity();
-    if (value == null) {
-      double randomValue = ThreadLocalRandom.current().nextDouble(-100, 100);
-      quantity.setValue(Double.parseDouble(decimalFormat.format(randomValue)));
-    } else {
-      quantity.setValue(Double.parseDouble(decimalFormat.format(Double.parseDouble(value))));
-    }
-    if (comparator != null && quantity.getValue() != null) {
-      if (comparator.equals("<")) {
-        double upperBound = Double.parseDouble(String.valueOf(quantity.getValue())) - 1;
-        double randomValue = ThreadLocalRandom.current().nextDouble(-100, upperBound);
-        quantity.setValue(Double.parseDouble(decimalFormat.format(randomValue)));
-      } else if (comparator.equals(">")) {
-        double lowerBound = Double.parseDouble(String.valueOf(quantity.getValue())) + 1;
-        double randomValue = ThreadLocalRandom.current().nextDouble(lowerBound, 100);
-        quantity.setValue(Double.parseDouble(decimalFormat.format(randomValue)));
-      }
+      String comparator, String loincCode) {
+    var distribution = QuantityDistributions.current().find(loincCode,
+        code != null ? code : unit);
+    var random = GeneratorRandom.current();
+    double number = value == null ? distribution.sample(random)
+        : distribution.round(Double.parseDouble(value));
+    if (comparator != null) {
+      number = distribution.sample(random, comparator, number);
     }
+    Quantity quantity = new Quantity();
+    quantity.setValue(number);
     quantity.setUnit(unit);
     quantity.setSystem(system);
     quantity.setCode(code);
@@ -403,7 +520,7 @@ public class GeneratorFunctions {
    * @return a random Street Address with a number
    */
   public static String randomStreetWithNumber() {
-    return FAKER.address().streetAddress();
+    return FAKER.get().address().streetAddress();
   }
 
   /**
@@ -412,7 +529,7 @@ public class GeneratorFunctions {
    * @return a random City
    */
   public static String randomCity() {
-    return FAKER.address().city();
+    return FAKER.get().address().city();
   }
 
   /**
@@ -421,7 +538,7 @@ public class GeneratorFunctions {
    * @return a random State
    */
   public static String randomState() {
-    return FAKER.address().state();
+    return FAKER.get().address().state();
   }
 
   /**
@@ -430,7 +547,7 @@ public class GeneratorFunctions {
    * @return a random Postal Code
    */
   public static String randomPostalCode() {
-    return FAKER.address().zipCode();
+    return FAKER.get().address().zipCode();
   }
 
   /**
@@ -439,7 +556,7 @@ public class GeneratorFunctions {
    * @return a random Family Name
    */
   public static String randomFamilyName() {
-    return FAKER.name().lastName();
+    return FAKER.get().name().lastName();
   }
 
   /**
@@ -448,11 +565,11 @@ public class GeneratorFunctions {
    * @return a random Given Name
    */
   public static String randomGivenName() {
-    return FAKER.name().firstName();
+    return FAKER.get().name().firstName();
   }
 
   public static String randomURI() {
-    return "http://example.com/" + UUID.randomUUID();
+    return "http://example.com/" + GeneratorRandom.nextUuid();
   }
 
   /**
@@ -478,23 +595,53 @@ public class GeneratorFunctions {
    * @return a Consent Provision with full compliance
    */
   public static Consent.provisionComponent fullConsentProvision() {
-    var consentProvision = new Consent.provisionComponent();
-    consentProvision.setType(Consent.ConsentProvisionType.fromCode(fixedCode("deny").toString()));
+    return fullConsentProvision(VALUE_SET_CODES_CACHE.getUnchecked(CONSENT_POLICY_VALUE_SET));
+  }
+
+  /**
+   * Generates a Consent Provision denying everything but the given policies. The provision tree
+   * is copied from a prototype built once per expansion, only the periods are random.
+   *
+   * @param policies the expansion of the consent policy value set
+   * @return a Consent Provision with a permit provision for every policy
+   */
+  static Consent.provisionComponent fullConsentProvision(
+      List<ValueSetExpansionContainsComponent> policies) {
+    var prototype = consentProvisionPrototype;
+    if (prototype == null || prototype.policies() != policies) {
+      prototype = new ConsentProvisionPrototype(policies, consentProvisionTree(policies));
+      consentProvisionPrototype = prototype;
+    }
+    var consentProvision = prototype.provision().copy();
     consentProvision.setPeriod(randomPeriod());
-    var provisions = allCoding(
-        "https://www.medizininformatik-initiative.de/fhir/fdpg/ValueSet/mii-vs-consent-policy")
-        .stream().map(coding -> {
-          var sub_provision = new Consent.provisionComponent().setCode(
-              List.of(new CodeableConcept().addCoding(coding)));
-          sub_provision.setPeriod(randomPeriod());
-          sub_provision.setType(
-              Consent.ConsentProvisionType.fromCode(fixedCode("permit").toString()));
-          return sub_provision;
-        }).toList();
-    consentProvision.setProvision(provisions);
+    for (var subProvision : consentProvision.getProvision()) {
+      subProvision.setPeriod(randomPeriod());
+    }
     return consentProvision;
   }
 
+  private static Consent.provisionComponent consentProvisionTree(
+      List<ValueSetExpansionContainsComponent> policies) {
+    var consentProvision = new Consent.provisionComponent();
+    consentProvision.setType(Consent.ConsentProvisionType.DENY);
+    for (var policy : policies) {
+      var coding = new Coding(policy.getSystem(), policy.getCode(), policy.getDisplay());
+      consentProvision.addProvision()
+          .setType(Consent.ConsentProvisionType.PERMIT)
+          .addCode(new CodeableConcept().addCoding(coding));
+    }
+    return consentProvision;
+  }
+
+  /**
+   * The provision tree of {@link #fullConsentProvision()} without periods, with the expansion it
+   * was built from.
+   */
+  private record ConsentProvisionPrototype(List<ValueSetExpansionContainsComponent> policies,
+                                           Consent.provisionComponent provision) {
+
+  }
+
   public static HumanName createHumanName(String use, String family, String given) {
     HumanName humanName = new HumanName();
     humanName.setUse(HumanName.NameUse.fromCode(use));
@@ -508,7 +655,7 @@ public class GeneratorFunctions {
   }
 
   public static <T extends Enum<?>> T getRandomEnum(Class<T> clazz) {
-    Random random = new Random();
+    Random random = GeneratorRandom.current();
     int x = random.nextInt(clazz.getEnumConstants().length);
     T randomEnum = clazz.getEnumConstants()[x];
     while (randomEnum == null) {
@@ -517,4 +664,22 @@ public class GeneratorFunctions {
     }
     return randomEnum;
   }
+
+  /**
+   * Client of the terminology server. Created on the first ValueSet expansion, so blueprints that
+   * only use fixed values never set up a REST client.
+   */
+  private static class TerminologyClient {
+
+    private static final IGenericClient INSTANCE = create();
+
+    private static IGenericClient create() {
+      // A client factory of its own, the factory of the shared FhirContext keeps validating the
+      // servers of other clients. $expand is called directly, fetching the server metadata first
+      // only adds a round trip.
+      var clientFactory = new ApacheRestfulClientFactory(SharedFhirContext.get());
+      clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+      return clientFactory.newGenericClient(TERMINOLOGY_SERVER_URL);
+    }
+  }
 }
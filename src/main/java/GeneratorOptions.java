@@ -0,0 +1,57 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the {@link Application} given as --name=value. An option without a value
+ * (--name) is set to "true".
+ */
+public class GeneratorOptions {
+
+  private final Map<String, String> values;
+
+  private GeneratorOptions(Map<String, String> values) {
+    this.values = values;
+  }
+
+  /**
+   * Parses the command line arguments.
+   *
+   * @param args arguments in the form --name=value or --name
+   * @return the parsed options
+   */
+  public static GeneratorOptions parse(String... args) {
+    Map<String, String> values = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || arg.length() == 2) {
+        throw new IllegalArgumentException("Invalid option " + arg + ", expected --name=value");
+      }
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        values.put(arg.substring(2), "true");
+      } else {
+        values.put(arg.substring(2, separator), arg.substring(separator + 1));
+      }
+    }
+    return new GeneratorOptions(values);
+  }
+
+  public boolean has(String name) {
+    return values.containsKey(name);
+  }
+
+  public String get(String name, String defaultValue) {
+    return values.getOrDefault(name, defaultValue);
+  }
+
+  public int getInt(String name, int defaultValue) {
+    return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+  }
+
+  public long getLong(String name, long defaultValue) {
+    return values.containsKey(name) ? Long.parseLong(values.get(name)) : defaultValue;
+  }
+
+  public boolean getBoolean(String name) {
+    return Boolean.parseBoolean(values.getOrDefault(name, "false"));
+  }
+}
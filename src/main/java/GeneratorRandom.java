@@ -0,0 +1,275 @@
+import java.io.Serial;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Source of the random values and ids of the {@link GeneratorFunctions}. Each thread has its own
+ * random, which a generation run reseeds at the start of every work unit from the run seed and the
+ * unit key. A unit therefore generates the same values and ids no matter which thread, shard or
+ * node generates it.
+ *
+ * <p>Ids are UUIDs whose lower half holds the unit key and a sequence number within the unit, so
+ * ids of different units never collide. Outside of a unit, ids are random UUIDs.
+ *
+ * <p>The target of a {@link DeferredReference} is generated in a unit derived from its id. Its
+ * random and ids only depend on that id, the ids are hashes and as unlikely to collide as random
+ * UUIDs. The derived unit keeps the run seed, so the targets it references are drawn from the
+ * pools of the run.
+ *
+ * <p>The random is a {@link java.util.Random} whose state can be saved and restored, so a
+ * {@link UnitBlock} can interleave the units it generates.
+ */
+public final class GeneratorRandom {
+
+  /**
+   * Units keys must be below this bound to fit into the lower half of an id.
+   */
+  public static final long MAX_UNIT_KEY = 1L << 46;
+
+  private static final int MAX_IDS_PER_UNIT = 1 << 16;
+
+  private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+  private static volatile Instant referenceTime = Instant.now().truncatedTo(ChronoUnit.DAYS);
+
+  private GeneratorRandom() {
+  }
+
+  /**
+   * @return the random of the current thread
+   */
+  public static Random current() {
+    return STATE.get().random;
+  }
+
+  /**
+   * Starts a work unit on the current thread: reseeds the random and resets the id sequence.
+   *
+   * @param runSeed seed shared by all shards of a run
+   * @param unitKey key of the unit, unique within the run
+   */
+  public static void startUnit(long runSeed, long unitKey) {
+    if (unitKey < 0 || unitKey >= MAX_UNIT_KEY) {
+      throw new IllegalArgumentException("Unit key out of range: " + unitKey);
+    }
+    var state = STATE.get();
+    state.random.setSeed(mix(runSeed ^ mix(unitKey)));
+    state.runSeed = runSeed;
+    state.unitKey = unitKey;
+    state.derived = false;
+    state.sequence = 0;
+  }
+
+  /**
+   * Starts a unit on the current thread whose random and ids are derived from an id, i.e. the id
+   * of the target of a {@link DeferredReference}.
+   *
+   * @param id the id the unit is derived from
+   */
+  public static void startDerivedUnit(UUID id) {
+    var state = STATE.get();
+    long seed = derivedSeed(id);
+    state.random.setSeed(seed);
+    state.derivedSeed = seed;
+    state.unitKey = 0;
+    state.derived = true;
+    state.sequence = 0;
+  }
+
+  /**
+   * @param id an id
+   * @return the seed of the unit derived from the id
+   */
+  public static long derivedSeed(UUID id) {
+    return mix(id.getMostSignificantBits() ^ mix(id.getLeastSignificantBits()));
+  }
+
+  /**
+   * Ends the work unit of the current thread, later ids are random UUIDs again.
+   */
+  public static void endUnit() {
+    STATE.get().unitKey = -1;
+  }
+
+  /**
+   * Moves the state of the current thread's unit to unit i of a block.
+   */
+  static void save(UnitBlock block, int i) {
+    var state = STATE.get();
+    block.seeds[i] = state.random.seed;
+    block.nextGaussians[i] = state.random.haveNextNextGaussian
+        ? state.random.nextNextGaussian : Double.NaN;
+    block.sequences[i] = state.sequence;
+  }
+
+  /**
+   * Continues unit i of a block on the current thread.
+   */
+  static void restore(UnitBlock block, int i) {
+    var state = STATE.get();
+    state.random.seed = block.seeds[i];
+    state.random.haveNextNextGaussian = !Double.isNaN(block.nextGaussians[i]);
+    state.random.nextNextGaussian = block.nextGaussians[i];
+    state.runSeed = block.runSeed;
+    state.unitKey = block.unitKey(i);
+    state.derived = false;
+    state.sequence = block.sequences[i];
+  }
+
+  /**
+   * @param runSeed seed shared by all shards of a run
+   * @param unitKey key of the unit
+   * @return the state of the random at the start of the unit, see {@link #startUnit(long, long)}
+   */
+  static long initialSeed(long runSeed, long unitKey) {
+    return UnitRandom.scramble(mix(runSeed ^ mix(unitKey)));
+  }
+
+  /**
+   * @param runSeed  seed shared by all shards of a run
+   * @param unitKey  key of the unit
+   * @param sequence number of the id within the unit
+   * @return the id {@link #nextUuid()} returns in a unit that is not derived
+   */
+  static UUID uuid(long runSeed, long unitKey, int sequence) {
+    if (sequence >= MAX_IDS_PER_UNIT) {
+      throw new IllegalStateException("More than " + MAX_IDS_PER_UNIT + " ids in unit "
+          + unitKey);
+    }
+    long counter = (unitKey << 16) | sequence;
+    // version 4 and IETF variant bits, the rest of the upper half only makes the ids look random
+    long mostSignificantBits = (mix(runSeed ^ mix(counter)) & ~0xF000L) | 0x4000L;
+    long leastSignificantBits = counter | 0x8000000000000000L;
+    return new UUID(mostSignificantBits, leastSignificantBits);
+  }
+
+  /**
+   * @return the next id of the current unit or a random UUID outside of a unit
+   */
+  public static UUID nextUuid() {
+    var state = STATE.get();
+    if (state.unitKey < 0) {
+      return UUID.randomUUID();
+    }
+    if (state.derived) {
+      if (state.sequence == MAX_IDS_PER_UNIT) {
+        throw new IllegalStateException("More than " + MAX_IDS_PER_UNIT + " ids in unit "
+            + state.unitKey);
+      }
+      long sequence = state.sequence++;
+      return new UUID((mix(state.derivedSeed ^ mix(sequence)) & ~0xF000L) | 0x4000L,
+          (mix(mix(state.derivedSeed) + sequence) & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+    }
+    return uuid(state.runSeed, state.unitKey, state.sequence++);
+  }
+
+  /**
+   * Draws one of a bounded pool of ids that all units of a run share, i.e. the ids of the targets
+   * of {@link DeferredReference}s. The ids are hashes of the run seed, the pool and the drawn
+   * index, so every shard of a run draws from the same ids, also inside the derived units of the
+   * targets. Outside of a unit the id is a random UUID.
+   *
+   * @param pool     number of the pool
+   * @param poolSize number of ids of the pool
+   * @return the drawn id
+   */
+  public static UUID pooledUuid(int pool, int poolSize) {
+    var state = STATE.get();
+    if (state.unitKey < 0) {
+      return UUID.randomUUID();
+    }
+    long key = mix(((long) pool << 32 | state.random.nextInt(poolSize)) ^ ~state.runSeed);
+    return new UUID((mix(key) & ~0xF000L) | 0x4000L,
+        (mix(key + state.runSeed) & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+  }
+
+  /**
+   * The upper bound of generated dates. Defaults to the start of the current UTC day, so shards
+   * started at different times of the same day generate the same dates.
+   *
+   * @return the reference time of the run
+   */
+  public static Instant referenceTime() {
+    return referenceTime;
+  }
+
+  public static void setReferenceTime(Instant time) {
+    referenceTime = time;
+  }
+
+  /**
+   * SplitMix64 finalizer, spreads consecutive seeds over the whole long range.
+   */
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * The random of java.util.Random, the same values for the same seed, with a state that can be
+   * read and written.
+   */
+  static final class UnitRandom extends Random {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    static final long MULTIPLIER = 0x5DEECE66DL;
+    static final long ADDEND = 0xBL;
+    static final long MASK = (1L << 48) - 1;
+
+    private long seed;
+    private boolean haveNextNextGaussian;
+    private double nextNextGaussian;
+
+    static long scramble(long seed) {
+      return (seed ^ MULTIPLIER) & MASK;
+    }
+
+    @Override
+    public void setSeed(long seed) {
+      this.seed = scramble(seed);
+      this.haveNextNextGaussian = false;
+    }
+
+    @Override
+    protected int next(int bits) {
+      seed = (seed * MULTIPLIER + ADDEND) & MASK;
+      return (int) (seed >>> (48 - bits));
+    }
+
+    @Override
+    public double nextGaussian() {
+      if (haveNextNextGaussian) {
+        haveNextNextGaussian = false;
+        return nextNextGaussian;
+      }
+      double v1;
+      double v2;
+      double s;
+      do {
+        v1 = 2 * nextDouble() - 1;
+        v2 = 2 * nextDouble() - 1;
+        s = v1 * v1 + v2 * v2;
+      } while (s >= 1 || s == 0);
+      double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+      nextNextGaussian = v2 * multiplier;
+      haveNextNextGaussian = true;
+      return v1 * multiplier;
+    }
+  }
+
+  private static class State {
+
+    private final UnitRandom random = new UnitRandom();
+    // The seed of the run, kept in derived units
+    private long runSeed;
+    private long derivedSeed;
+    private long unitKey = -1;
+    private boolean derived;
+    private int sequence;
+  }
+}
@@ -0,0 +1,152 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A set of resource ids. Ids that are UUIDs in lower case, as {@link GeneratorRandom#nextUuid()}
+ * generates them, are packed into two longs of an open addressing table, at most 32 bytes per id,
+ * other ids are kept in a HashSet. Not thread safe.
+ */
+final class IdIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] table = new long[2 * INITIAL_CAPACITY];
+  private int uuids;
+  // The nil UUID marks a free slot of the table
+  private boolean nilUuid;
+  private final Set<String> others = new HashSet<>();
+
+  /**
+   * @return if the id was not in the index
+   */
+  boolean add(String id) {
+    if (!isUuid(id)) {
+      return others.add(id);
+    }
+    long msb = mostSignificantBits(id);
+    long lsb = leastSignificantBits(id);
+    if (msb == 0 && lsb == 0) {
+      boolean added = !nilUuid;
+      nilUuid = true;
+      return added;
+    }
+    if (2 * (uuids + 1) > table.length / 2) {
+      grow();
+    }
+    if (insert(table, msb, lsb)) {
+      uuids++;
+      return true;
+    }
+    return false;
+  }
+
+  boolean contains(String id) {
+    if (!isUuid(id)) {
+      return others.contains(id);
+    }
+    long msb = mostSignificantBits(id);
+    long lsb = leastSignificantBits(id);
+    if (msb == 0 && lsb == 0) {
+      return nilUuid;
+    }
+    int mask = table.length / 2 - 1;
+    for (int slot = hash(msb, lsb) & mask; ; slot = (slot + 1) & mask) {
+      long slotMsb = table[2 * slot];
+      long slotLsb = table[2 * slot + 1];
+      if (slotMsb == msb && slotLsb == lsb) {
+        return true;
+      }
+      if (slotMsb == 0 && slotLsb == 0) {
+        return false;
+      }
+    }
+  }
+
+  long size() {
+    return uuids + (nilUuid ? 1 : 0) + others.size();
+  }
+
+  /**
+   * Passes every id of the index to the action, UUIDs in the order of the table.
+   */
+  void forEach(Consumer<String> action) {
+    for (int slot = 0; slot < table.length; slot += 2) {
+      if (table[slot] != 0 || table[slot + 1] != 0) {
+        action.accept(new UUID(table[slot], table[slot + 1]).toString());
+      }
+    }
+    if (nilUuid) {
+      action.accept(new UUID(0, 0).toString());
+    }
+    others.forEach(action);
+  }
+
+  private void grow() {
+    var grown = new long[2 * table.length];
+    for (int slot = 0; slot < table.length; slot += 2) {
+      if (table[slot] != 0 || table[slot + 1] != 0) {
+        insert(grown, table[slot], table[slot + 1]);
+      }
+    }
+    table = grown;
+  }
+
+  private static boolean insert(long[] table, long msb, long lsb) {
+    int mask = table.length / 2 - 1;
+    for (int slot = hash(msb, lsb) & mask; ; slot = (slot + 1) & mask) {
+      long slotMsb = table[2 * slot];
+      long slotLsb = table[2 * slot + 1];
+      if (slotMsb == msb && slotLsb == lsb) {
+        return false;
+      }
+      if (slotMsb == 0 && slotLsb == 0) {
+        table[2 * slot] = msb;
+        table[2 * slot + 1] = lsb;
+        return true;
+      }
+    }
+  }
+
+  private static int hash(long msb, long lsb) {
+    long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return if the id is a UUID in the form {@link UUID#toString()} returns
+   */
+  static boolean isUuid(String id) {
+    if (id.length() != 36) {
+      return false;
+    }
+    for (int i = 0; i < 36; i++) {
+      char c = id.charAt(i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          return false;
+        }
+      } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long mostSignificantBits(String uuid) {
+    return hex(uuid, 0, 8) << 32 | hex(uuid, 9, 13) << 16 | hex(uuid, 14, 18);
+  }
+
+  private static long leastSignificantBits(String uuid) {
+    return hex(uuid, 19, 23) << 48 | hex(uuid, 24, 36);
+  }
+
+  private static long hex(String s, int start, int end) {
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      value = value << 4 | Character.digit(s.charAt(i), 16);
+    }
+    return value;
+  }
+}
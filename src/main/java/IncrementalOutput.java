@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Output of a run that only regenerates the blueprints that changed since the previous run. The
+ * resources of a blueprint are written to a segment directory named after the content hash of the
+ * blueprint, so the segments of unchanged blueprints are kept as they are and only the manifest
+ * and the Parameters listing the segments are rewritten.
+ *
+ * <p>The hash covers everything the resources of a blueprint depend on: the blueprint, its
+ * template, its index (the unit keys of its instances), the run seed, instances and reference time,
+ * the classes implementing the generator functions and the quantity distributions.
+ */
+public class IncrementalOutput {
+
+  /**
+   * Classes whose code determines the generated values, hashed with their member classes into
+   * every blueprint hash. A class that changes the generated values must be listed here.
+   */
+  static final List<Class<?>> GENERATOR_CLASSES = List.of(GeneratorFunctions.class,
+      GeneratorRandom.class, FhirResourceFactory.class, JavaFunctionParser.class,
+      TemporalGenerator.class, QuantityDistributions.class, BlockGenerator.class,
+      UnitBlock.class, BluePrintCompiler.class, GenerationRun.class, DeferredReference.class,
+      DeferredReferenceResolver.class);
+
+  private static final String SEGMENT_DIRECTORY = "segments";
+  private static final String HASH_PROPERTY_PREFIX = "bluePrint.";
+
+  private final Path directory;
+
+  public IncrementalOutput(Path directory) {
+    this.directory = directory;
+  }
+
+  public Path manifestFile() {
+    return directory.resolve("manifest.json");
+  }
+
+  public Path segment(String hash) {
+    return directory.resolve(SEGMENT_DIRECTORY).resolve(hash);
+  }
+
+  /**
+   * @return the manifest of the previous run, if there is one
+   */
+  public Optional<OutputManifest> readManifest() throws IOException {
+    return Files.exists(manifestFile()) ? Optional.of(OutputManifest.read(manifestFile()))
+        : Optional.empty();
+  }
+
+  /**
+   * Generates all instances of the blueprints whose hash is not part of the previous manifest,
+   * keeps the segments of the others, deletes segments that are no longer used and writes the new
+   * manifest.
+   *
+   * @param run   a run over all blueprints, not sharded
+   * @param sinks further sinks, i.e. the validation stage, receiving the regenerated resources
+   * @return the new manifest, listing the parts of all segments in blueprint order
+   */
+  public OutputManifest generate(GenerationRun run, List<ResourceSink> sinks)
+      throws IOException {
+    var plan = run.plan();
+    if (plan.shardCount() != 1) {
+      throw new IllegalArgumentException("Incremental runs can not be sharded");
+    }
+    var previous = readManifest().orElseGet(OutputManifest::new);
+    var previousParts = partsBySegment(previous);
+    var manifest = new OutputManifest()
+        .setProperty("seed", run.seed())
+        .setProperty("instancesPerBluePrint", plan.instancesPerBluePrint())
+        .setProperty("referenceTime", GeneratorRandom.referenceTime())
+        .setProperty("deferredReferences", DeferredReference.isEnabled())
+        .setProperty("generatorHash", generatorHash())
+        .setProperty("quantityDistributionsHash",
+            hash(QuantityDistributions.current().toString()));
+
+    var runProperties = manifest.properties();
+    int regenerated = 0;
+    Set<String> usedSegments = new HashSet<>();
+    for (CompiledBluePrint bluePrint : run.bluePrints()) {
+      var hash = hash(bluePrint, runProperties);
+      manifest.setProperty(HASH_PROPERTY_PREFIX + bluePrint.index(), hash);
+      usedSegments.add(hash);
+      var parts = previousParts.get(hash);
+      if (parts == null || !Files.isDirectory(segment(hash))) {
+        parts = generateSegment(run, bluePrint, hash, sinks);
+        regenerated++;
+      }
+      manifest.addParts(parts);
+    }
+    for (ResourceSink sink : sinks) {
+      sink.close();
+    }
+    manifest.setProperty("regeneratedBluePrints", regenerated);
+
+    var tempFile = directory.resolve("manifest.json.tmp");
+    manifest.write(tempFile);
+    Files.move(tempFile, manifestFile(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    deleteUnusedSegments(usedSegments);
+    return manifest;
+  }
+
+  /**
+   * Generates the instances of one blueprint into a temporary directory that is renamed to the
+   * segment once it is complete, so an interrupted run never leaves a partial segment behind.
+   */
+  private List<OutputManifest.Part> generateSegment(GenerationRun run,
+      CompiledBluePrint bluePrint, String hash, List<ResourceSink> sinks) throws IOException {
+    var segment = segment(hash);
+    var tempSegment = segment.resolveSibling(hash + ".tmp");
+    deleteRecursively(tempSegment);
+    Files.createDirectories(tempSegment);
+    var writer = new StreamingNDJsonWriter(type -> tempSegment.resolve(type + ".ndjson"));
+    var resolver = new DeferredReferenceResolver(writer);
+    long instances = run.plan().instancesPerBluePrint();
+    try (writer) {
+      for (long first = 0; first < instances; first += run.blockSize()) {
+        for (List<IBaseResource> resources : run.generate(bluePrint, first,
+            (int) Math.min(run.blockSize(), instances - first))) {
+          if (resources == null) {
+            continue;
+          }
+          for (ResourceSink sink : sinks) {
+            sink.accept(bluePrint, resources);
+          }
+          resolver.accept(bluePrint, resources);
+        }
+      }
+    }
+    deleteRecursively(segment);
+    Files.move(tempSegment, segment, StandardCopyOption.ATOMIC_MOVE);
+    List<OutputManifest.Part> parts = new ArrayList<>();
+    for (OutputManifest.Part part : writer.parts()) {
+      parts.add(new OutputManifest.Part(part.resourceType(),
+          segment.resolve(part.resourceType() + ".ndjson").toString(), part.lines(),
+          part.bytes()));
+    }
+    return parts;
+  }
+
+  private Map<String, List<OutputManifest.Part>> partsBySegment(OutputManifest manifest) {
+    Map<String, List<OutputManifest.Part>> partsBySegment = new TreeMap<>();
+    for (OutputManifest.Part part : manifest.parts()) {
+      var segment = Path.of(part.path()).getParent().getFileName().toString();
+      partsBySegment.computeIfAbsent(segment, hash -> new ArrayList<>()).add(part);
+    }
+    // A blueprint that generated no resources has a segment without parts.
+    manifest.properties().forEach((name, hash) -> {
+      if (name.startsWith(HASH_PROPERTY_PREFIX)) {
+        partsBySegment.putIfAbsent(hash, List.of());
+      }
+    });
+    return partsBySegment;
+  }
+
+  private void deleteUnusedSegments(Set<String> usedSegments) throws IOException {
+    var segments = directory.resolve(SEGMENT_DIRECTORY);
+    if (!Files.isDirectory(segments)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(segments)) {
+      for (Path segment : files.toList()) {
+        if (!usedSegments.contains(segment.getFileName().toString())) {
+          deleteRecursively(segment);
+        }
+      }
+    }
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(path)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  /**
+   * Computes the content hash of a blueprint.
+   *
+   * @param bluePrint     the compiled blueprint
+   * @param runProperties the run properties, including the generator hash
+   * @return the hex encoded hash
+   */
+  static String hash(CompiledBluePrint bluePrint, Map<String, String> runProperties) {
+    var digest = sha256();
+    var content = new StringBuilder();
+    new TreeMap<>(runProperties).forEach(
+        (name, value) -> content.append(name).append('=').append(value).append('\n'));
+    content.append("index=").append(bluePrint.index()).append('\n');
+    new TreeMap<>(bluePrint.bluePrint()).forEach(
+        (fhirPath, function) -> content.append(fhirPath).append('=').append(function)
+            .append('\n'));
+    digest.update(content.toString().getBytes(StandardCharsets.UTF_8));
+    digest.update(FhirParserPool.encodeToBytes(bluePrint.template(),
+        FhirParserPool.Format.NDJSON));
+    return HexFormat.of().formatHex(digest.digest(), 0, 16);
+  }
+
+  /**
+   * @return the hash of the class files of the generator functions
+   */
+  static String generatorHash() {
+    var digest = sha256();
+    for (Class<?> generatorClass : GENERATOR_CLASSES) {
+      hashClass(generatorClass, digest);
+    }
+    return HexFormat.of().formatHex(digest.digest(), 0, 16);
+  }
+
+  private static void hashClass(Class<?> generatorClass, MessageDigest digest) {
+    var name = generatorClass.getName();
+    try (InputStream in = generatorClass.getResourceAsStream(
+        name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+      if (in == null) {
+        throw new IllegalStateException("No class file found for " + generatorClass);
+      }
+      digest.update(in.readAllBytes());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // Nested classes, i.e. the random of a unit block, have class files of their own
+    Stream.of(generatorClass.getDeclaredClasses())
+        .sorted(Comparator.comparing(Class::getName))
+        .forEach(nested -> hashClass(nested, digest));
+  }
+
+  private static String hash(String content) {
+    return HexFormat.of().formatHex(
+        sha256().digest(content.getBytes(StandardCharsets.UTF_8)), 0, 16);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -27,14 +27,13 @@ public class JavaFunctionParser {
     String functionName = input.substring(0, startParen);
 
     try {
-      Method method = getMethod(GeneratorFunctions.class, functionName);
-      var return_type = method.getReturnType();
-      method.setAccessible(true);
-
       String[] paramsStr = {};
       if (endParen > startParen + 1) {
         paramsStr = input.substring(startParen + 1, endParen).split(",");
       }
+      Method method = getMethod(GeneratorFunctions.class, functionName, paramsStr.length);
+      var return_type = method.getReturnType();
+      method.setAccessible(true);
       Object[] params = new Object[paramsStr.length];
 
       for (int i = 0; i < paramsStr.length; i++) {
@@ -82,4 +81,23 @@ public class JavaFunctionParser {
     }
     return method;
   }
+
+  /**
+   * Gets the method with the given name and number of parameters, so functions can be
+   * overloaded by their number of parameters. Falls back to any method with the given name.
+   *
+   * @param functionName   - the name of the method
+   * @param parameterCount - the number of parameters of the call
+   * @return - the method
+   * @throws NoSuchMethodException - if no method with the given name is found
+   */
+  public static <T> Method getMethod(Class<T> clazz, String functionName, int parameterCount)
+      throws NoSuchMethodException {
+    for (Method m : clazz.getDeclaredMethods()) {
+      if (functionName.equals(m.getName()) && m.getParameterCount() == parameterCount) {
+        return m;
+      }
+    }
+    return getMethod(clazz, functionName);
+  }
 }
@@ -0,0 +1,274 @@
+import ca.uhn.fhir.util.FhirTerser;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+/**
+ * Writes the generated resources as rows of a database table while they are generated: the id,
+ * the resource type, the id of the referenced Patient, a few search columns and the resource as
+ * JSON. Several writer threads, each with a connection of its own, encode the resources and insert
+ * them in prepared statement batches, and commit after a number of rows.
+ *
+ * <p>The table is created if it does not exist, with a CLOB column for the JSON. For databases
+ * without CLOB the table can be created beforehand with the same column names.
+ */
+public class JdbcOutput implements ResourceSink {
+
+  public static final String DEFAULT_TABLE = "fhir_resource";
+
+  /**
+   * The default search columns: the first code and the clinically relevant date of the resource.
+   */
+  public static final Map<String, String> DEFAULT_SEARCH_COLUMNS = searchColumns(
+      "code", "code.coding.first().code",
+      "date", "(effective.ofType(dateTime) | onset.ofType(dateTime) | performed.ofType(dateTime)"
+          + " | effective.ofType(Period).start | recordedDate | dateTime).first()");
+
+  private static final IBaseResource END = new Patient();
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final String table;
+  private final Map<String, String> searchColumns;
+  private final int batchSize;
+  private final int commitInterval;
+  private final BlockingQueue<IBaseResource> queue;
+  private final List<Thread> writers = new ArrayList<>();
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final long startNanos;
+  private long endNanos;
+
+  /**
+   * @param url            the JDBC URL of the database
+   * @param user           the user or null
+   * @param password       the password or null
+   * @param table          the table of the rows, created if it does not exist
+   * @param searchColumns  FHIRPath expressions of the search columns by column name
+   * @param threads        number of writer threads
+   * @param batchSize      number of rows per batch
+   * @param commitInterval number of rows a writer commits after
+   */
+  public JdbcOutput(String url, String user, String password, String table,
+      Map<String, String> searchColumns, int threads, int batchSize, int commitInterval)
+      throws IOException {
+    if (threads < 1 || batchSize < 1 || commitInterval < 1) {
+      throw new IllegalArgumentException("The threads, the batch size and the commit interval "
+          + "must be positive");
+    }
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.table = table;
+    this.searchColumns = searchColumns;
+    this.batchSize = batchSize;
+    this.commitInterval = commitInterval;
+    this.queue = new ArrayBlockingQueue<>(threads * batchSize * 2);
+    try (var connection = connect()) {
+      createTable(connection);
+    } catch (SQLException e) {
+      throw new IOException("Could not create the table " + table, e);
+    }
+    for (int i = 0; i < threads; i++) {
+      var writer = new Thread(this::write, "jdbc-writer-" + i);
+      writer.setDaemon(true);
+      writers.add(writer);
+      writer.start();
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * @param namesAndPaths column names each followed by its FHIRPath expression
+   * @return the search columns in the given order
+   */
+  public static Map<String, String> searchColumns(String... namesAndPaths) {
+    Map<String, String> columns = new LinkedHashMap<>();
+    for (int i = 0; i + 1 < namesAndPaths.length; i += 2) {
+      columns.put(namesAndPaths[i], namesAndPaths[i + 1]);
+    }
+    return columns;
+  }
+
+  private Connection connect() throws SQLException {
+    return DriverManager.getConnection(url, user, password);
+  }
+
+  private void createTable(Connection connection) throws SQLException {
+    var sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(table)
+        .append(" (id VARCHAR(64) NOT NULL, resource_type VARCHAR(64) NOT NULL,"
+            + " patient_id VARCHAR(64)");
+    for (String column : searchColumns.keySet()) {
+      sql.append(", ").append(column).append(" VARCHAR(255)");
+    }
+    sql.append(", resource CLOB NOT NULL)");
+    try (var statement = connection.createStatement()) {
+      statement.execute(sql.toString());
+    }
+  }
+
+  private String insert() {
+    var sql = new StringBuilder("INSERT INTO ").append(table)
+        .append(" (id, resource_type, patient_id");
+    for (String column : searchColumns.keySet()) {
+      sql.append(", ").append(column);
+    }
+    sql.append(", resource) VALUES (?, ?, ?");
+    sql.append(", ?".repeat(searchColumns.size()));
+    return sql.append(", ?)").toString();
+  }
+
+  @Override
+  public void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    for (IBaseResource resource : resources) {
+      checkFailure();
+      try {
+        while (!queue.offer(resource, 100, TimeUnit.MILLISECONDS)) {
+          checkFailure();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the database", e);
+      }
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure.get() != null) {
+      throw new IOException("Writing to " + table + " failed", failure.get());
+    }
+  }
+
+  /**
+   * Writes the remaining rows, commits and closes the connections.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (Thread writer : writers) {
+        if (writer.isAlive()) {
+          queue.put(END);
+        }
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the database", e);
+    }
+    endNanos = System.nanoTime();
+    checkFailure();
+  }
+
+  private void write() {
+    var ctx = SharedFhirContext.get();
+    var engine = new FHIRPathEngine(new HapiWorkerContext(ctx, ctx.getValidationSupport()));
+    var terser = ctx.newTerser();
+    List<ExpressionNode> expressions = searchColumns.values().stream().map(engine::parse)
+        .toList();
+    try (var connection = connect(); PreparedStatement insert = connection.prepareStatement(
+        insert())) {
+      connection.setAutoCommit(false);
+      int batched = 0;
+      int uncommitted = 0;
+      for (var resource = queue.take(); resource != END; resource = queue.take()) {
+        int parameter = 1;
+        insert.setString(parameter++, resource.getIdElement().getIdPart());
+        insert.setString(parameter++, resource.fhirType());
+        insert.setString(parameter++, patientId(resource, terser));
+        for (ExpressionNode expression : expressions) {
+          var values = engine.evaluate((Base) resource, expression);
+          insert.setString(parameter++, values.isEmpty() || !values.get(0).isPrimitive() ? null
+              : values.get(0).primitiveValue());
+        }
+        insert.setString(parameter, FhirParserPool.encodeToString(resource,
+            FhirParserPool.Format.NDJSON));
+        insert.addBatch();
+        if (++batched == batchSize) {
+          executeBatch(insert, batched);
+          batched = 0;
+        }
+        if (++uncommitted == commitInterval) {
+          executeBatch(insert, batched);
+          batched = 0;
+          connection.commit();
+          commits.incrementAndGet();
+          uncommitted = 0;
+        }
+      }
+      executeBatch(insert, batched);
+      connection.commit();
+      commits.incrementAndGet();
+    } catch (SQLException | RuntimeException e) {
+      failure.compareAndSet(null, e);
+      queue.clear();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void executeBatch(PreparedStatement insert, int batched) throws SQLException {
+    if (batched > 0) {
+      insert.executeBatch();
+      rows.addAndGet(batched);
+      batches.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the id of a Patient, or the id of the first Patient the resource references
+   */
+  private static String patientId(IBaseResource resource, FhirTerser terser) {
+    if (resource instanceof Patient) {
+      return resource.getIdElement().getIdPart();
+    }
+    for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource,
+        Reference.class)) {
+      var element = reference.getReferenceElement();
+      if ("Patient".equals(element.getResourceType())) {
+        return element.getIdPart();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return number of inserted rows
+   */
+  public long rows() {
+    return rows.get();
+  }
+
+  /**
+   * Records the rows, batches, commits and the rate the rows were inserted at, call after
+   * {@link #close()}.
+   */
+  public void report(RunReport report) {
+    report.record("database rows", rows() + " in " + batches.get() + " batches, "
+        + commits.get() + " commits");
+    report.recordRate("database inserts", rows(), endNanos - startNanos, "rows");
+  }
+}
@@ -0,0 +1,104 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of latencies with microsecond resolution and a relative error below 3.2%, up to the
+ * range of a long. Latencies below 64 microseconds have their own bucket, above that every power
+ * of two is split into 32 buckets, so the histogram has a fixed size no matter how many latencies
+ * it records.
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKETS = 32;
+  private static final int SUB_BUCKET_BITS = 5;
+
+  private final long[] counts = new long[LINEAR_BUCKETS + (Long.SIZE - 6) * SUB_BUCKETS];
+  private long count = 0;
+  private long sumMicros = 0;
+  private long maxMicros = 0;
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds, negative latencies are recorded as 0
+   */
+  public synchronized void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    counts[bucket(micros)]++;
+    count++;
+    sumMicros += micros;
+    maxMicros = Math.max(maxMicros, micros);
+  }
+
+  /**
+   * Adds the latencies of another histogram.
+   */
+  public synchronized void add(LatencyHistogram other) {
+    synchronized (other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      count += other.count;
+      sumMicros += other.sumMicros;
+      maxMicros = Math.max(maxMicros, other.maxMicros);
+    }
+  }
+
+  public synchronized long count() {
+    return count;
+  }
+
+  /**
+   * @return the largest recorded latency in microseconds
+   */
+  public synchronized long maxMicros() {
+    return maxMicros;
+  }
+
+  /**
+   * @param percentile the percentile, between 0 and 100
+   * @return the latency in microseconds that the given percentage of the latencies does not
+   * exceed, the upper bound of its bucket but at most the largest latency
+   */
+  public synchronized long percentileMicros(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxMicros);
+      }
+    }
+    return maxMicros;
+  }
+
+  static int bucket(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.ROOT,
+        "n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms", count,
+        count == 0 ? 0.0 : sumMicros / 1000.0 / count, percentileMicros(50) / 1000.0,
+        percentileMicros(90) / 1000.0, percentileMicros(99) / 1000.0,
+        percentileMicros(99.9) / 1000.0, maxMicros / 1000.0);
+  }
+}
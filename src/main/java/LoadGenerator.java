@@ -0,0 +1,283 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Sends the generated resources to a FHIR server at a fixed request rate and records the latency
+ * of every request per resource type and status code.
+ *
+ * <p>The load is open-loop: request i is due at start + i / rate, no matter how long earlier
+ * requests take. The latency of a request is measured from the time it was due, not from the time
+ * it was sent, so requests that wait for one of the bounded in-flight slots because the server
+ * is slow count the waiting time (no coordinated omission). If the generation falls behind the
+ * schedule, the schedule is moved instead and the slip is counted, as that delay is not caused by
+ * the server.
+ */
+public class LoadGenerator implements ResourceSink {
+
+  public enum Mode {
+    /**
+     * Every resource is sent as a PUT of its own.
+     */
+    RESOURCE,
+    /**
+     * The resources are sent as batch bundles.
+     */
+    BATCH,
+    /**
+     * The resources are sent as transaction bundles.
+     */
+    TRANSACTION;
+
+    public static Mode parse(String mode) {
+      return valueOf(mode.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private static final Request END = new Request(null, null);
+
+  private final IGenericClient client;
+  private final Mode mode;
+  private final long intervalNanos;
+  private final int bundleSize;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+  private final BlockingQueue<Request> queue;
+  private final ExecutorService executor;
+  private final Thread dispatcher;
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+  private final AtomicLong failures = new AtomicLong();
+  private final List<IBaseResource> pendingBundle = new ArrayList<>();
+  private long scheduleSlips = 0;
+  private long requests = 0;
+  private long startNanos;
+  private long endNanos;
+
+  /**
+   * @param client            client of the FHIR server, see {@link #createClient(String, int)}
+   * @param mode              how the resources are sent
+   * @param requestsPerSecond the target request rate
+   * @param maxInFlight       maximum number of requests waiting for a response
+   * @param bundleSize        number of resources per bundle in the bundle modes
+   */
+  public LoadGenerator(IGenericClient client, Mode mode, double requestsPerSecond,
+      int maxInFlight, int bundleSize) {
+    if (requestsPerSecond <= 0 || maxInFlight < 1 || bundleSize < 1) {
+      throw new IllegalArgumentException("The request rate, the in-flight requests and the "
+          + "bundle size must be positive");
+    }
+    this.client = client;
+    this.mode = mode;
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    this.bundleSize = bundleSize;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.queue = new ArrayBlockingQueue<>(4 * maxInFlight);
+    this.executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+      var thread = new Thread(runnable, "load-request");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.dispatcher = new Thread(this::dispatch, "load-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Creates a client whose connection pool allows the given number of in-flight requests. The
+   * client has a FhirContext of its own, so its settings do not affect the terminology client.
+   *
+   * @param baseUrl     the base URL of the FHIR server
+   * @param maxInFlight maximum number of requests waiting for a response
+   * @return the client
+   */
+  public static IGenericClient createClient(String baseUrl, int maxInFlight) {
+    var ctx = FhirContext.forR4();
+    var clientFactory = ctx.getRestfulClientFactory();
+    clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    clientFactory.setPoolMaxTotal(maxInFlight);
+    clientFactory.setPoolMaxPerRoute(maxInFlight);
+    return ctx.newRestfulGenericClient(baseUrl);
+  }
+
+  @Override
+  public void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    if (mode == Mode.RESOURCE) {
+      for (IBaseResource resource : resources) {
+        enqueue(new Request(resource, null));
+      }
+      return;
+    }
+    for (IBaseResource resource : resources) {
+      pendingBundle.add(resource);
+      if (pendingBundle.size() == bundleSize) {
+        enqueueBundle();
+      }
+    }
+  }
+
+  private void enqueueBundle() throws IOException {
+    var bundle = FhirTransactionBundleConverter.convertToFhirTransactionBundle(pendingBundle);
+    if (mode == Mode.BATCH) {
+      bundle.setType(Bundle.BundleType.BATCH);
+    }
+    pendingBundle.clear();
+    enqueue(new Request(null, bundle));
+  }
+
+  private void enqueue(Request request) throws IOException {
+    try {
+      queue.put(request);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the load generator", e);
+    }
+  }
+
+  /**
+   * Sends the remaining resources and waits for all responses.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!pendingBundle.isEmpty()) {
+      enqueueBundle();
+    }
+    enqueue(END);
+    try {
+      dispatcher.join();
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.HOURS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the responses", e);
+    }
+    endNanos = System.nanoTime();
+  }
+
+  private void dispatch() {
+    try {
+      long scheduleStart = 0;
+      while (true) {
+        var request = queue.poll();
+        boolean waitedForGeneration = request == null;
+        if (waitedForGeneration) {
+          request = queue.take();
+        }
+        if (request == END) {
+          break;
+        }
+        long now = System.nanoTime();
+        if (requests == 0) {
+          startNanos = now;
+          scheduleStart = now;
+        }
+        long due = scheduleStart + requests * intervalNanos;
+        if (waitedForGeneration && now > due) {
+          // The generation fell behind, not the server. While the server is slow the queue is
+          // full, so the schedule is never moved because of the server.
+          scheduleStart += now - due;
+          due = now;
+          scheduleSlips++;
+        }
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+          LockSupport.parkNanos(wait);
+        }
+        requests++;
+        inFlight.acquire();
+        long dueNanos = due;
+        var dueRequest = request;
+        executor.execute(() -> {
+          try {
+            send(dueRequest, dueNanos);
+          } finally {
+            inFlight.release();
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void send(Request request, long dueNanos) {
+    String resourceType = request.resource != null ? request.resource.fhirType() : "Bundle";
+    int status;
+    try {
+      if (request.resource != null) {
+        // The outcome of an update only tells whether the resource was created.
+        var outcome = client.update().resource(request.resource).execute();
+        status = Boolean.TRUE.equals(outcome.getCreated()) ? 201 : 200;
+      } else {
+        client.transaction().withBundle(request.bundle).execute();
+        status = 200;
+      }
+    } catch (BaseServerResponseException e) {
+      status = e.getStatusCode();
+      failures.incrementAndGet();
+    } catch (RuntimeException e) {
+      // No response, i.e. the connection failed or timed out
+      status = 0;
+      failures.incrementAndGet();
+    }
+    histograms.computeIfAbsent(resourceType + " " + status, key -> new LatencyHistogram())
+        .record(System.nanoTime() - dueNanos);
+  }
+
+  /**
+   * @return the latency histograms by resource type and status code, i.e. "Observation 201". The
+   * status of requests without a response is 0, the resource type of bundles is Bundle.
+   */
+  public Map<String, LatencyHistogram> histograms() {
+    return new TreeMap<>(histograms);
+  }
+
+  /**
+   * @return number of requests without a successful response
+   */
+  public long failures() {
+    return failures.get();
+  }
+
+  /**
+   * @return number of times the schedule was moved because the generation fell behind
+   */
+  public long scheduleSlips() {
+    return scheduleSlips;
+  }
+
+  /**
+   * Records the request rate and the latencies, call after {@link #close()}.
+   */
+  public void report(RunReport report) {
+    report.record("load", mode.name().toLowerCase(Locale.ROOT) + " requests, "
+        + maxInFlight + " in flight");
+    report.recordRate("requests", requests, endNanos - startNanos, "requests");
+    report.record("failed requests", String.valueOf(failures()));
+    report.record("schedule slips", String.valueOf(scheduleSlips));
+    histograms().forEach((key, histogram) -> report.record("latency " + key,
+        histogram.toString()));
+  }
+
+  private record Request(IBaseResource resource, Bundle bundle) {
+
+  }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Writes an NDJSON file through a memory mapped region of its FileChannel. The file is extended
+ * region by region as it grows, the encoded UTF-8 bytes are copied into the mapped region without a
+ * system call per write, and the file is truncated to the written size when it is closed.
+ *
+ * <p>A mapped region is only released by the garbage collector, so truncating the file at close
+ * relies on the operating system allowing to truncate a mapped file, as Linux and macOS do. Where
+ * it does not, {@link #close()} throws and the callers write the file again without mapping it.
+ */
+public class MappedNDJsonWriter extends OutputStream {
+
+  public static final int DEFAULT_REGION_SIZE = 64 << 20;
+
+  private final FileChannel channel;
+  private final int regionSize;
+  private MappedByteBuffer region;
+  private long regionStart;
+  private boolean closed;
+  private long lines;
+  private final long startNanos = System.nanoTime();
+  private long nanos;
+
+  /**
+   * @param file the file, replaced if it exists
+   */
+  public MappedNDJsonWriter(Path file) throws IOException {
+    this(file, DEFAULT_REGION_SIZE);
+  }
+
+  /**
+   * @param file       the file, replaced if it exists
+   * @param regionSize the size of the mapped regions the file is extended by
+   */
+  public MappedNDJsonWriter(Path file, int regionSize) throws IOException {
+    if (regionSize < 1) {
+      throw new IllegalArgumentException("The region size must be positive");
+    }
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.regionSize = regionSize;
+    this.region = channel.map(MapMode.READ_WRITE, 0, regionSize);
+  }
+
+  /**
+   * Writes a resource as a line.
+   *
+   * @param resource the resource
+   */
+  public void write(IBaseResource resource) throws IOException {
+    write(FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON));
+    write('\n');
+    lines++;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkOpen();
+    if (!region.hasRemaining()) {
+      nextRegion();
+    }
+    region.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    checkOpen();
+    while (length > 0) {
+      if (!region.hasRemaining()) {
+        nextRegion();
+      }
+      int count = Math.min(length, region.remaining());
+      region.put(bytes, offset, count);
+      offset += count;
+      length -= count;
+    }
+  }
+
+  private void nextRegion() throws IOException {
+    regionStart += regionSize;
+    region = channel.map(MapMode.READ_WRITE, regionStart, regionSize);
+  }
+
+  private void checkOpen() throws IOException {
+    // The region must not be written once the file is truncated
+    if (closed) {
+      throw new IOException("The writer is closed");
+    }
+  }
+
+  /**
+   * @return number of bytes written
+   */
+  public long bytes() {
+    return regionStart + region.position();
+  }
+
+  /**
+   * @return number of resources written with {@link #write(IBaseResource)}
+   */
+  public long lines() {
+    return lines;
+  }
+
+  /**
+   * Records the rate the file was written at, call after {@link #close()}.
+   *
+   * @param report the report
+   * @param name   name of the metric
+   */
+  public void report(RunReport report, String name) {
+    report.recordRate(name, bytes() / 1e6, nanos, "MB");
+  }
+
+  /**
+   * Truncates the file to the written bytes and closes it.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try (channel) {
+      channel.truncate(bytes());
+    }
+    nanos = System.nanoTime() - startNanos;
+  }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.hl7.fhir.r4.model.Parameters;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Describes the NDJSON files written by a run, or by one shard of a run, together with the run
+ * properties needed to combine or continue it (i.e. the seed and the shard).
+ */
+public class OutputManifest {
+
+  /**
+   * An NDJSON file holding resources of one type.
+   *
+   * @param resourceType type of the resources in the file
+   * @param path         path of the file
+   * @param lines        number of resources in the file
+   * @param bytes        size of the file
+   * @param sha256       hex encoded SHA-256 of the file or null if it was not computed
+   */
+  public record Part(String resourceType, String path, long lines, long bytes, String sha256) {
+
+    public Part(String resourceType, String path, long lines, long bytes) {
+      this(resourceType, path, lines, bytes, null);
+    }
+
+    JSONObject toJson() {
+      var json = new JSONObject().put("resourceType", resourceType).put("path", path)
+          .put("lines", lines).put("bytes", bytes);
+      return sha256 == null ? json : json.put("sha256", sha256);
+    }
+
+    static Part fromJson(JSONObject json) {
+      return new Part(json.getString("resourceType"), json.getString("path"),
+          json.getLong("lines"), json.getLong("bytes"), json.optString("sha256", null));
+    }
+  }
+
+  /**
+   * The properties that every shard of a run shares, see {@link ShardOutput}.
+   */
+  static final List<String> RUN_PROPERTIES = List.of("seed", "shardCount", "bluePrintCount",
+      "instancesPerBluePrint", "referenceTime", "deferredReferences");
+
+  private final Map<String, String> properties = new LinkedHashMap<>();
+  private final List<Part> parts = new ArrayList<>();
+
+  public OutputManifest setProperty(String name, Object value) {
+    properties.put(name, String.valueOf(value));
+    return this;
+  }
+
+  public String getProperty(String name) {
+    return properties.get(name);
+  }
+
+  public Map<String, String> properties() {
+    return Map.copyOf(properties);
+  }
+
+  public OutputManifest addParts(Collection<Part> parts) {
+    this.parts.addAll(parts);
+    return this;
+  }
+
+  public List<Part> parts() {
+    return List.copyOf(parts);
+  }
+
+  /**
+   * Creates the Parameters of a Pathling $import of all parts, like
+   * {@link FhirResourceFactory#createParameters(java.util.HashMap)}.
+   *
+   * @return Parameters with one source per part
+   */
+  public Parameters toParameters() {
+    var parameters = new Parameters();
+    for (Part part : parts) {
+      parameters.addParameter(
+          FhirResourceFactory.createSourceParameter(part.resourceType(), part.path()));
+    }
+    return parameters;
+  }
+
+  public JSONObject toJson() {
+    var json = new JSONObject();
+    json.put("properties", new JSONObject(properties));
+    var partsJson = new JSONArray();
+    parts.forEach(part -> partsJson.put(part.toJson()));
+    json.put("parts", partsJson);
+    return json;
+  }
+
+  public static OutputManifest fromJson(JSONObject json) {
+    var manifest = new OutputManifest();
+    var propertiesJson = json.getJSONObject("properties");
+    propertiesJson.keySet().forEach(
+        name -> manifest.setProperty(name, propertiesJson.getString(name)));
+    var partsJson = json.getJSONArray("parts");
+    for (int i = 0; i < partsJson.length(); i++) {
+      manifest.parts.add(Part.fromJson(partsJson.getJSONObject(i)));
+    }
+    return manifest;
+  }
+
+  public void write(Path file) throws IOException {
+    Files.writeString(file, toJson().toString(2), StandardCharsets.UTF_8);
+  }
+
+  public static OutputManifest read(Path file) throws IOException {
+    return fromJson(new JSONObject(Files.readString(file, StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Merges the manifests of all shards of a run. The shards must share the
+   * {@link #RUN_PROPERTIES}, i.e. the seed and the shard count, and every shard must be present
+   * exactly once.
+   *
+   * @param shardManifests the manifests written by the shards, in any order
+   * @return a manifest with the run properties, listing the parts of all shards in shard order
+   */
+  public static OutputManifest mergeShards(Collection<OutputManifest> shardManifests) {
+    if (shardManifests.isEmpty()) {
+      throw new IllegalArgumentException("No shard manifests to merge");
+    }
+    var first = shardManifests.iterator().next();
+    int shardCount = Integer.parseInt(first.getProperty("shardCount"));
+    var byShard = new OutputManifest[shardCount];
+    for (OutputManifest manifest : shardManifests) {
+      for (String property : RUN_PROPERTIES) {
+        if (!Objects.equals(first.getProperty(property), manifest.getProperty(property))) {
+          throw new IllegalArgumentException("Shard manifests of different runs can not be merged,"
+              + " the " + property + " differs: " + first.getProperty(property) + ", "
+              + manifest.getProperty(property));
+        }
+      }
+      int shardIndex = Integer.parseInt(manifest.getProperty("shardIndex"));
+      if (shardIndex < 0 || shardIndex >= shardCount) {
+        throw new IllegalArgumentException("Shard " + shardIndex + " is not one of the "
+            + shardCount + " shards");
+      }
+      if (byShard[shardIndex] != null) {
+        throw new IllegalArgumentException("Shard " + shardIndex + " is listed twice");
+      }
+      byShard[shardIndex] = manifest;
+    }
+    var merged = new OutputManifest();
+    for (String property : RUN_PROPERTIES) {
+      if (first.getProperty(property) != null) {
+        merged.setProperty(property, first.getProperty(property));
+      }
+    }
+    for (int i = 0; i < shardCount; i++) {
+      if (byShard[i] == null) {
+        throw new IllegalArgumentException("The manifest of shard " + i + " is missing");
+      }
+      merged.addParts(byShard[i].parts());
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Writes the generated resources to NDJSON part files of bounded size per resource type, i.e.
+ * Observation-00001.ndjson, Observation-00002.ndjson, so importers can load the parts in parallel.
+ * A part is closed before it would exceed the maximum number of lines or bytes.
+ *
+ * <p>The resources of a type are encoded in chunks on a pool of writer threads, and the chunks of
+ * a type are written in the order they were generated, so the parts do not depend on the number of
+ * threads. Different types, and the encoding of further chunks, proceed concurrently. Each part is
+ * listed in the {@link #manifest()} with its lines, bytes and SHA-256.
+ */
+public class PartitionedNDJsonWriter implements ResourceSink {
+
+  static final int CHUNK_SIZE = 256;
+
+  private final Path directory;
+  private final long maxLines;
+  private final long maxBytes;
+  private final ExecutorService writers;
+  // Bounds the chunks that are generated but not written yet
+  private final Semaphore chunksInFlight;
+  private final Map<String, TypeParts> types = new TreeMap<>();
+  private final long startNanos;
+  private long endNanos;
+
+  /**
+   * @param directory the directory of the parts
+   * @param maxLines  maximum number of resources of a part
+   * @param maxBytes  maximum size of a part, a single larger resource is a part of its own
+   * @param threads   number of writer threads
+   */
+  public PartitionedNDJsonWriter(Path directory, long maxLines, long maxBytes, int threads)
+      throws IOException {
+    if (maxLines < 1 || maxBytes < 1 || threads < 1) {
+      throw new IllegalArgumentException("The maximum lines and bytes of a part and the threads "
+          + "must be positive");
+    }
+    this.directory = Files.createDirectories(directory);
+    this.maxLines = maxLines;
+    this.maxBytes = maxBytes;
+    this.writers = Executors.newFixedThreadPool(threads, runnable -> {
+      var thread = new Thread(runnable, "ndjson-part-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.chunksInFlight = new Semaphore(threads * 4);
+    this.startNanos = System.nanoTime();
+  }
+
+  @Override
+  public synchronized void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    for (IBaseResource resource : resources) {
+      var type = types.computeIfAbsent(resource.fhirType(), TypeParts::new);
+      type.pending.add(resource);
+      if (type.pending.size() == CHUNK_SIZE) {
+        submit(type);
+      }
+    }
+  }
+
+  private void submit(TypeParts type) throws IOException {
+    type.checkFailure();
+    try {
+      chunksInFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the writers", e);
+    }
+    var chunk = type.pending;
+    type.pending = new ArrayList<>(CHUNK_SIZE);
+    var encoded = CompletableFuture.supplyAsync(() -> encode(chunk), writers);
+    type.written = type.written.thenCombineAsync(encoded, (previous, lines) -> {
+      try {
+        type.write(lines);
+        return null;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, writers);
+    type.written.whenComplete((result, failure) -> chunksInFlight.release());
+  }
+
+  private static List<byte[]> encode(List<IBaseResource> chunk) {
+    List<byte[]> lines = new ArrayList<>(chunk.size());
+    for (IBaseResource resource : chunk) {
+      lines.add(FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON));
+    }
+    return lines;
+  }
+
+  /**
+   * Writes the remaining resources and closes the last part of every type.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      for (TypeParts type : types.values()) {
+        if (!type.pending.isEmpty()) {
+          submit(type);
+        }
+      }
+      for (TypeParts type : types.values()) {
+        type.written.join();
+        type.closePart();
+      }
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof UncheckedIOException io ? io.getCause()
+          : new IOException("Writing the parts failed", e.getCause());
+    } finally {
+      writers.shutdownNow();
+      endNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return the manifest listing all parts by resource type and number, call after
+   * {@link #close()}
+   */
+  public synchronized OutputManifest manifest() {
+    var manifest = new OutputManifest().setProperty("maxLines", maxLines)
+        .setProperty("maxBytes", maxBytes);
+    types.values().forEach(type -> manifest.addParts(type.parts));
+    return manifest;
+  }
+
+  /**
+   * Records the number of parts and the rate they were written at, call after {@link #close()}.
+   */
+  public synchronized void report(RunReport report) {
+    long parts = 0;
+    long bytes = 0;
+    for (TypeParts type : types.values()) {
+      parts += type.parts.size();
+      bytes += type.parts.stream().mapToLong(OutputManifest.Part::bytes).sum();
+    }
+    report.record("parts", parts + " parts of " + types.size() + " resource types");
+    report.recordRate("part output", bytes / 1e6, endNanos - startNanos, "MB");
+  }
+
+  /**
+   * The parts of a resource type. The pending resources are only used by the generating thread,
+   * the current part only by the writer writing the next chunk.
+   */
+  private final class TypeParts {
+
+    private final String resourceType;
+    private List<IBaseResource> pending = new ArrayList<>(CHUNK_SIZE);
+    private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+    private final List<OutputManifest.Part> parts = new ArrayList<>();
+    private Path path;
+    private OutputStream out;
+    private MessageDigest digest;
+    private long lines;
+    private long bytes;
+
+    private TypeParts(String resourceType) {
+      this.resourceType = resourceType;
+    }
+
+    private void checkFailure() throws IOException {
+      if (written.isCompletedExceptionally()) {
+        try {
+          written.join();
+        } catch (CompletionException e) {
+          throw new IOException("Writing the parts of " + resourceType + " failed", e.getCause());
+        }
+      }
+    }
+
+    private void write(List<byte[]> encoded) throws IOException {
+      for (byte[] line : encoded) {
+        if (out != null && (lines == maxLines || bytes + line.length + 1 > maxBytes)) {
+          closePart();
+        }
+        if (out == null) {
+          openPart();
+        }
+        out.write(line);
+        out.write('\n');
+        digest.update(line);
+        digest.update((byte) '\n');
+        lines++;
+        bytes += line.length + 1;
+      }
+    }
+
+    private void openPart() throws IOException {
+      path = directory.resolve(String.format("%s-%05d.ndjson", resourceType, parts.size() + 1));
+      out = new BufferedOutputStream(Files.newOutputStream(path), FhirParserPool.BUFFER_SIZE);
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      lines = 0;
+      bytes = 0;
+    }
+
+    private void closePart() throws IOException {
+      if (out == null) {
+        return;
+      }
+      out.close();
+      out = null;
+      parts.add(new OutputManifest.Part(resourceType, path.toString(), lines, bytes,
+          HexFormat.of().formatHex(digest.digest())));
+    }
+  }
+}
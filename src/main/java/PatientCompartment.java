@@ -0,0 +1,41 @@
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * The patient whose compartment the current thread generates. While a patient is set,
+ * {@link GeneratorFunctions#randomPatientReference()} references that patient instead of creating
+ * a new one, so all resources of the compartment belong to the same patient. The dates of the
+ * compartment lie on the timeline of the patient, see {@link TemporalGenerator}.
+ */
+public final class PatientCompartment {
+
+  private static final ThreadLocal<Reference> PATIENT_REFERENCE = new ThreadLocal<>();
+
+  private PatientCompartment() {
+  }
+
+  /**
+   * Sets the patient of the current thread.
+   *
+   * @param patient the patient of the compartment
+   */
+  public static void enter(Patient patient) {
+    var reference = new Reference("Patient/" + patient.getIdElement().getIdPart());
+    reference.setDisplay(patient.getNameFirstRep().getNameAsSingleString());
+    PATIENT_REFERENCE.set(reference);
+    TemporalGenerator.startCompartment(patient.getBirthDateElement());
+  }
+
+  public static void leave() {
+    PATIENT_REFERENCE.remove();
+    TemporalGenerator.endCompartment();
+  }
+
+  /**
+   * @return a new reference to the patient of the current thread or null outside of a compartment
+   */
+  public static Reference patientReference() {
+    var reference = PATIENT_REFERENCE.get();
+    return reference == null ? null : reference.copy();
+  }
+}
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * Output of a run grouped by patient. With k instances per patient, instances i * k to
+ * i * k + k - 1 of every blueprint belong to patient i, so n instances make n / k patients. The
+ * patient and its organization are generated first, then the instances of every blueprint are
+ * generated inside the {@link PatientCompartment} of the patient as a time series with sorted
+ * dates, and the whole compartment is written contiguously, either as consecutive NDJSON lines or
+ * as one transaction bundle per line.
+ *
+ * <p>The blueprint units keep their unit keys, the patient i uses the unit key i after those of
+ * the blueprint with the largest index. Blueprints that were skipped while compiling leave gaps in
+ * the indexes, so the count of the compiled blueprints is not enough to keep the keys apart.
+ */
+public class PatientCompartmentOutput {
+
+  public enum Layout {
+    /**
+     * The resources of a patient as consecutive lines of one NDJSON file.
+     */
+    NDJSON("patient-compartments.ndjson"),
+    /**
+     * One transaction bundle per patient and line.
+     */
+    BUNDLE("patient-bundles.ndjson");
+
+    private final String fileName;
+
+    Layout(String fileName) {
+      this.fileName = fileName;
+    }
+
+    public static Layout parse(String layout) {
+      return valueOf(layout.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private final Path directory;
+  private final Layout layout;
+  private final int instancesPerPatient;
+  private final Supplier<List<IBaseResource>> patientFactory;
+
+  public PatientCompartmentOutput(Path directory, Layout layout, int instancesPerPatient) {
+    this(directory, layout, instancesPerPatient, GeneratorFunctions::randomPatient);
+  }
+
+  /**
+   * @param directory           the output directory
+   * @param layout              how the compartments are written
+   * @param instancesPerPatient number of instances of every blueprint per patient
+   * @param patientFactory      creates the patient of a compartment and the resources it
+   *                            references
+   */
+  public PatientCompartmentOutput(Path directory, Layout layout, int instancesPerPatient,
+      Supplier<List<IBaseResource>> patientFactory) {
+    if (instancesPerPatient < 1) {
+      throw new IllegalArgumentException("instancesPerPatient must be at least 1");
+    }
+    this.directory = directory;
+    this.layout = layout;
+    this.instancesPerPatient = instancesPerPatient;
+    this.patientFactory = patientFactory;
+  }
+
+  public Path file() {
+    return directory.resolve(layout.fileName);
+  }
+
+  /**
+   * Generates the compartments of all patients of the run.
+   *
+   * @param run   a run over all blueprints, not sharded
+   * @param sinks further sinks, i.e. the validation stage, receiving the blueprint resources
+   * @return number of generated resources
+   */
+  public long generate(GenerationRun run, List<ResourceSink> sinks) throws IOException {
+    var plan = run.plan();
+    if (plan.shardCount() != 1) {
+      throw new IllegalArgumentException("Patient compartments can not be sharded");
+    }
+    if (plan.instancesPerBluePrint() % instancesPerPatient != 0) {
+      throw new IllegalArgumentException("The instances (" + plan.instancesPerBluePrint()
+          + ") must be a multiple of the instances per patient (" + instancesPerPatient + ")");
+    }
+    long patients = plan.instancesPerBluePrint() / instancesPerPatient;
+    long firstPatientKey = firstPatientKey(run);
+    if (firstPatientKey + patients > GeneratorRandom.MAX_UNIT_KEY) {
+      throw new IllegalArgumentException("Too many instances for patient compartments, the unit"
+          + " keys of the patients exceed " + GeneratorRandom.MAX_UNIT_KEY);
+    }
+    Files.createDirectories(directory);
+    long count = 0;
+    var resolver = new DeferredReferenceResolver(null);
+    try (Writer writer = FhirParserPool.newWriter(file())) {
+      for (long patient = 0; patient < patients; patient++) {
+        var compartment = resolver.resolve(
+            generateCompartment(run, firstPatientKey + patient, patient, sinks));
+        write(compartment, writer);
+        count += compartment.size();
+        // Every compartment contains the targets it references, even if an earlier one shares them
+        resolver.forget();
+      }
+    }
+    for (ResourceSink sink : sinks) {
+      sink.close();
+    }
+    return count;
+  }
+
+  /**
+   * @return the unit key of the first patient, after the unit keys of all blueprints
+   */
+  static long firstPatientKey(GenerationRun run) {
+    int maxIndex = run.bluePrints().stream().mapToInt(CompiledBluePrint::index).max().orElse(-1);
+    return (maxIndex + 1) * run.plan().instancesPerBluePrint();
+  }
+
+  private List<IBaseResource> generateCompartment(GenerationRun run, long patientKey,
+      long patientIndex, List<ResourceSink> sinks) throws IOException {
+    GeneratorRandom.startUnit(run.seed(), patientKey);
+    List<IBaseResource> compartment;
+    try {
+      compartment = new ArrayList<>(patientFactory.get());
+    } finally {
+      GeneratorRandom.endUnit();
+    }
+    var patient = compartment.stream().filter(Patient.class::isInstance).map(Patient.class::cast)
+        .findFirst().orElseThrow(() -> new IllegalStateException("No patient generated"));
+
+    PatientCompartment.enter(patient);
+    try {
+      for (CompiledBluePrint bluePrint : run.bluePrints()) {
+        for (int position = 0; position < instancesPerPatient; position++) {
+          TemporalGenerator.setSeriesPosition(position, instancesPerPatient);
+          var resources = run.generate(bluePrint, patientIndex * instancesPerPatient + position);
+          if (resources == null) {
+            continue;
+          }
+          for (ResourceSink sink : sinks) {
+            sink.accept(bluePrint, resources);
+          }
+          compartment.addAll(resources);
+        }
+      }
+    } finally {
+      PatientCompartment.leave();
+    }
+    return compartment;
+  }
+
+  private void write(List<IBaseResource> compartment, Writer writer) throws IOException {
+    if (layout == Layout.BUNDLE) {
+      FhirParserPool.encode(
+          FhirTransactionBundleConverter.convertToFhirTransactionBundle(compartment),
+          FhirParserPool.Format.NDJSON, writer);
+      writer.write('\n');
+      return;
+    }
+    for (IBaseResource resource : compartment) {
+      FhirParserPool.encode(resource, FhirParserPool.Format.NDJSON, writer);
+      writer.write('\n');
+    }
+  }
+}
@@ -0,0 +1,18 @@
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a generator function whose result only depends on its arguments and that draws no random
+ * values. The {@link BluePrintCompiler} evaluates calls of such functions with literal arguments
+ * once per blueprint and sets their results in the template instead of calling them for every
+ * generated resource.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Pure {
+
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Table of the distributions {@link GeneratorFunctions#randomQuantity} draws its values from, by
+ * LOINC code and by UCUM code. Quantities without an entry keep the former uniform distribution
+ * between -100 and 100.
+ *
+ * <p>Sampling and rounding only use primitive arithmetic, the only allocation of a generated
+ * value is the Quantity it is set on.
+ */
+public class QuantityDistributions {
+
+  /**
+   * Classpath location of the default table.
+   */
+  public static final String CLASSPATH_TABLE = "QuantityDistribution/quantity-distributions.csv";
+
+  private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+  /**
+   * Distribution of quantities without an entry in the table.
+   */
+  public static final Distribution DEFAULT_DISTRIBUTION = new Distribution(Shape.UNIFORM, -100,
+      100, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+
+  private static final int MAX_ATTEMPTS = 16;
+
+  private static volatile QuantityDistributions current;
+
+  private final Map<String, Distribution> byLoincCode = new HashMap<>();
+  private final Map<String, Distribution> byUnit = new HashMap<>();
+
+  public enum Shape {
+    NORMAL, LOG_NORMAL, UNIFORM;
+
+    static Shape parse(String shape) {
+      return shape.equalsIgnoreCase("lognormal") ? LOG_NORMAL
+          : valueOf(shape.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  /**
+   * A distribution clipped to [low, high] whose values are rounded to a number of decimal places.
+   *
+   * @param shape     the shape of the distribution
+   * @param p1        mean (normal), median (log-normal) or minimum (uniform)
+   * @param p2        standard deviation (normal), standard deviation of the logarithm (log-normal)
+   *                  or maximum (uniform)
+   * @param low       lowest value
+   * @param high      highest value
+   * @param precision number of decimal places
+   */
+  public record Distribution(Shape shape, double p1, double p2, double low, double high,
+                             int precision) {
+
+    public Distribution {
+      if (precision < 0 || precision >= POWERS_OF_TEN.length) {
+        throw new IllegalArgumentException("Precision out of range: " + precision);
+      }
+      if (low > high) {
+        throw new IllegalArgumentException("low must not be greater than high");
+      }
+    }
+
+    /**
+     * @param random the random to draw from
+     * @return a rounded value within [low, high]
+     */
+    public double sample(Random random) {
+      return sample(random, low, high);
+    }
+
+    /**
+     * Draws a value that satisfies a comparator against a bound, i.e. for "<" a value below the
+     * bound. The smallest step of the precision separates the value from the bound for "<" and ">".
+     *
+     * @param random     the random to draw from
+     * @param comparator one of "<", "<=", ">=" and ">", other comparators are ignored
+     * @param bound      the bound of the comparator
+     * @return a rounded value within [low, high] that satisfies the comparator, or the bound
+     *     clipped to [low, high] if no value does
+     */
+    public double sample(Random random, String comparator, double bound) {
+      double step = 1 / POWERS_OF_TEN[precision];
+      return switch (comparator) {
+        case "<" -> sample(random, low, Math.min(high, bound - step));
+        case "<=" -> sample(random, low, Math.min(high, bound));
+        case ">" -> sample(random, Math.max(low, bound + step), high);
+        case ">=" -> sample(random, Math.max(low, bound), high);
+        default -> sample(random);
+      };
+    }
+
+    /**
+     * @param value a value
+     * @return the value rounded half up to the precision of the distribution
+     */
+    public double round(double value) {
+      double scale = POWERS_OF_TEN[precision];
+      return Math.floor(value * scale + 0.5) / scale;
+    }
+
+    private double sample(Random random, double from, double to) {
+      if (from >= to) {
+        return round(Math.max(low, Math.min(high, from)));
+      }
+      double value = draw(random, from, to);
+      for (int attempt = 1; attempt < MAX_ATTEMPTS && (value < from || value > to); attempt++) {
+        value = draw(random, from, to);
+      }
+      value = round(Math.max(from, Math.min(to, value)));
+      // Rounding may move the value just outside of the interval.
+      double scale = POWERS_OF_TEN[precision];
+      if (value < from) {
+        value = Math.ceil(from * scale) / scale;
+      } else if (value > to) {
+        value = Math.floor(to * scale) / scale;
+      }
+      return value;
+    }
+
+    private double draw(Random random, double from, double to) {
+      return switch (shape) {
+        case NORMAL -> p1 + p2 * random.nextGaussian();
+        case LOG_NORMAL -> p1 * Math.exp(p2 * random.nextGaussian());
+        case UNIFORM -> {
+          double min = Math.max(p1, from);
+          double max = Math.min(p2, to);
+          yield min < max ? min + (max - min) * random.nextDouble() : from;
+        }
+      };
+    }
+  }
+
+  /**
+   * @return the table used by the generator functions, the default table unless another one was
+   *     set
+   */
+  public static QuantityDistributions current() {
+    var distributions = current;
+    if (distributions == null) {
+      synchronized (QuantityDistributions.class) {
+        if (current == null) {
+          current = loadDefault();
+        }
+        distributions = current;
+      }
+    }
+    return distributions;
+  }
+
+  /**
+   * Replaces the table used by the generator functions.
+   *
+   * @param distributions the table
+   */
+  public static void setCurrent(QuantityDistributions distributions) {
+    current = distributions;
+  }
+
+  /**
+   * Finds the distribution of a quantity.
+   *
+   * @param loincCode the LOINC code of the observation or null
+   * @param unit      the UCUM code of the quantity or null
+   * @return the distribution of the LOINC code, else of the unit, else
+   *     {@link #DEFAULT_DISTRIBUTION}
+   */
+  public Distribution find(String loincCode, String unit) {
+    Distribution distribution = loincCode == null ? null : byLoincCode.get(loincCode);
+    if (distribution == null && unit != null) {
+      distribution = byUnit.get(unit);
+    }
+    return distribution == null ? DEFAULT_DISTRIBUTION : distribution;
+  }
+
+  /**
+   * @return the entries of the table in a stable order
+   */
+  @Override
+  public String toString() {
+    return "loinc=" + new TreeMap<>(byLoincCode) + ", unit=" + new TreeMap<>(byUnit);
+  }
+
+  /**
+   * Loads a table from a CSV file with the columns lookup (loinc or unit), code, distribution, p1,
+   * p2, low, high and precision. Lines starting with # are comments.
+   *
+   * @param file the CSV file
+   * @return the table
+   */
+  public static QuantityDistributions load(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return load(reader);
+    }
+  }
+
+  static QuantityDistributions load(Reader reader) throws IOException {
+    var distributions = new QuantityDistributions();
+    var lines = new BufferedReader(reader);
+    boolean header = true;
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      if (header) {
+        header = false;
+        continue;
+      }
+      String[] columns = line.split(",", -1);
+      if (columns.length != 8) {
+        throw new IOException("Expected 8 columns: " + line);
+      }
+      var distribution = new Distribution(Shape.parse(columns[2].trim()),
+          Double.parseDouble(columns[3]), Double.parseDouble(columns[4]),
+          columns[5].isBlank() ? Double.NEGATIVE_INFINITY : Double.parseDouble(columns[5]),
+          columns[6].isBlank() ? Double.POSITIVE_INFINITY : Double.parseDouble(columns[6]),
+          Integer.parseInt(columns[7].trim()));
+      switch (columns[0].trim()) {
+        case "loinc" -> distributions.byLoincCode.put(columns[1].trim(), distribution);
+        case "unit" -> distributions.byUnit.put(columns[1].trim(), distribution);
+        default -> throw new IOException("Unknown lookup " + columns[0] + ": " + line);
+      }
+    }
+    return distributions;
+  }
+
+  private static QuantityDistributions loadDefault() {
+    var in = QuantityDistributions.class.getClassLoader().getResourceAsStream(CLASSPATH_TABLE);
+    if (in == null) {
+      System.out.println("No quantity distributions found on the classpath, using "
+          + DEFAULT_DISTRIBUTION + " for all quantities");
+      return new QuantityDistributions();
+    }
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      return load(reader);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Checks that every relative reference (Type/id) of the output resolves to a resource of the
+ * output. The ids of the resources are collected per type in an {@link IdIndex} and every
+ * reference is checked against it when it arrives; references to resources that were not seen yet
+ * are kept and checked again at {@link #close()}. Absolute, contained and urn references are
+ * counted but not checked.
+ *
+ * <p>As a sink it checks the generated resources after the deferred references are resolved,
+ * {@link #scan(Path)} checks the NDJSON files of an existing output.
+ */
+public class ReferenceIntegrityCheck implements ResourceSink {
+
+  private static final int MAX_EXAMPLES = 10;
+
+  private final FhirTerser terser = SharedFhirContext.get().newTerser();
+  private final Map<String, IdIndex> ids = new HashMap<>();
+  private final Map<String, IdIndex> pending = new HashMap<>();
+  private final List<String> examples = new ArrayList<>();
+  private long resources;
+  private long references;
+  private long unchecked;
+  private long unresolved;
+  private long bytes;
+  private final long startNanos = System.nanoTime();
+  private long endNanos;
+
+  @Override
+  public synchronized void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    for (IBaseResource resource : resources) {
+      addResource(resource.fhirType(), resource.getIdElement().getIdPart());
+      for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource,
+          Reference.class)) {
+        checkReference(reference.getReference());
+      }
+    }
+  }
+
+  private void addResource(String type, String id) {
+    resources++;
+    if (id != null) {
+      ids.computeIfAbsent(type, t -> new IdIndex()).add(id);
+    }
+  }
+
+  private void checkReference(String reference) {
+    if (reference == null) {
+      return;
+    }
+    references++;
+    int slash = reference.indexOf('/');
+    if (slash <= 0 || reference.startsWith("#") || reference.contains(":")) {
+      unchecked++;
+      return;
+    }
+    int end = reference.indexOf('/', slash + 1);
+    var type = reference.substring(0, slash);
+    var id = reference.substring(slash + 1, end < 0 ? reference.length() : end);
+    var index = ids.get(type);
+    if (index == null || !index.contains(id)) {
+      pending.computeIfAbsent(type, t -> new IdIndex()).add(id);
+    }
+  }
+
+  /**
+   * Checks the references to resources that were not seen when the references arrived.
+   */
+  @Override
+  public synchronized void close() {
+    endNanos = System.nanoTime();
+    pending.forEach((type, targets) -> {
+      var index = ids.get(type);
+      targets.forEach(id -> {
+        if (index == null || !index.contains(id)) {
+          unresolved++;
+          if (examples.size() < MAX_EXAMPLES) {
+            examples.add(type + "/" + id);
+          }
+        }
+      });
+    });
+    pending.clear();
+  }
+
+  /**
+   * Checks the references of all NDJSON files (*.ndjson) in a directory and its subdirectories, or
+   * of a single file. The files are read with a streaming parser, every JSON object with a
+   * resourceType and an id is a resource and every string field reference a reference, so
+   * resources in Bundles are checked as well.
+   *
+   * @param path an NDJSON file or a directory
+   * @return the closed check
+   */
+  public static ReferenceIntegrityCheck scan(Path path) throws IOException {
+    var check = new ReferenceIntegrityCheck();
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(path)) {
+      files = paths.filter(file -> file.toString().endsWith(".ndjson") && Files.isRegularFile(file))
+          .sorted().toList();
+    }
+    for (Path file : files) {
+      try (InputStream in = Files.newInputStream(file);
+          JsonParser parser = BluePrintIndex.JSON_FACTORY.createParser(in)) {
+        check.scan(parser);
+      }
+      check.bytes += Files.size(file);
+    }
+    check.close();
+    return check;
+  }
+
+  private void scan(JsonParser parser) throws IOException {
+    // The resourceType and id of the objects enclosing the current token
+    List<String[]> objects = new ArrayList<>();
+    int depth = 0;
+    for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+      switch (token) {
+        case START_OBJECT -> {
+          if (objects.size() == depth) {
+            objects.add(new String[2]);
+          }
+          objects.get(depth)[0] = null;
+          objects.get(depth)[1] = null;
+          depth++;
+        }
+        case END_OBJECT -> {
+          depth--;
+          var object = objects.get(depth);
+          if (object[0] != null && object[1] != null) {
+            addResource(object[0], object[1]);
+          }
+        }
+        case VALUE_STRING -> {
+          var name = parser.getCurrentName();
+          if ("reference".equals(name)) {
+            checkReference(parser.getText());
+          } else if (depth > 0 && "resourceType".equals(name)) {
+            objects.get(depth - 1)[0] = parser.getText();
+          } else if (depth > 0 && "id".equals(name)) {
+            objects.get(depth - 1)[1] = parser.getText();
+          }
+        }
+        default -> {
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of distinct references that do not resolve, call after {@link #close()}
+   */
+  public synchronized long unresolved() {
+    return unresolved;
+  }
+
+  /**
+   * @return up to 10 references that do not resolve, call after {@link #close()}
+   */
+  public synchronized List<String> examples() {
+    return List.copyOf(examples);
+  }
+
+  /**
+   * @return number of checked resources
+   */
+  public synchronized long resources() {
+    return resources;
+  }
+
+  /**
+   * Records the checked references, the unresolved ones and the rate the resources were checked
+   * at, call after {@link #close()}.
+   */
+  public synchronized void report(RunReport report) {
+    report.record("references", references + " (" + unchecked + " not relative, " + unresolved
+        + " distinct unresolved)");
+    if (!examples.isEmpty()) {
+      report.record("unresolved references", String.join(", ", examples));
+    }
+    report.recordRate("reference check", resources, endNanos - startNanos, "resources");
+    if (bytes > 0) {
+      report.recordRate("reference scan", bytes / 1e6, endNanos - startNanos, "MB");
+    }
+  }
+}
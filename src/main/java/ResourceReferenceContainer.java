@@ -7,22 +7,31 @@ public class ResourceReferenceContainer extends
 
   private final List<IBaseResource> resources;
   private final Reference reference;
+  private final DeferredReference deferred;
 
   private ResourceReferenceContainer(
       List<IBaseResource> resources,
-      Reference reference) {
+      Reference reference, DeferredReference deferred) {
     this.resources = resources;
     this.reference = reference;
+    this.deferred = deferred;
   }
 
   public static <T extends IBaseResource> ResourceReferenceContainer of(T resource,
       Reference reference) {
-    return new ResourceReferenceContainer(List.of(resource), reference);
+    return new ResourceReferenceContainer(List.of(resource), reference, null);
   }
 
   public static ResourceReferenceContainer of(List<IBaseResource> resources,
       Reference reference) {
-    return new ResourceReferenceContainer(List.copyOf(resources), reference);
+    return new ResourceReferenceContainer(List.copyOf(resources), reference, null);
+  }
+
+  /**
+   * Creates a container without resources, the target is generated by the output stage.
+   */
+  public static ResourceReferenceContainer of(DeferredReference deferred) {
+    return new ResourceReferenceContainer(List.of(), deferred.toReference(), deferred);
   }
 
   public List<IBaseResource> resources() {
@@ -32,4 +41,11 @@ public class ResourceReferenceContainer extends
   public Reference reference() {
     return reference;
   }
+
+  /**
+   * @return the deferred reference or null if the resources were generated eagerly
+   */
+  public DeferredReference deferred() {
+    return deferred;
+  }
 }
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Receives the resources of a generation run, i.e. to validate, buffer or write them.
+ */
+@FunctionalInterface
+public interface ResourceSink extends AutoCloseable {
+
+  /**
+   * Accepts the resources generated from one instance of a blueprint.
+   *
+   * @param bluePrint the blueprint the resources were generated from
+   * @param resources the generated resource and the resources it references
+   */
+  void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources) throws IOException;
+
+  /**
+   * Called once after the last resources were accepted.
+   */
+  @Override
+  default void close() throws IOException {
+  }
+}
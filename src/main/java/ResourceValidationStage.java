@@ -0,0 +1,256 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Optional stage of the generation that validates the generated resources against their profiles.
+ * Every n-th resource is validated on a pool of worker threads and the issues found are aggregated
+ * per blueprint and resource type instead of being printed for each resource, so the issues of the
+ * resources a blueprint references are not counted as issues of its own resource type.
+ */
+public class ResourceValidationStage implements ResourceSink {
+
+  /**
+   * Directory of the StructureDefinitions, ValueSets and CodeSystems of the profiles, in addition
+   * to the FHIR core definitions.
+   */
+  public static final String DEFAULT_STRUCTURE_DEFINITION_DIRECTORY =
+      "src/main/resources/StructureDefinition";
+
+  private final FhirValidator validator;
+  private final ThreadPoolExecutor workers;
+  private final int sampleRate;
+  private final ResultSeverityEnum minimumSeverity;
+  private final AtomicLong submitted = new AtomicLong();
+  private final Map<ResultKey, BluePrintValidationResult> results = new ConcurrentHashMap<>();
+
+  private record ResultKey(int index, String resourceType) {
+
+  }
+
+  /**
+   * @param ctx               the FhirContext
+   * @param validationSupport the validation support, see {@link #createValidationSupport}
+   * @param threads           number of validation workers
+   * @param sampleRate        validate 1 in sampleRate resources
+   * @param minimumSeverity   issues below this severity are not reported
+   */
+  public ResourceValidationStage(FhirContext ctx, IValidationSupport validationSupport,
+      int threads, int sampleRate, ResultSeverityEnum minimumSeverity) {
+    if (threads < 1 || sampleRate < 1) {
+      throw new IllegalArgumentException("threads and sampleRate must be at least 1");
+    }
+    this.validator = ctx.newValidator().registerValidatorModule(
+        new FhirInstanceValidator(validationSupport));
+    this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * 64), new CallerRunsPolicy());
+    this.sampleRate = sampleRate;
+    this.minimumSeverity = minimumSeverity;
+  }
+
+  /**
+   * Creates a cached validation support chain of the FHIR core definitions and the conformance
+   * resources in the given directory. Each JSON file holds a single resource or a Bundle of them.
+   *
+   * @param ctx       the FhirContext
+   * @param directory directory of the local conformance resources, ignored if it does not exist
+   * @return the validation support chain
+   */
+  public static IValidationSupport createValidationSupport(FhirContext ctx, Path directory)
+      throws IOException {
+    var localDefinitions = new PrePopulatedValidationSupport(ctx);
+    if (Files.isDirectory(directory)) {
+      var parser = ctx.newJsonParser();
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : files.filter(f -> f.toString().endsWith(".json")).sorted().toList()) {
+          var resource = parser.parseResource(Files.readString(file, StandardCharsets.UTF_8));
+          if (resource instanceof Bundle bundle) {
+            bundle.getEntry().forEach(entry -> localDefinitions.addResource(entry.getResource()));
+          } else {
+            localDefinitions.addResource(resource);
+          }
+        }
+      }
+    }
+    var chain = new ValidationSupportChain(
+        new DefaultProfileValidationSupport(ctx),
+        localDefinitions,
+        new CommonCodeSystemsTerminologyService(ctx),
+        new InMemoryTerminologyServerValidationSupport(ctx),
+        new SnapshotGeneratingValidationSupport(ctx));
+    return new CachingValidationSupport(chain);
+  }
+
+  /**
+   * Validates the templates once, so the definitions are loaded and the snapshots are generated
+   * before the workers start instead of by the first resources of every worker.
+   *
+   * @param templates the templates of the compiled blueprints
+   */
+  public void warmUp(Collection<? extends IBaseResource> templates) {
+    templates.forEach(validator::validateWithResult);
+  }
+
+  /**
+   * Accepts the resources generated from a blueprint. Every sampleRate-th resource is validated
+   * asynchronously. Blocks if the workers fall behind.
+   *
+   * @param bluePrint the blueprint the resources were generated from
+   * @param resources the generated resource and the resources it references
+   */
+  @Override
+  public void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources) {
+    for (IBaseResource resource : resources) {
+      if (submitted.getAndIncrement() % sampleRate == 0) {
+        workers.execute(() -> validate(bluePrint, resource));
+      }
+    }
+  }
+
+  private void validate(CompiledBluePrint bluePrint, IBaseResource resource) {
+    ValidationResult result = validator.validateWithResult(resource);
+    results.computeIfAbsent(new ResultKey(bluePrint.index(), resource.fhirType()),
+            key -> new BluePrintValidationResult(key.index(), key.resourceType()))
+        .add(result, minimumSeverity);
+  }
+
+  /**
+   * Waits until all submitted resources are validated.
+   */
+  @Override
+  public void close() {
+    workers.shutdown();
+    try {
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the validation results by blueprint and resource type with at least one validated
+   * resource
+   */
+  public List<BluePrintValidationResult> results() {
+    return results.values().stream()
+        .sorted(Comparator.comparingInt(BluePrintValidationResult::index)
+            .thenComparing(BluePrintValidationResult::resourceType)).toList();
+  }
+
+  /**
+   * Prints the issues of every blueprint and records the totals in the run report.
+   *
+   * @param report the run report
+   */
+  public void report(RunReport report) {
+    long validated = 0;
+    long withIssues = 0;
+    for (BluePrintValidationResult result : results()) {
+      validated += result.validated();
+      withIssues += result.withIssues();
+      if (result.withIssues() > 0) {
+        System.out.println(result);
+      }
+    }
+    report.record("validated resources", validated + " (1 in " + sampleRate + ")");
+    report.record("resources with validation issues", String.valueOf(withIssues));
+  }
+
+  /**
+   * The validation issues of the resources of one type generated from one blueprint, counted by
+   * message.
+   */
+  public static class BluePrintValidationResult {
+
+    private final int index;
+    private final String resourceType;
+    private final LongAdder validated = new LongAdder();
+    private final LongAdder withIssues = new LongAdder();
+    private final Map<String, LongAdder> issues = new ConcurrentHashMap<>();
+
+    BluePrintValidationResult(int index, String resourceType) {
+      this.index = index;
+      this.resourceType = resourceType;
+    }
+
+    void add(ValidationResult result, ResultSeverityEnum minimumSeverity) {
+      validated.increment();
+      boolean hasIssue = false;
+      for (SingleValidationMessage message : result.getMessages()) {
+        if (message.getSeverity().ordinal() >= minimumSeverity.ordinal()) {
+          hasIssue = true;
+          issues.computeIfAbsent(message.getSeverity().getCode() + " "
+                  + message.getLocationString() + ": " + message.getMessage(),
+              key -> new LongAdder()).increment();
+        }
+      }
+      if (hasIssue) {
+        withIssues.increment();
+      }
+    }
+
+    public int index() {
+      return index;
+    }
+
+    public String resourceType() {
+      return resourceType;
+    }
+
+    public long validated() {
+      return validated.sum();
+    }
+
+    public long withIssues() {
+      return withIssues.sum();
+    }
+
+    /**
+     * @return number of occurrences by issue
+     */
+    public Map<String, Long> issues() {
+      return issues.entrySet().stream().collect(
+          Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().sum()));
+    }
+
+    @Override
+    public String toString() {
+      var sb = new StringBuilder(String.format("Blueprint %d (%s): %d of %d validated resources "
+          + "with issues", index, resourceType, withIssues(), validated()));
+      issues().entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(
+          issue -> sb.append(System.lineSeparator()).append("  ").append(issue.getValue())
+              .append("x ").append(issue.getKey()));
+      return sb.toString();
+    }
+  }
+}
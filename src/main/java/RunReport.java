@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the timings and metrics of a generation run and prints them at the end of the run.
+ */
+public class RunReport {
+
+  private final Map<String, String> entries = new LinkedHashMap<>();
+
+  /**
+   * Records a metric. Recording a metric with the same name again replaces the value.
+   *
+   * @param name  name of the metric
+   * @param value value of the metric
+   */
+  public synchronized void record(String name, String value) {
+    entries.put(name, value);
+  }
+
+  /**
+   * Records a duration in milliseconds.
+   *
+   * @param name  name of the metric
+   * @param nanos duration in nanoseconds
+   */
+  public void recordDuration(String name, long nanos) {
+    record(name, TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+  }
+
+  /**
+   * Records a rate per second.
+   *
+   * @param name  name of the metric
+   * @param count number of items processed
+   * @param nanos time it took to process the items in nanoseconds
+   * @param unit  unit of the items, i.e. "resources"
+   */
+  public void recordRate(String name, double count, long nanos, String unit) {
+    double perSecond = nanos > 0 ? count * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    record(name, String.format("%.1f %s/s", perSecond, unit));
+  }
+
+  /**
+   * Records the startup time: the JVM uptime until now and the time spent creating the shared
+   * FhirContext.
+   */
+  public void recordStartup() {
+    record("startup", ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+    long contextNanos = SharedFhirContext.initializationNanos();
+    if (contextNanos >= 0) {
+      recordDuration("FhirContext initialization", contextNanos);
+    }
+  }
+
+  public synchronized Map<String, String> entries() {
+    return Map.copyOf(entries);
+  }
+
+  public void print() {
+    System.out.println(this);
+  }
+
+  @Override
+  public synchronized String toString() {
+    var sb = new StringBuilder("Run report:");
+    entries.forEach((name, value) -> sb.append(System.lineSeparator()).append("  ")
+        .append(name).append(": ").append(value));
+    return sb.toString();
+  }
+}
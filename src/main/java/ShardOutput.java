@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Output of one shard of a run: an NDJSON file per resource type, a manifest once the shard is
+ * complete and, while it is generated, a checkpoint. The checkpoint records the next unit to
+ * generate and the size of every file. Since the random values and ids of a unit only depend on
+ * the run seed and the unit, this is all that is needed to continue an interrupted shard and
+ * produce the same files as an uninterrupted one.
+ */
+public class ShardOutput {
+
+  private final Path directory;
+  private final ShardPlan plan;
+  private final String suffix;
+
+  public ShardOutput(Path directory, ShardPlan plan) {
+    this.directory = directory;
+    this.plan = plan;
+    this.suffix = "shard-" + plan.shardIndex() + "-of-" + plan.shardCount();
+  }
+
+  public Path file(String resourceType) {
+    return directory.resolve(resourceType + "-" + suffix + ".ndjson");
+  }
+
+  public Path manifestFile() {
+    return directory.resolve("manifest-" + suffix + ".json");
+  }
+
+  public Path checkpointFile() {
+    return directory.resolve("checkpoint-" + suffix + ".json");
+  }
+
+  /**
+   * @return the last checkpoint of the shard, if the shard was interrupted
+   */
+  public Optional<OutputManifest> readCheckpoint() throws IOException {
+    return Files.exists(checkpointFile()) ? Optional.of(OutputManifest.read(checkpointFile()))
+        : Optional.empty();
+  }
+
+  /**
+   * Generates the units of the shard. A checkpoint is written after every checkpointInterval units
+   * and deleted once the manifest is written.
+   *
+   * @param run                the run to generate
+   * @param sinks              further sinks, i.e. the validation stage
+   * @param checkpointInterval number of units between two checkpoints
+   * @param checkpoint         the checkpoint to continue from or null to start from the beginning
+   * @return number of resources generated by this call
+   */
+  public long generate(GenerationRun run, List<ResourceSink> sinks, long checkpointInterval,
+      OutputManifest checkpoint) throws IOException {
+    Files.createDirectories(directory);
+    var writer = new StreamingNDJsonWriter(this::file);
+    long unit = plan.firstUnit();
+    if (checkpoint != null) {
+      verify(checkpoint, run);
+      writer.resume(checkpoint.parts());
+      unit = Long.parseLong(checkpoint.getProperty("nextUnit"));
+    }
+    // The targets of deferred references are only remembered until the next checkpoint, so a
+    // resumed shard writes the same targets.
+    var resolver = new DeferredReferenceResolver(writer);
+    var allSinks = new ArrayList<>(sinks);
+    allSinks.add(resolver);
+
+    long count = 0;
+    while (unit < plan.endUnit()) {
+      long end = Math.min(unit + checkpointInterval, plan.endUnit());
+      count += run.run(unit, end, allSinks);
+      unit = end;
+      resolver.forget();
+      writeAtomically(runProperties(run, new OutputManifest()).setProperty("nextUnit", unit)
+          .addParts(writer.checkpoint()), checkpointFile());
+    }
+    for (ResourceSink sink : allSinks) {
+      sink.close();
+    }
+    writeAtomically(runProperties(run, new OutputManifest()).addParts(writer.parts()),
+        manifestFile());
+    Files.deleteIfExists(checkpointFile());
+    return count;
+  }
+
+  private OutputManifest runProperties(GenerationRun run, OutputManifest manifest) {
+    return manifest
+        .setProperty("seed", run.seed())
+        .setProperty("shardIndex", plan.shardIndex())
+        .setProperty("shardCount", plan.shardCount())
+        .setProperty("bluePrintCount", plan.bluePrintCount())
+        .setProperty("instancesPerBluePrint", plan.instancesPerBluePrint())
+        .setProperty("referenceTime", GeneratorRandom.referenceTime())
+        .setProperty("deferredReferences", DeferredReference.isEnabled());
+  }
+
+  /**
+   * Checks that a checkpoint was written by the same run, otherwise continuing would mix the
+   * output of two runs.
+   */
+  private void verify(OutputManifest checkpoint, GenerationRun run) {
+    var expected = runProperties(run, new OutputManifest()).properties();
+    for (Map.Entry<String, String> property : expected.entrySet()) {
+      if (!property.getValue().equals(checkpoint.getProperty(property.getKey()))) {
+        throw new IllegalStateException("The checkpoint was written with " + property.getKey()
+            + " " + checkpoint.getProperty(property.getKey()) + ", this run uses "
+            + property.getValue());
+      }
+    }
+  }
+
+  private static void writeAtomically(OutputManifest manifest, Path file) throws IOException {
+    var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    manifest.write(tempFile);
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Assigns the work units of a run to shards. A run consists of one unit per instance of every
+ * compiled blueprint, numbered blueprint by blueprint. Each shard gets a contiguous range of units,
+ * so it generates whole blueprints and at most two partial instance ranges. The assignment only
+ * depends on the shard count, the number of blueprints and the instances per blueprint.
+ *
+ * @param shardIndex           index of this shard, starting at 0
+ * @param shardCount           number of shards
+ * @param bluePrintCount       number of compiled blueprints
+ * @param instancesPerBluePrint instances generated from every blueprint
+ */
+public record ShardPlan(int shardIndex, int shardCount, int bluePrintCount,
+                        long instancesPerBluePrint) {
+
+  public ShardPlan {
+    if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+    }
+    if (instancesPerBluePrint < 1) {
+      throw new IllegalArgumentException("At least one instance per blueprint is required");
+    }
+  }
+
+  /**
+   * A plan that generates all units in a single shard.
+   */
+  public static ShardPlan single(int bluePrintCount, long instancesPerBluePrint) {
+    return new ShardPlan(0, 1, bluePrintCount, instancesPerBluePrint);
+  }
+
+  /**
+   * Parses a shard given as "i/n", i.e. "0/4" for the first of four shards.
+   */
+  public static ShardPlan parse(String shard, int bluePrintCount, long instancesPerBluePrint) {
+    var parts = shard.split("/");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Invalid shard " + shard + ", expected i/n");
+    }
+    return new ShardPlan(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+        bluePrintCount, instancesPerBluePrint);
+  }
+
+  public long totalUnits() {
+    return bluePrintCount * instancesPerBluePrint;
+  }
+
+  /**
+   * @return the first unit of this shard
+   */
+  public long firstUnit() {
+    return startOf(shardIndex);
+  }
+
+  /**
+   * @return the unit after the last unit of this shard
+   */
+  public long endUnit() {
+    return startOf(shardIndex + 1);
+  }
+
+  private long startOf(int shard) {
+    long total = totalUnits();
+    return total / shardCount * shard + Math.min(shard, total % shardCount);
+  }
+
+  /**
+   * @return position of the blueprint of the unit in the list of compiled blueprints
+   */
+  public int bluePrintPosition(long unit) {
+    return (int) (unit / instancesPerBluePrint);
+  }
+
+  /**
+   * @return instance of the blueprint generated by the unit
+   */
+  public long instance(long unit) {
+    return unit % instancesPerBluePrint;
+  }
+
+  @Override
+  public String toString() {
+    return shardIndex + "/" + shardCount;
+  }
+}
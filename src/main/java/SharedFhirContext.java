@@ -0,0 +1,43 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+
+/**
+ * Holds the single FhirContext of the application. Creating a FhirContext is expensive, so it is
+ * created on first use and shared by all classes.
+ */
+public class SharedFhirContext {
+
+  private static volatile long initializationNanos = -1;
+
+  private SharedFhirContext() {
+  }
+
+  /**
+   * @return the shared R4 FhirContext, created on the first call
+   */
+  public static FhirContext get() {
+    return Holder.CTX;
+  }
+
+  /**
+   * @return the time it took to create the FhirContext in nanoseconds or -1 if it was not created
+   * yet
+   */
+  public static long initializationNanos() {
+    return initializationNanos;
+  }
+
+  private static FhirContext create() {
+    long start = System.nanoTime();
+    var ctx = FhirContext.forR4();
+    // Only scan the model of a resource type once it is used, most runs only use a few types.
+    ctx.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+    initializationNanos = System.nanoTime() - start;
+    return ctx;
+  }
+
+  private static class Holder {
+
+    private static final FhirContext CTX = create();
+  }
+}
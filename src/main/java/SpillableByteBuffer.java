@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An append-only byte buffer that keeps its content in fixed size chunks and moves them to a
+ * temporary file on {@link #spill()}. Reading returns the spilled bytes followed by the bytes still
+ * in memory, so the order of the written bytes is kept.
+ */
+public class SpillableByteBuffer extends OutputStream {
+
+  /**
+   * Default size of the in-memory chunks.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  private final int chunkSize;
+  private final String tempFilePrefix;
+  private final List<byte[]> chunks = new ArrayList<>();
+  private int positionInChunk;
+  private long spilledBytes;
+  private Path spillFile;
+
+  public SpillableByteBuffer(String tempFilePrefix) {
+    this(tempFilePrefix, DEFAULT_CHUNK_SIZE);
+  }
+
+  public SpillableByteBuffer(String tempFilePrefix, int chunkSize) {
+    this.tempFilePrefix = tempFilePrefix;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public void write(int b) {
+    if (chunks.isEmpty() || positionInChunk == chunkSize) {
+      chunks.add(new byte[chunkSize]);
+      positionInChunk = 0;
+    }
+    chunks.get(chunks.size() - 1)[positionInChunk++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      if (chunks.isEmpty() || positionInChunk == chunkSize) {
+        chunks.add(new byte[chunkSize]);
+        positionInChunk = 0;
+      }
+      int n = Math.min(len, chunkSize - positionInChunk);
+      System.arraycopy(b, off, chunks.get(chunks.size() - 1), positionInChunk, n);
+      positionInChunk += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * @return number of bytes held in memory, including the unused part of the last chunk
+   */
+  public long memoryBytes() {
+    return (long) chunks.size() * chunkSize;
+  }
+
+  /**
+   * @return number of bytes written
+   */
+  public long size() {
+    return spilledBytes + usedMemoryBytes();
+  }
+
+  private long usedMemoryBytes() {
+    return chunks.isEmpty() ? 0 : (long) (chunks.size() - 1) * chunkSize + positionInChunk;
+  }
+
+  /**
+   * Appends the bytes held in memory to the temporary file and frees the chunks.
+   */
+  public void spill() throws IOException {
+    if (chunks.isEmpty()) {
+      return;
+    }
+    if (spillFile == null) {
+      spillFile = Files.createTempFile(tempFilePrefix, ".spill");
+    }
+    try (OutputStream out = Files.newOutputStream(spillFile, StandardOpenOption.APPEND)) {
+      for (int i = 0; i < chunks.size(); i++) {
+        out.write(chunks.get(i), 0, i == chunks.size() - 1 ? positionInChunk : chunkSize);
+      }
+    }
+    spilledBytes += usedMemoryBytes();
+    chunks.clear();
+    positionInChunk = 0;
+  }
+
+  /**
+   * Opens a stream over all bytes written so far. The buffer must not be written to while the
+   * stream is read.
+   *
+   * @return the spilled bytes followed by the bytes in memory
+   */
+  public InputStream openInputStream() throws IOException {
+    List<InputStream> streams = new ArrayList<>();
+    if (spillFile != null) {
+      streams.add(new BufferedInputStream(Files.newInputStream(spillFile),
+          FhirParserPool.BUFFER_SIZE));
+    }
+    for (int i = 0; i < chunks.size(); i++) {
+      streams.add(new ByteArrayInputStream(chunks.get(i), 0,
+          i == chunks.size() - 1 ? positionInChunk : chunkSize));
+    }
+    return new SequenceInputStream(Collections.enumeration(streams));
+  }
+
+  /**
+   * Frees the chunks and deletes the temporary file.
+   */
+  @Override
+  public void close() throws IOException {
+    chunks.clear();
+    positionInChunk = 0;
+    if (spillFile != null) {
+      Files.deleteIfExists(spillFile);
+      spillFile = null;
+    }
+    spilledBytes = 0;
+  }
+}
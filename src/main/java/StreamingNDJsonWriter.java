@@ -0,0 +1,125 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Writes the generated resources to one NDJSON file per resource type while they are generated,
+ * so no resources are kept in memory. The writer can be checkpointed and later resumed from the
+ * checkpointed parts, which truncates the files to the checkpointed sizes.
+ */
+public class StreamingNDJsonWriter implements ResourceSink {
+
+  private final Function<String, Path> fileByType;
+  private final Map<String, TypeFile> files = new TreeMap<>();
+
+  /**
+   * @param fileByType the file of a resource type, i.e. type -> out/Observation.ndjson
+   */
+  public StreamingNDJsonWriter(Function<String, Path> fileByType) {
+    this.fileByType = fileByType;
+  }
+
+  /**
+   * Reopens the files of a checkpoint. Each file is truncated to its checkpointed size and written
+   * files of types that are not part of the checkpoint are replaced when they are written again.
+   *
+   * @param checkpointedParts the parts returned by {@link #checkpoint()}
+   */
+  public synchronized void resume(Collection<OutputManifest.Part> checkpointedParts)
+      throws IOException {
+    for (OutputManifest.Part part : checkpointedParts) {
+      var path = Path.of(part.path());
+      var channel = FileChannel.open(path, StandardOpenOption.WRITE);
+      if (channel.size() < part.bytes()) {
+        channel.close();
+        throw new IOException(path + " is shorter than its checkpoint");
+      }
+      channel.truncate(part.bytes());
+      channel.position(part.bytes());
+      var file = new TypeFile(path, channel);
+      file.lines = part.lines();
+      file.bytes = part.bytes();
+      files.put(part.resourceType(), file);
+    }
+  }
+
+  @Override
+  public synchronized void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    for (IBaseResource resource : resources) {
+      write(resource);
+    }
+  }
+
+  public synchronized void write(IBaseResource resource) throws IOException {
+    byte[] encoded = FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON);
+    var file = files.get(resource.fhirType());
+    if (file == null) {
+      var path = fileByType.apply(resource.fhirType());
+      file = new TypeFile(path, FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+      files.put(resource.fhirType(), file);
+    }
+    file.out.write(encoded);
+    file.out.write('\n');
+    file.lines++;
+    file.bytes += encoded.length + 1;
+  }
+
+  /**
+   * Flushes all files and forces them to the disk.
+   *
+   * @return the parts written so far, to resume from with {@link #resume(Collection)}
+   */
+  public synchronized List<OutputManifest.Part> checkpoint() throws IOException {
+    for (TypeFile file : files.values()) {
+      file.out.flush();
+      file.channel.force(false);
+    }
+    return parts();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (TypeFile file : files.values()) {
+      file.out.close();
+    }
+  }
+
+  /**
+   * @return the written files, complete once the writer is closed
+   */
+  public synchronized List<OutputManifest.Part> parts() {
+    List<OutputManifest.Part> parts = new ArrayList<>();
+    files.forEach((type, file) -> parts.add(
+        new OutputManifest.Part(type, file.path.toString(), file.lines, file.bytes)));
+    return parts;
+  }
+
+  private static class TypeFile {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private long lines;
+    private long bytes;
+
+    private TypeFile(Path path, FileChannel channel) {
+      this.path = path;
+      this.channel = channel;
+      this.out = new BufferedOutputStream(Channels.newOutputStream(channel),
+          FhirParserPool.BUFFER_SIZE);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+/**
+ * Writes the generated resources as flat tables while they are generated, one CSV or TSV file per
+ * {@link ViewDefinition} with one row per resource of its type. The FHIRPath expressions of the
+ * columns are parsed once and evaluated on the generated objects, so the tables cost no encoding
+ * or parsing of the resources.
+ */
+public class TabularOutput implements ResourceSink {
+
+  public enum Format {
+    /**
+     * Comma separated, values with a comma, quote or line break are quoted (RFC 4180).
+     */
+    CSV(',', ".csv"),
+    /**
+     * Tab separated, tabs, line breaks and backslashes in values are escaped with a backslash.
+     */
+    TSV('\t', ".tsv");
+
+    private final char separator;
+    private final String extension;
+
+    Format(char separator, String extension) {
+      this.separator = separator;
+      this.extension = extension;
+    }
+
+    public static Format parse(String format) {
+      return valueOf(format.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private final Format format;
+  private final FHIRPathEngine engine;
+  private final Map<String, List<Table>> tablesByType = new HashMap<>();
+  private final List<Table> tables = new ArrayList<>();
+  private final long startNanos;
+
+  /**
+   * @param directory the directory of the tables, a table is written to name.csv or name.tsv
+   * @param format    the format of the tables
+   * @param views     the view definitions of the tables
+   */
+  public TabularOutput(Path directory, Format format, List<ViewDefinition> views)
+      throws IOException {
+    this.format = format;
+    var ctx = SharedFhirContext.get();
+    this.engine = new FHIRPathEngine(new HapiWorkerContext(ctx, ctx.getValidationSupport()));
+    Files.createDirectories(directory);
+    for (ViewDefinition view : views) {
+      var table = new Table(view, directory.resolve(view.name() + format.extension));
+      tables.add(table);
+      tablesByType.computeIfAbsent(view.resource(), type -> new ArrayList<>()).add(table);
+    }
+    startNanos = System.nanoTime();
+  }
+
+  @Override
+  public synchronized void accept(CompiledBluePrint bluePrint, List<IBaseResource> resources)
+      throws IOException {
+    for (IBaseResource resource : resources) {
+      var tables = tablesByType.get(resource.fhirType());
+      if (tables != null) {
+        for (Table table : tables) {
+          table.write((Base) resource);
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Table table : tables) {
+      table.out.close();
+    }
+  }
+
+  /**
+   * @return the number of rows by table name
+   */
+  public synchronized Map<String, Long> rows() {
+    Map<String, Long> rows = new HashMap<>();
+    for (Table table : tables) {
+      rows.put(table.view.name(), table.rows);
+    }
+    return rows;
+  }
+
+  /**
+   * Records the rows of every table and the rate they were written at, call after
+   * {@link #close()}.
+   */
+  public synchronized void report(RunReport report) {
+    long nanos = System.nanoTime() - startNanos;
+    for (Table table : tables) {
+      report.recordRate("table " + table.view.name(), table.rows, nanos, "rows");
+    }
+  }
+
+  private final class Table {
+
+    private final ViewDefinition view;
+    private final List<ExpressionNode> columns = new ArrayList<>();
+    private final List<ExpressionNode> where = new ArrayList<>();
+    private final Writer out;
+    private final StringBuilder row = new StringBuilder();
+    private long rows;
+
+    private Table(ViewDefinition view, Path file) throws IOException {
+      this.view = view;
+      for (ViewDefinition.Column column : view.columns()) {
+        columns.add(engine.parse(column.path()));
+      }
+      for (String clause : view.where()) {
+        where.add(engine.parse(clause));
+      }
+      out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16);
+      for (int i = 0; i < view.columns().size(); i++) {
+        if (i > 0) {
+          row.append(format.separator);
+        }
+        appendValue(view.columns().get(i).name());
+      }
+      writeRow();
+    }
+
+    private void write(Base resource) throws IOException {
+      for (ExpressionNode clause : where) {
+        if (!engine.convertToBoolean(engine.evaluate(resource, clause))) {
+          return;
+        }
+      }
+      for (int i = 0; i < columns.size(); i++) {
+        if (i > 0) {
+          row.append(format.separator);
+        }
+        var values = engine.evaluate(resource, columns.get(i));
+        var column = view.columns().get(i);
+        for (int j = 0; j < (column.collection() ? values.size() : Math.min(1, values.size()));
+            j++) {
+          var value = values.get(j);
+          if (!value.isPrimitive()) {
+            throw new IllegalArgumentException("The value of column " + column.name() + " of "
+                + view.name() + " is a " + value.fhirType() + ", not a primitive");
+          }
+          if (j > 0) {
+            row.append(' ');
+          }
+          appendValue(value.primitiveValue());
+        }
+      }
+      writeRow();
+      rows++;
+    }
+
+    private void appendValue(String value) {
+      if (value == null) {
+        return;
+      }
+      if (format == Format.TSV) {
+        for (int i = 0; i < value.length(); i++) {
+          char c = value.charAt(i);
+          switch (c) {
+            case '\t' -> row.append("\\t");
+            case '\n' -> row.append("\\n");
+            case '\r' -> row.append("\\r");
+            case '\\' -> row.append("\\\\");
+            default -> row.append(c);
+          }
+        }
+      } else if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+          || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+        row.append('"').append(value.replace("\"", "\"\"")).append('"');
+      } else {
+        row.append(value);
+      }
+    }
+
+    private void writeRow() throws IOException {
+      row.append('\n');
+      out.append(row);
+      row.setLength(0);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Period;
+
+/**
+ * Samples the dates of the {@link GeneratorFunctions} as epoch seconds between precomputed bounds
+ * and creates the FHIR values directly from them, without formatting and parsing strings.
+ *
+ * <p>Dates lie between the start of the timeline and the reference time of
+ * {@link GeneratorRandom}. The timeline starts in 2000 or, once the patient of the resource is
+ * known, at the birth date of the patient. Inside a {@link PatientCompartment} the instances of a
+ * blueprint can form a time series: instance j of n draws its dates from the j-th of n equal
+ * slices of the timeline, so the dates of the series are sorted.
+ */
+public final class TemporalGenerator {
+
+  /**
+   * 2000-01-01T00:00:00Z, the earliest generated date.
+   */
+  public static final long EARLIEST_EPOCH_SECOND = 946684800L;
+
+  /**
+   * Time zone of the generated dates. It is fixed, so runs on machines in different time zones
+   * generate the same values.
+   */
+  public static final TimeZone TIME_ZONE = TimeZone.getTimeZone("Europe/Berlin");
+
+  private static final ZoneId ZONE = TIME_ZONE.toZoneId();
+
+  private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+  static final long NONE = Long.MIN_VALUE;
+
+  private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+  private TemporalGenerator() {
+  }
+
+  /**
+   * Starts the timeline of a patient compartment at the birth date of its patient.
+   *
+   * @param birthDate the birth date of the patient or null
+   */
+  public static void startCompartment(DateType birthDate) {
+    STATE.get().compartmentStart = epochSecond(birthDate);
+  }
+
+  public static void endCompartment() {
+    var state = STATE.get();
+    state.compartmentStart = NONE;
+    state.seriesIndex = 0;
+    state.seriesLength = 1;
+  }
+
+  /**
+   * Starts the timeline of the current unit at the birth date of the patient it created. Takes
+   * precedence over the timeline of the compartment until {@link #endUnit()}.
+   *
+   * @param birthDate the birth date of the patient or null
+   */
+  public static void startUnitTimeline(DateType birthDate) {
+    STATE.get().unitStart = epochSecond(birthDate);
+  }
+
+  public static void endUnit() {
+    STATE.get().unitStart = NONE;
+  }
+
+  /**
+   * Saves the timeline of the unit on the current thread as the timeline of unit i of a block.
+   */
+  static void save(UnitBlock block, int i) {
+    block.timelineStarts[i] = STATE.get().unitStart;
+  }
+
+  /**
+   * Continues the timeline of unit i of a block on the current thread.
+   */
+  static void restore(UnitBlock block, int i) {
+    STATE.get().unitStart = block.timelineStarts[i];
+  }
+
+  /**
+   * Sets the position of the following dates in a time series of the compartment.
+   *
+   * @param index  position in the series, from 0
+   * @param length length of the series
+   */
+  public static void setSeriesPosition(int index, int length) {
+    if (index < 0 || index >= length) {
+      throw new IllegalArgumentException("Series position " + index + " of " + length);
+    }
+    var state = STATE.get();
+    state.seriesIndex = index;
+    state.seriesLength = length;
+  }
+
+  /**
+   * @return the start of the current timeline in epoch seconds
+   */
+  public static long timelineStart() {
+    var state = STATE.get();
+    long start = state.unitStart != NONE ? state.unitStart : state.compartmentStart;
+    return Math.max(EARLIEST_EPOCH_SECOND, start);
+  }
+
+  /**
+   * @return the end of every timeline, the reference time in epoch seconds
+   */
+  public static long timelineEnd() {
+    return GeneratorRandom.referenceTime().getEpochSecond();
+  }
+
+  /**
+   * @return a random time of the current timeline and series position in epoch seconds
+   */
+  public static long randomEpochSecond() {
+    var state = STATE.get();
+    long start = timelineStart();
+    long span = timelineEnd() - start;
+    if (span <= 0) {
+      return timelineEnd();
+    }
+    double position = (state.seriesIndex + GeneratorRandom.current().nextDouble())
+        / state.seriesLength;
+    return start + (long) (position * span);
+  }
+
+  /**
+   * Block variant of {@link #randomEpochSecond()}, draws a time for every unit of a block.
+   *
+   * @param block        the units
+   * @param epochSeconds the times in epoch seconds, by unit
+   */
+  static void randomEpochSeconds(UnitBlock block, long[] epochSeconds) {
+    var state = STATE.get();
+    long end = timelineEnd();
+    for (int i = 0; i < block.size; i++) {
+      long unitStart = block.timelineStarts[i];
+      long start = Math.max(EARLIEST_EPOCH_SECOND,
+          unitStart != NONE ? unitStart : state.compartmentStart);
+      long span = end - start;
+      if (span <= 0) {
+        epochSeconds[i] = end;
+      } else {
+        double position = (state.seriesIndex + block.nextDouble(i)) / state.seriesLength;
+        epochSeconds[i] = start + (long) (position * span);
+      }
+    }
+  }
+
+  /**
+   * @param from earliest time in epoch seconds
+   * @param to   latest time in epoch seconds
+   * @return a random time between from and to in epoch seconds
+   */
+  public static long randomEpochSecond(long from, long to) {
+    return from + (long) (GeneratorRandom.current().nextDouble() * (to - from));
+  }
+
+  public static DateTimeType dateTime(long epochSecond) {
+    return new DateTimeType(new Date(epochSecond * 1000), TemporalPrecisionEnum.SECOND,
+        TIME_ZONE);
+  }
+
+  /**
+   * Creates a date from the day of a time in {@link #TIME_ZONE}. The date keeps the time zone, so
+   * it is formatted the same in every default time zone of the JVM.
+   *
+   * @param epochSecond the time in epoch seconds
+   * @return the date
+   */
+  public static DateType date(long epochSecond) {
+    var calendar = new GregorianCalendar(TIME_ZONE);
+    calendar.setTimeInMillis(epochSecond * 1000);
+    return new DateType(calendar);
+  }
+
+  /**
+   * @param date a date or null
+   * @return the start of the date in {@link #TIME_ZONE} in epoch seconds or {@link #NONE}
+   */
+  static long epochSecond(DateType date) {
+    if (date == null || date.isEmpty()) {
+      return NONE;
+    }
+    // A parsed date has no time zone, its value is the start of the day in the default time zone
+    var timeZone = date.getTimeZone() != null ? date.getTimeZone() : TimeZone.getDefault();
+    var day = LocalDate.ofInstant(date.getValue().toInstant(), timeZone.toZoneId());
+    return day.atStartOfDay(ZONE).toEpochSecond();
+  }
+
+  /**
+   * Creates a period that starts at a random time of the current timeline and lasts 1 to 364
+   * days, but does not end after the reference time.
+   *
+   * @return the period
+   */
+  public static Period randomPeriod() {
+    Random random = GeneratorRandom.current();
+    long start = randomEpochSecond();
+    long end = Math.min(start + random.nextInt(1, 365) * SECONDS_PER_DAY, timelineEnd());
+    return new Period().setStartElement(dateTime(start)).setEndElement(dateTime(end));
+  }
+
+  private static class State {
+
+    private long compartmentStart = NONE;
+    private long unitStart = NONE;
+    private int seriesIndex = 0;
+    private int seriesLength = 1;
+  }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The generator state of a block of consecutive units in primitive arrays: the random, the id
+ * sequence and the timeline start of every unit. The block variants of the
+ * {@link GeneratorFunctions} draw from the randoms of all units in one loop, unit i draws the same
+ * values as {@link GeneratorRandom#current()} would in the unit. Other functions continue a unit
+ * on the current thread with {@link #restore(int)} and {@link #save(int)}.
+ */
+final class UnitBlock {
+
+  final long runSeed;
+  final long firstUnitKey;
+  final int size;
+  final long[] seeds;
+  final double[] nextGaussians;
+  final int[] sequences;
+  final long[] timelineStarts;
+
+  /**
+   * @param runSeed      seed shared by all shards of a run
+   * @param firstUnitKey key of the first unit, the keys of the other units follow
+   * @param size         number of units
+   */
+  UnitBlock(long runSeed, long firstUnitKey, int size) {
+    if (firstUnitKey < 0 || firstUnitKey + size > GeneratorRandom.MAX_UNIT_KEY) {
+      throw new IllegalArgumentException("Unit keys out of range: " + firstUnitKey + " + "
+          + size);
+    }
+    this.runSeed = runSeed;
+    this.firstUnitKey = firstUnitKey;
+    this.size = size;
+    this.seeds = new long[size];
+    for (int i = 0; i < size; i++) {
+      seeds[i] = GeneratorRandom.initialSeed(runSeed, firstUnitKey + i);
+    }
+    this.nextGaussians = new double[size];
+    Arrays.fill(nextGaussians, Double.NaN);
+    this.sequences = new int[size];
+    this.timelineStarts = new long[size];
+    Arrays.fill(timelineStarts, TemporalGenerator.NONE);
+  }
+
+  long unitKey(int i) {
+    return firstUnitKey + i;
+  }
+
+  /**
+   * Continues unit i on the current thread.
+   */
+  void restore(int i) {
+    GeneratorRandom.restore(this, i);
+    TemporalGenerator.restore(this, i);
+  }
+
+  /**
+   * Saves the state of the unit on the current thread as the state of unit i.
+   */
+  void save(int i) {
+    GeneratorRandom.save(this, i);
+    TemporalGenerator.save(this, i);
+  }
+
+  /**
+   * @see java.util.Random#next(int)
+   */
+  int next(int i, int bits) {
+    long seed = (seeds[i] * GeneratorRandom.UnitRandom.MULTIPLIER
+        + GeneratorRandom.UnitRandom.ADDEND) & GeneratorRandom.UnitRandom.MASK;
+    seeds[i] = seed;
+    return (int) (seed >>> (48 - bits));
+  }
+
+  /**
+   * @see java.util.Random#nextInt()
+   */
+  int nextInt(int i) {
+    return next(i, 32);
+  }
+
+  /**
+   * @see java.util.Random#nextInt(int)
+   */
+  int nextInt(int i, int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("bound must be positive");
+    }
+    int r = next(i, 31);
+    int m = bound - 1;
+    if ((bound & m) == 0) {
+      return (int) ((bound * (long) r) >> 31);
+    }
+    for (int u = r; u - (r = u % bound) + m < 0; u = next(i, 31)) {
+      // rejected, draw again
+    }
+    return r;
+  }
+
+  /**
+   * @see java.util.Random#nextDouble()
+   */
+  double nextDouble(int i) {
+    return (((long) next(i, 26) << 27) + next(i, 27)) * 0x1.0p-53;
+  }
+
+  /**
+   * @return the next id of unit i, see {@link GeneratorRandom#nextUuid()}
+   */
+  UUID nextUuid(int i) {
+    return GeneratorRandom.uuid(runSeed, unitKey(i), sequences[i]++);
+  }
+}
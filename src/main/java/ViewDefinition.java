@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The columns of a flat table of one resource type, a subset of a SQL-on-FHIR ViewDefinition: the
+ * columns of all select entries, each a FHIRPath expression, and where clauses that all have to
+ * hold. Every resource is one row, forEach is not supported.
+ * <pre>
+ * {"resourceType": "ViewDefinition", "name": "observation", "resource": "Observation",
+ *  "select": [{"column": [{"name": "id", "path": "id"},
+ *                         {"name": "loinc_code", "path": "code.coding.where(
+ *                            system='http://loinc.org').code"}]}],
+ *  "where": [{"path": "value.exists()"}]}
+ * </pre>
+ *
+ * @param name     name of the table
+ * @param resource the resource type of the rows
+ * @param columns  the columns
+ * @param where    FHIRPath expressions that all have to be true for a resource to be a row
+ */
+public record ViewDefinition(String name, String resource, List<Column> columns,
+                             List<String> where) {
+
+  /**
+   * @param name       name of the column
+   * @param path       FHIRPath expression of the value
+   * @param collection if all values are joined with a space, otherwise the first value is used
+   */
+  public record Column(String name, String path, boolean collection) {
+
+  }
+
+  /**
+   * Loads the view definitions of a directory in the order of their names, or a single file.
+   *
+   * @param path a view definition file or a directory of view definitions (*.json)
+   * @return the view definitions
+   */
+  public static List<ViewDefinition> loadAll(Path path) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return List.of(load(path));
+    }
+    List<ViewDefinition> views = new ArrayList<>();
+    try (Stream<Path> files = Files.list(path)) {
+      for (Path file : files.filter(file -> file.toString().endsWith(".json")).sorted()
+          .toList()) {
+        views.add(load(file));
+      }
+    }
+    return views;
+  }
+
+  /**
+   * Loads a view definition.
+   *
+   * @param file the view definition file
+   * @return the view definition
+   */
+  public static ViewDefinition load(Path file) throws IOException {
+    try {
+      var json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+      List<Column> columns = new ArrayList<>();
+      var selects = json.getJSONArray("select");
+      for (int i = 0; i < selects.length(); i++) {
+        var select = selects.getJSONObject(i);
+        if (select.has("forEach") || select.has("forEachOrNull")) {
+          throw new IOException("forEach is not supported: " + file);
+        }
+        var selectColumns = select.getJSONArray("column");
+        for (int j = 0; j < selectColumns.length(); j++) {
+          var column = selectColumns.getJSONObject(j);
+          columns.add(new Column(column.getString("name"), column.getString("path"),
+              column.optBoolean("collection", false)));
+        }
+      }
+      List<String> where = new ArrayList<>();
+      var clauses = json.has("where") ? json.getJSONArray("where") : new JSONArray();
+      for (int i = 0; i < clauses.length(); i++) {
+        where.add(clauses.getJSONObject(i).getString("path"));
+      }
+      return new ViewDefinition(json.optString("name",
+          file.getFileName().toString().replaceFirst("\\.json$", "")),
+          json.getString("resource"), List.copyOf(columns), List.copyOf(where));
+    } catch (JSONException e) {
+      throw new IOException("Invalid view definition " + file, e);
+    }
+  }
+}
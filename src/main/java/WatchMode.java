@@ -0,0 +1,236 @@
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Long running mode that regenerates an {@link IncrementalOutput} whenever the blueprint file or a
+ * template changes. The JVM keeps running, so the FhirContext, the parsers and the value set cache
+ * stay warm. A blueprint is only compiled again if it changed or a template of its resource type
+ * changed, and only the segments of the blueprints whose hash changed are generated again.
+ */
+public class WatchMode implements AutoCloseable {
+
+  /**
+   * Time to wait for further changes after a change, editors often write a file in several steps.
+   */
+  static final long DEBOUNCE_MILLIS = 200;
+
+  /**
+   * Result of an update of the output.
+   *
+   * @param bluePrints  number of compiled blueprints
+   * @param compiled    number of blueprints compiled by the update
+   * @param regenerated number of blueprints whose segment was generated again
+   * @param nanos       duration of the update
+   */
+  public record Update(int bluePrints, int compiled, int regenerated, long nanos) {
+
+    @Override
+    public String toString() {
+      return String.format("compiled %d, regenerated %d of %d blueprints in %d ms", compiled,
+          regenerated, bluePrints, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+  }
+
+  private final Path bluePrintFile;
+  private final Predicate<BluePrintIndex.Entry> filter;
+  private final Path templateDirectory;
+  private final IncrementalOutput output;
+  private final Path parametersFile;
+  private final long instances;
+  private final long seed;
+  private final int blockSize;
+  private final WatchService watchService;
+  private FhirTemplateRegistry registry;
+  private BluePrintCompiler compiler;
+  private final Map<Path, Resource> templatesByFile = new HashMap<>();
+  private Map<HashMap<String, String>, CompiledBluePrint> compiled = new HashMap<>();
+
+  /**
+   * @param bluePrintFile     the blueprint file
+   * @param filter            selects the blueprints of the file, see {@link BluePrintIndex}
+   * @param templateDirectory the directory of the templates
+   * @param output            the output
+   * @param parametersFile    the Parameters listing the parts of the output are written to
+   * @param instances         instances per blueprint
+   * @param seed              seed of the run
+   * @param blockSize         units generated together, see {@link BlockGenerator}
+   */
+  public WatchMode(Path bluePrintFile, Predicate<BluePrintIndex.Entry> filter,
+      Path templateDirectory, IncrementalOutput output, Path parametersFile, long instances,
+      long seed, int blockSize) throws IOException {
+    if (!Files.isDirectory(templateDirectory)) {
+      throw new IOException("Template directory not found: " + templateDirectory);
+    }
+    this.bluePrintFile = bluePrintFile.toAbsolutePath().normalize();
+    this.filter = filter;
+    this.templateDirectory = templateDirectory.toAbsolutePath().normalize();
+    this.output = output;
+    this.parametersFile = parametersFile;
+    this.instances = instances;
+    this.seed = seed;
+    this.blockSize = blockSize;
+    loadTemplates();
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.bluePrintFile.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+    this.templateDirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+  }
+
+  private void loadTemplates() throws IOException {
+    registry = new FhirTemplateRegistry(SharedFhirContext.get());
+    templatesByFile.clear();
+    try (var files = Files.list(templateDirectory)) {
+      for (Path file : files.filter(f -> f.toString().endsWith(".json")).sorted().toList()) {
+        templatesByFile.put(file, registry.registerFile(file));
+      }
+    }
+    compiler = new BluePrintCompiler(registry);
+    compiled = new HashMap<>();
+  }
+
+  /**
+   * Generates the output, then updates it after every change until the thread is interrupted.
+   * A change that can not be compiled, i.e. a file that is saved halfway, is reported and the
+   * output is kept until the next change.
+   */
+  public void watch() throws IOException {
+    System.out.println("Generated output: " + update(Set.of()));
+    System.out.println("Watching " + bluePrintFile + " and " + templateDirectory);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          var update = awaitChanges(Long.MAX_VALUE);
+          if (update != null) {
+            System.out.println("Updated output: " + update);
+          }
+        } catch (IOException | RuntimeException e) {
+          System.out.println("Could not update the output: " + e.getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits for changes of the blueprint file or the templates and updates the output.
+   *
+   * @param timeoutMillis time to wait for the first change
+   * @return the update or null if nothing relevant changed within the timeout
+   */
+  public Update awaitChanges(long timeoutMillis) throws IOException, InterruptedException {
+    WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    boolean bluePrintsChanged = false;
+    Set<Path> changedTemplates = new HashSet<>();
+    while (key != null) {
+      var directory = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          bluePrintsChanged = true;
+          changedTemplates.addAll(templatesByFile.keySet());
+          continue;
+        }
+        var file = directory.resolve((Path) event.context());
+        if (file.equals(bluePrintFile)) {
+          bluePrintsChanged = true;
+        } else if (directory.equals(templateDirectory) && file.toString().endsWith(".json")) {
+          changedTemplates.add(file);
+        }
+      }
+      key.reset();
+      key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    return bluePrintsChanged || !changedTemplates.isEmpty() ? update(changedTemplates) : null;
+  }
+
+  /**
+   * Registers the changed templates, compiles the blueprints that changed or use a changed
+   * template and generates the segments of the blueprints whose hash changed.
+   *
+   * @param changedTemplates the template files that were created, modified or deleted
+   * @return the update
+   */
+  public Update update(Set<Path> changedTemplates) throws IOException {
+    long start = System.nanoTime();
+    boolean reload = false;
+    for (Path file : changedTemplates) {
+      if (!Files.exists(file)) {
+        reload = true;
+        break;
+      }
+      var previous = templatesByFile.get(file);
+      var template = registry.registerFile(file);
+      if (previous != null && !sameKey(previous, template)) {
+        reload = true;
+        break;
+      }
+      templatesByFile.put(file, template);
+      compiled.keySet().removeIf(
+          bluePrint -> template.fhirType().equals(BluePrintLoader.getResourceName(bluePrint)));
+    }
+    if (reload) {
+      // A template was removed or changed its variant, the registry can not forget templates
+      loadTemplates();
+    }
+
+    List<CompiledBluePrint> bluePrints = new ArrayList<>();
+    Map<HashMap<String, String>, CompiledBluePrint> next = new HashMap<>();
+    int compiledCount = 0;
+    var loaded = BluePrintIndex.of(bluePrintFile).load(filter).toList();
+    for (int i = 0; i < loaded.size(); i++) {
+      var bluePrint = (HashMap<String, String>) loaded.get(i);
+      var compiledBluePrint = compiled.get(bluePrint);
+      if (compiledBluePrint == null) {
+        compiledCount++;
+        var result = compiler.compile(i, bluePrint);
+        if (result.isEmpty()) {
+          continue;
+        }
+        compiledBluePrint = result.get();
+      } else if (compiledBluePrint.index() != i) {
+        compiledBluePrint = new CompiledBluePrint(i, compiledBluePrint.bluePrint(),
+            compiledBluePrint.template());
+      }
+      next.put(bluePrint, compiledBluePrint);
+      bluePrints.add(compiledBluePrint);
+    }
+    compiled = next;
+
+    var run = new GenerationRun(bluePrints, ShardPlan.single(bluePrints.size(), instances), seed,
+        blockSize);
+    var manifest = output.generate(run, List.of());
+    FhirResourceFactory.writeResource(manifest.toParameters(), parametersFile.toString());
+    return new Update(bluePrints.size(), compiledCount,
+        Integer.parseInt(manifest.getProperty("regeneratedBluePrints")),
+        System.nanoTime() - start);
+  }
+
+  private boolean sameKey(Resource previous, Resource template) {
+    return previous.fhirType().equals(template.fhirType())
+        && Objects.equals(registry.valueVariant(previous), registry.valueVariant(template));
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+}
@@ -0,0 +1,309 @@
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.FhirTerser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Uploads resources to a FHIR server in waves of resources that do not reference each other. A
+ * resource is uploaded in the wave after the last wave of the resources it references, so with the
+ * generated resources Organizations and Medications come first, then Patients, then the clinical
+ * resources. The resources of a wave are uploaded concurrently as batch bundles, and a wave starts
+ * once the previous wave is complete.
+ *
+ * <p>Batches and batch entries that fail with a transient error (no response, 429, 502, 503 or
+ * 504) are retried with exponential backoff. Resources referencing a resource that could not be
+ * uploaded, directly or through other skipped resources, are skipped, so the server never sees a
+ * reference to a resource it does not have.
+ */
+public class WaveUploader {
+
+  public static final int DEFAULT_BUNDLE_SIZE = 100;
+  public static final int MAX_ATTEMPTS = 5;
+  public static final int REPORTED_FAILURES = 10;
+
+  private final IGenericClient client;
+  private final int threads;
+  private final int bundleSize;
+  private final long retryDelayMillis;
+
+  /**
+   * @param client           client of the FHIR server
+   * @param threads          number of batches uploaded concurrently
+   * @param bundleSize       number of resources per batch bundle
+   * @param retryDelayMillis delay before the first retry, doubled for every further retry
+   */
+  public WaveUploader(IGenericClient client, int threads, int bundleSize, long retryDelayMillis) {
+    if (threads < 1 || bundleSize < 1) {
+      throw new IllegalArgumentException("threads and bundleSize must be at least 1");
+    }
+    this.client = client;
+    this.threads = threads;
+    this.bundleSize = bundleSize;
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  /**
+   * Statistics of an uploaded wave.
+   *
+   * @param resourceTypes number of resources by type
+   * @param resources     number of resources
+   * @param failed        number of resources that could not be uploaded
+   * @param skipped       number of resources not uploaded as they reference a failed resource
+   * @param retries       number of retried batches
+   * @param nanos         duration of the upload in nanoseconds
+   * @param failures      the failed resources with the reason, as {@code Type/id: reason}
+   */
+  public record Wave(Map<String, Integer> resourceTypes, long resources, long failed,
+                     long skipped, long retries, long nanos, List<String> failures) {
+
+  }
+
+  private record Failure(IBaseResource resource, String reason) {
+
+  }
+
+  /**
+   * Groups resources into waves: a resource belongs to the wave after the last wave of the
+   * resources it references. References to resources outside of the list are ignored, resources
+   * that are part of a reference cycle are put into one last wave.
+   *
+   * @param resources the resources, identified by type and id
+   * @return the waves, the resources of every wave in their original order
+   */
+  public static List<List<IBaseResource>> waves(List<? extends IBaseResource> resources) {
+    var terser = SharedFhirContext.get().newTerser();
+    Map<String, Integer> indexByKey = new HashMap<>();
+    for (int i = 0; i < resources.size(); i++) {
+      indexByKey.put(key(resources.get(i)), i);
+    }
+    // Kahn's algorithm over the references between the resources
+    List<List<Integer>> referencedBy = new ArrayList<>(resources.size());
+    int[] unresolvedReferences = new int[resources.size()];
+    for (int i = 0; i < resources.size(); i++) {
+      referencedBy.add(new ArrayList<>(0));
+    }
+    for (int i = 0; i < resources.size(); i++) {
+      for (String referenced : references(terser, resources.get(i))) {
+        var target = indexByKey.get(referenced);
+        if (target != null && target != i) {
+          referencedBy.get(target).add(i);
+          unresolvedReferences[i]++;
+        }
+      }
+    }
+    List<List<IBaseResource>> waves = new ArrayList<>();
+    List<Integer> wave = new ArrayList<>();
+    for (int i = 0; i < resources.size(); i++) {
+      if (unresolvedReferences[i] == 0) {
+        wave.add(i);
+      }
+    }
+    int assigned = 0;
+    while (!wave.isEmpty()) {
+      List<Integer> next = new ArrayList<>();
+      for (int i : wave) {
+        for (int referencing : referencedBy.get(i)) {
+          if (--unresolvedReferences[referencing] == 0) {
+            next.add(referencing);
+          }
+        }
+      }
+      waves.add(wave.stream().sorted().map(i -> (IBaseResource) resources.get(i)).toList());
+      assigned += wave.size();
+      wave = next;
+    }
+    if (assigned < resources.size()) {
+      List<IBaseResource> cycles = new ArrayList<>();
+      for (int i = 0; i < resources.size(); i++) {
+        if (unresolvedReferences[i] > 0) {
+          cycles.add(resources.get(i));
+        }
+      }
+      waves.add(cycles);
+    }
+    return waves;
+  }
+
+  private static String key(IBaseResource resource) {
+    return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+  }
+
+  /**
+   * @return the keys of the resources referenced by the resource, as {@code Type/id}
+   */
+  private static List<String> references(FhirTerser terser, IBaseResource resource) {
+    return terser.getAllPopulatedChildElementsOfType(resource, Reference.class).stream()
+        .map(reference -> reference.getReferenceElement().toUnqualifiedVersionless().getValue())
+        .toList();
+  }
+
+  /**
+   * Uploads the resources wave by wave.
+   *
+   * @param resources the resources to upload
+   * @return the statistics of every wave
+   */
+  public List<Wave> upload(List<? extends IBaseResource> resources) throws IOException {
+    List<Wave> result = new ArrayList<>();
+    // Keys of the resources that failed or were skipped, their dependents are skipped
+    Set<String> missing = new HashSet<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (List<IBaseResource> wave : waves(resources)) {
+        result.add(upload(wave, missing, executor));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return result;
+  }
+
+  private Wave upload(List<IBaseResource> wave, Set<String> missing, ExecutorService executor)
+      throws IOException {
+    long start = System.nanoTime();
+    var terser = SharedFhirContext.get().newTerser();
+    List<IBaseResource> uploaded = new ArrayList<>(wave.size());
+    List<String> skipped = new ArrayList<>();
+    for (IBaseResource resource : wave) {
+      if (references(terser, resource).stream().anyMatch(missing::contains)) {
+        skipped.add(key(resource));
+        missing.add(key(resource));
+      } else {
+        uploaded.add(resource);
+      }
+    }
+
+    var retries = new AtomicLong();
+    List<Future<List<Failure>>> batches = new ArrayList<>();
+    for (int from = 0; from < uploaded.size(); from += bundleSize) {
+      var batch = uploaded.subList(from, Math.min(from + bundleSize, uploaded.size()));
+      batches.add(executor.submit(() -> uploadBatch(batch, retries)));
+    }
+    List<String> failures = new ArrayList<>();
+    try {
+      for (Future<List<Failure>> batch : batches) {
+        for (Failure failure : batch.get()) {
+          missing.add(key(failure.resource()));
+          failures.add(key(failure.resource()) + ": " + failure.reason());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while uploading", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Uploading a batch failed", e.getCause());
+    }
+    Map<String, Integer> resourceTypes = new TreeMap<>();
+    for (IBaseResource resource : wave) {
+      resourceTypes.merge(resource.fhirType(), 1, Integer::sum);
+    }
+    return new Wave(resourceTypes, wave.size(), failures.size(), skipped.size(), retries.get(),
+        System.nanoTime() - start, List.copyOf(failures));
+  }
+
+  /**
+   * Uploads a batch and retries the entries that failed with a transient error.
+   *
+   * @return the resources that could not be uploaded
+   */
+  private List<Failure> uploadBatch(List<IBaseResource> batch, AtomicLong retries)
+      throws InterruptedException {
+    List<IBaseResource> pending = batch;
+    List<Failure> failed = new ArrayList<>();
+    for (int attempt = 1; ; attempt++) {
+      var bundle = FhirTransactionBundleConverter.convertToFhirTransactionBundle(pending);
+      bundle.setType(Bundle.BundleType.BATCH);
+      List<IBaseResource> transientFailures = new ArrayList<>();
+      String transientReason = null;
+      try {
+        var response = client.transaction().withBundle(bundle).execute();
+        for (int i = 0; i < pending.size(); i++) {
+          var status = i < response.getEntry().size()
+              ? response.getEntry().get(i).getResponse().getStatus() : null;
+          if (status == null) {
+            failed.add(new Failure(pending.get(i), "no response entry"));
+          } else if (isTransient(statusCode(status))) {
+            transientFailures.add(pending.get(i));
+            transientReason = status;
+          } else if (!status.startsWith("2")) {
+            failed.add(new Failure(pending.get(i), status));
+          }
+        }
+      } catch (FhirClientConnectionException e) {
+        transientFailures = pending;
+        transientReason = e.getMessage();
+      } catch (BaseServerResponseException e) {
+        if (!isTransient(e.getStatusCode())) {
+          for (IBaseResource resource : pending) {
+            failed.add(new Failure(resource, "batch failed with " + e.getMessage()));
+          }
+          return failed;
+        }
+        transientFailures = pending;
+        transientReason = e.getMessage();
+      }
+      if (transientFailures.isEmpty()) {
+        return failed;
+      }
+      if (attempt == MAX_ATTEMPTS) {
+        for (IBaseResource resource : transientFailures) {
+          failed.add(new Failure(resource,
+              "still failing after " + MAX_ATTEMPTS + " attempts: " + transientReason));
+        }
+        return failed;
+      }
+      retries.incrementAndGet();
+      TimeUnit.MILLISECONDS.sleep(retryDelayMillis << (attempt - 1));
+      pending = transientFailures;
+    }
+  }
+
+  private static int statusCode(String status) {
+    try {
+      return Integer.parseInt(status.split(" ", 2)[0]);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static boolean isTransient(int statusCode) {
+    return Set.of(429, 502, 503, 504).contains(statusCode);
+  }
+
+  /**
+   * Records the resources, failures, retries and throughput of every wave, and the first
+   * {@value #REPORTED_FAILURES} failures of a wave.
+   */
+  public static void report(List<Wave> waves, RunReport report) {
+    for (int i = 0; i < waves.size(); i++) {
+      var wave = waves.get(i);
+      double perSecond = wave.nanos() > 0
+          ? wave.resources() * (double) TimeUnit.SECONDS.toNanos(1) / wave.nanos() : 0;
+      report.record("upload wave " + (i + 1), String.format(
+          "%s: %d resources in %d ms, %.1f resources/s, %d failed, %d skipped, "
+              + "%d retried batches",
+          wave.resourceTypes(), wave.resources(), TimeUnit.NANOSECONDS.toMillis(wave.nanos()),
+          perSecond, wave.failed(), wave.skipped(), wave.retries()));
+      for (int j = 0; j < Math.min(REPORTED_FAILURES, wave.failures().size()); j++) {
+        report.record("upload wave " + (i + 1) + " failure " + (j + 1), wave.failures().get(j));
+      }
+    }
+  }
+}
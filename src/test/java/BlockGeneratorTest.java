@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class BlockGeneratorTest {
+
+  private static List<CompiledBluePrint> compile() throws IOException {
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new LinkedHashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.identifier.value", "randomIdentifierCodeValue()");
+    bluePrint.put("Observation.identifier.system", "randomIdentifierSystemURI()");
+    bluePrint.put("Observation.identifier.assigner", "randomOrganizationReference()");
+    bluePrint.put("Observation.effective as dateTime", "randomDateTime()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, ng/dL, None)");
+    var compiler = new BluePrintCompiler(registry);
+    return List.of(compiler.compile(0, bluePrint).orElseThrow(),
+        compiler.compile(1, bluePrint).orElseThrow());
+  }
+
+  private static List<String> generate(List<CompiledBluePrint> bluePrints, long instances,
+      int blockSize) throws IOException {
+    List<String> encoded = new ArrayList<>();
+    new GenerationRun(bluePrints, ShardPlan.single(bluePrints.size(), instances), 42, blockSize)
+        .run(List.of((bluePrint, resources) -> resources.forEach(resource -> encoded.add(
+            FhirParserPool.encodeToString(resource, FhirParserPool.Format.NDJSON)))));
+    return encoded;
+  }
+
+  @Test
+  void testBlocksGenerateTheResourcesOfSingleUnits() throws IOException {
+    var bluePrints = compile();
+
+    var single = generate(bluePrints, 50, 1);
+
+    assertEquals(200, single.size());
+    assertEquals(single, generate(bluePrints, 50, 16));
+    assertEquals(single, generate(bluePrints, 50, 64));
+  }
+
+  @Test
+  void testUnitRandomDrawsTheValuesOfRandom() {
+    var random = new Random(7);
+    var unitRandom = new GeneratorRandom.UnitRandom();
+    unitRandom.setSeed(7);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(random.nextInt(), unitRandom.nextInt());
+      assertEquals(random.nextInt(i + 1), unitRandom.nextInt(i + 1));
+      assertEquals(random.nextDouble(), unitRandom.nextDouble());
+      assertEquals(random.nextGaussian(), unitRandom.nextGaussian());
+      assertEquals(new BigInteger(50, random), new BigInteger(50, unitRandom));
+    }
+  }
+
+  @Test
+  void testBlockVariantsDrawTheValuesOfTheFunctions() {
+    var block = new UnitBlock(42, 1000, 200);
+    Object[] codeValues = new Object[block.size];
+    Object[] dateTimes = new Object[block.size];
+    GeneratorFunctions.randomIdentifierCodeValues(block, codeValues);
+    GeneratorFunctions.randomDateTimes(block, dateTimes);
+    for (int i = 0; i < block.size; i++) {
+      GeneratorRandom.startUnit(42, 1000 + i);
+      assertEquals(GeneratorFunctions.randomIdentifierCodeValue().getValue(),
+          ((StringType) codeValues[i]).getValue());
+      assertEquals(GeneratorFunctions.randomDateTime().getValueAsString(),
+          ((DateTimeType) dateTimes[i]).getValueAsString());
+    }
+    GeneratorRandom.endUnit();
+  }
+
+  @Test
+  @Tag("performance")
+  void testGenerationPerformance() throws IOException {
+    var bluePrints = compile();
+    generate(bluePrints, 500, 64);
+    generate(bluePrints, 500, 1);
+
+    long start = System.nanoTime();
+    generate(bluePrints, 5000, 1);
+    long singleNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    generate(bluePrints, 5000, 64);
+    long blockNanos = System.nanoTime() - start;
+
+    System.out.printf("10000 Observations: %d ms unit by unit, %d ms in blocks of 64%n",
+        TimeUnit.NANOSECONDS.toMillis(singleNanos), TimeUnit.NANOSECONDS.toMillis(blockNanos));
+  }
+}
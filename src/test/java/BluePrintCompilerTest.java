@@ -0,0 +1,40 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+public class BluePrintCompilerTest {
+
+  @Test
+  void testPureFunctionsAreFoldedIntoTheTemplate() throws IOException {
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.meta.profile", "fixedCanonical(http://example.org/Profile)");
+    bluePrint.put("Observation.code.coding", "fixedCoding(http://loinc.org, 2951-2, None, None)");
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, mmol/L, None)");
+    var compiler = new BluePrintCompiler(registry);
+
+    var compiled = compiler.compile(0, bluePrint).orElseThrow();
+
+    assertEquals(List.of("Observation.id", "Observation.value as Quantity"),
+        compiled.bluePrint().keySet().stream().sorted().toList());
+    assertEquals(2, compiler.foldedValueFunctions());
+    assertEquals(4, compiler.valueFunctions());
+    var template = (Observation) compiled.template();
+    assertEquals("2951-2", template.getCode().getCodingFirstRep().getCode());
+    assertTrue(template.getMeta().hasProfile("http://example.org/Profile"));
+    assertTrue(compiled.template() != registry.resolve(bluePrint).orElseThrow());
+
+    var observation = (Observation) FhirResourceFactory.createTestResources(compiled).get(0);
+    assertEquals("2951-2", observation.getCode().getCodingFirstRep().getCode());
+    assertTrue(observation.getValueQuantity().getValue().doubleValue() >= 110);
+  }
+}
@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BluePrintFamilyTest {
+
+  private static final Path FAMILY_DIRECTORY = Path.of("src/main/resources/BluePrintFamily");
+
+  private static BluePrintCompiler compiler() throws IOException {
+    return new BluePrintCompiler(FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY));
+  }
+
+  @Test
+  void testFamiliesCompileToTheObservationBluePrints() throws IOException {
+    var observations = BluePrintLoader.loadBluePrints(
+        "src/main/resources/BluePrint/TestDataResourceBluePrint.json",
+        BluePrintIndex.filter("type=Observation"));
+    var families = BluePrintFamily.loadAll(FAMILY_DIRECTORY);
+    var compiler = compiler();
+
+    var expected = compiler.compileAll(observations);
+    var compiled = families.stream().flatMap(family -> compiler.compileFamily(0, family).stream())
+        .toList();
+
+    assertEquals(observations.size(), compiled.size());
+    for (var family : families) {
+      var variant = family.bluePrint().keySet().stream()
+          .filter(fhirPath -> fhirPath.startsWith("Observation.value")).findFirst().orElseThrow();
+      var ofFamily = expected.stream().filter(bluePrint -> observations.get(bluePrint.index())
+          .containsKey(variant)).toList();
+      var ofRows = compiled.stream().filter(bluePrint -> bluePrint.bluePrint()
+          .containsKey(variant)).toList();
+      assertEquals(ofFamily.size(), ofRows.size());
+      for (int i = 0; i < ofFamily.size(); i++) {
+        assertEquals(ofFamily.get(i).bluePrint(), ofRows.get(i).bluePrint());
+        assertTrue(ofFamily.get(i).template().equalsDeep(ofRows.get(i).template()));
+      }
+    }
+  }
+
+  @Test
+  @Tag("performance")
+  void testCompilePerformance() throws IOException {
+    var observations = BluePrintLoader.loadBluePrints(
+        "src/main/resources/BluePrint/TestDataResourceBluePrint.json",
+        BluePrintIndex.filter("type=Observation"));
+    var families = BluePrintFamily.loadAll(FAMILY_DIRECTORY);
+    var compiler = compiler();
+    compiler.compileAll(observations.subList(0, 10));
+
+    long start = System.nanoTime();
+    compiler.compileAll(observations);
+    long bluePrintNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    families.forEach(family -> compiler.compileFamily(0, family));
+    long familyNanos = System.nanoTime() - start;
+
+    System.out.printf("%d blueprints compiled in %d ms, as %d families in %d ms%n",
+        observations.size(), TimeUnit.NANOSECONDS.toMillis(bluePrintNanos), families.size(),
+        TimeUnit.NANOSECONDS.toMillis(familyNanos));
+  }
+
+  @Test
+  void testInlineRowsAreInstantiated(@TempDir Path directory) throws IOException {
+    var file = directory.resolve("Glucose.json");
+    Files.writeString(file, """
+        {"bluePrint": {
+          "Observation.code.coding": "fixedCoding(http://loinc.org, ${code}, None, None)",
+          "Observation.id": "randomID()",
+          "Observation.value as Quantity":
+            "randomQuantity(None, None, http://unitsofmeasure.org, ${unit}, None)"},
+         "rows": [{"code": "2339-0", "unit": "mg/dL"}, {"code": "15074-8", "unit": "mmol/L"}]}
+        """);
+    var family = BluePrintFamily.load(file);
+
+    var compiled = compiler().compileFamily(10, family);
+
+    assertEquals(2, compiled.size());
+    assertEquals(11, compiled.get(1).index());
+    assertEquals("15074-8",
+        ((Observation) compiled.get(1).template()).getCode().getCodingFirstRep().getCode());
+    assertEquals("randomQuantity(None, None, http://unitsofmeasure.org, mmol/L, None, 15074-8)",
+        compiled.get(1).bluePrint().get("Observation.value as Quantity"));
+    assertEquals(new HashMap<>(Map.of("Observation.code.coding",
+            "fixedCoding(http://loinc.org, 2339-0, None, None)", "Observation.id", "randomID()",
+            "Observation.value as Quantity",
+            "randomQuantity(None, None, http://unitsofmeasure.org, mg/dL, None)")),
+        family.instantiate(family.rows().get(0)));
+  }
+
+  @Test
+  void testRowsNeedAllPlaceholders(@TempDir Path directory) throws IOException {
+    var file = directory.resolve("Incomplete.json");
+    Files.writeString(file, """
+        {"bluePrint": {"Observation.code.coding":
+          "fixedCoding(http://loinc.org, ${code}, None, None)"}, "parameters": "rows.csv"}
+        """);
+    Files.writeString(directory.resolve("rows.csv"), "unit\nmg/dL\n");
+
+    assertThrows(IOException.class, () -> BluePrintFamily.load(file));
+    assertEquals(List.of(Map.of("unit", "mg/dL")),
+        BluePrintFamily.loadParameters(directory.resolve("rows.csv")));
+  }
+}
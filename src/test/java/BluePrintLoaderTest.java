@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BluePrintLoaderTest {
+
+  private static final String BLUE_PRINTS =
+      "src/main/resources/BluePrint/TestDataResourceBluePrint.json";
+
+  @Test
+  void testStreamingLoaderMatchesTheJsonArray() throws IOException {
+    var expected = new JSONArray(Files.readString(Path.of(BLUE_PRINTS)));
+
+    var bluePrints = BluePrintLoader.loadBluePrints(BLUE_PRINTS);
+
+    assertEquals(expected.length(), bluePrints.size());
+    for (int i = 0; i < bluePrints.size(); i++) {
+      assertEquals(expected.getJSONObject(i).toMap(), Map.copyOf(bluePrints.get(i)));
+    }
+    assertEquals(List.of("Specimen.meta.profile", "Specimen.id", "Specimen.status",
+        "Specimen.type.coding", "Specimen.subject"), List.copyOf(bluePrints.get(0).keySet()));
+  }
+
+  @Test
+  void testSubsetsAreLoadedThroughTheIndex() throws IOException {
+    var all = BluePrintLoader.loadBluePrints(BLUE_PRINTS);
+
+    var range = BluePrintLoader.loadBluePrints(BLUE_PRINTS, BluePrintIndex.filter("index=100-200"));
+    assertEquals(all.subList(100, 201), range);
+
+    var conditions = BluePrintLoader.loadBluePrints(BLUE_PRINTS,
+        BluePrintIndex.filter("type=Condition"));
+    assertFalse(conditions.isEmpty());
+    assertTrue(conditions.stream()
+        .allMatch(bluePrint -> BluePrintLoader.getResourceName(bluePrint).equals("Condition")));
+
+    var loinc = BluePrintIndex.of(Path.of(BLUE_PRINTS)).load(
+        BluePrintIndex.filter("type=Observation,loinc=2*")).toList();
+    assertFalse(loinc.isEmpty());
+    assertTrue(loinc.stream().allMatch(bluePrint -> bluePrint.values().stream()
+        .anyMatch(value -> value.matches("fixedCoding\\(http://loinc\\.org, 2.*"))));
+  }
+
+  @Test
+  void testIndexIsRebuiltWhenTheContentChanges(@TempDir Path directory) throws IOException {
+    var file = directory.resolve("bluePrints.json");
+    Files.writeString(file,
+        "[{\"Observation.id\": \"randomID()\"}, {\"Patient.id\": \"randomID()\"}]");
+    var modified = Files.getLastModifiedTime(file);
+    assertEquals("Observation", BluePrintIndex.of(file).entries().get(0).resourceType());
+
+    // Same size and modification time, the blueprints swapped their offsets
+    Files.writeString(file,
+        "[{\"Patient.id\": \"randomID()\"}, {\"Observation.id\": \"randomID()\"}]");
+    Files.setLastModifiedTime(file, modified);
+
+    var index = BluePrintIndex.of(file);
+    assertEquals("Patient", index.entries().get(0).resourceType());
+    assertEquals(List.of("Patient.id"),
+        List.copyOf(index.load(BluePrintIndex.filter("index=0")).toList().get(0).keySet()));
+  }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class ConsentProvisionTest {
+
+  // The consent policy value set without the terminology server
+  private static final List<ValueSetExpansionContainsComponent> POLICIES = IntStream.range(0, 40)
+      .mapToObj(i -> new ValueSetExpansionContainsComponent()
+          .setSystem("urn:oid:2.16.840.1.113883.3.1937.777.24.5.3")
+          .setCode("2.16.840.1.113883.3.1937.777.24.5.3." + i)
+          .setDisplay("Policy " + i))
+      .toList();
+
+  // The provision as it was built for every Consent before the prototype
+  private static Consent.provisionComponent buildConsentProvision() {
+    var consentProvision = new Consent.provisionComponent();
+    consentProvision.setType(Consent.ConsentProvisionType.fromCode(
+        GeneratorFunctions.fixedCode("deny").toString()));
+    consentProvision.setPeriod(GeneratorFunctions.randomPeriod());
+    var provisions = POLICIES.stream().map(code -> {
+      Coding coding = new Coding();
+      coding.setSystem(code.getSystem());
+      coding.setCode(code.getCode());
+      coding.setDisplay(code.getDisplay());
+      return coding;
+    }).toList().stream().map(coding -> {
+      var subProvision = new Consent.provisionComponent().setCode(
+          List.of(new CodeableConcept().addCoding(coding)));
+      subProvision.setPeriod(GeneratorFunctions.randomPeriod());
+      subProvision.setType(Consent.ConsentProvisionType.fromCode(
+          GeneratorFunctions.fixedCode("permit").toString()));
+      return subProvision;
+    }).toList();
+    consentProvision.setProvision(provisions);
+    return consentProvision;
+  }
+
+  private static Consent.provisionComponent generate(long unitKey,
+      Supplier<Consent.provisionComponent> generator) {
+    GeneratorRandom.startUnit(42, unitKey);
+    try {
+      return generator.get();
+    } finally {
+      GeneratorRandom.endUnit();
+    }
+  }
+
+  @Test
+  void testPrototypeCopiesEqualTheBuiltProvision() {
+    for (int unitKey = 0; unitKey < 10; unitKey++) {
+      var built = generate(unitKey, ConsentProvisionTest::buildConsentProvision);
+      var copied = generate(unitKey, () -> GeneratorFunctions.fullConsentProvision(POLICIES));
+
+      assertTrue(built.equalsDeep(copied), "unit " + unitKey);
+    }
+    var first = generate(0, () -> GeneratorFunctions.fullConsentProvision(POLICIES));
+    var second = generate(1, () -> GeneratorFunctions.fullConsentProvision(POLICIES));
+    assertEquals(POLICIES.size(), second.getProvision().size());
+    assertNotSame(first.getProvisionFirstRep().getCodeFirstRep(),
+        second.getProvisionFirstRep().getCodeFirstRep());
+    assertTrue(!first.getPeriod().equalsDeep(second.getPeriod()));
+  }
+
+  @Test
+  @Tag("performance")
+  void testConsentProvisionPerformance() {
+    int numberToCreate = 20000;
+    for (int round = 0; round < 2; round++) {
+      measure("built", numberToCreate, ConsentProvisionTest::buildConsentProvision);
+      measure("prototype", numberToCreate,
+          () -> GeneratorFunctions.fullConsentProvision(POLICIES));
+      // the random periods alone, the part of the cost the prototype can not save
+      measure("periods only", numberToCreate, () -> {
+        for (int i = 0; i <= POLICIES.size(); i++) {
+          GeneratorFunctions.randomPeriod();
+        }
+        return null;
+      });
+    }
+  }
+
+  private static void measure(String name, int numberToCreate,
+      Supplier<Consent.provisionComponent> generator) {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long startBytes = threads.getThreadAllocatedBytes(threadId);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < numberToCreate; i++) {
+      generate(i, generator);
+    }
+    long elapsedTime = System.nanoTime() - startTime;
+    long allocatedBytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+    System.out.printf("%s: %.1f us and %d bytes per Consent provision%n", name,
+        elapsedTime / 1000.0 / numberToCreate, allocatedBytes / numberToCreate);
+  }
+}
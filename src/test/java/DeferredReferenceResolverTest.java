@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class DeferredReferenceResolverTest {
+
+  @AfterEach
+  void disableDeferredReferences() {
+    DeferredReference.setEnabled(false);
+  }
+
+  private static List<IBaseResource> generate() throws IOException {
+    return generate(3);
+  }
+
+  private static List<IBaseResource> generate(long instances) throws IOException {
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.identifier.assigner", "randomOrganizationReference()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, ng/dL, None)");
+    var compiled = new BluePrintCompiler(registry).compileAll(List.of(bluePrint));
+    List<IBaseResource> resources = new ArrayList<>();
+    var resolver = new DeferredReferenceResolver(
+        (generatedBluePrint, generated) -> resources.addAll(generated));
+    new GenerationRun(compiled, ShardPlan.single(1, instances), 42).run(List.of(resolver));
+    return resources;
+  }
+
+  private static List<String> encode(List<IBaseResource> resources) {
+    return resources.stream().map(
+        resource -> FhirParserPool.encodeToString(resource, FhirParserPool.Format.NDJSON)).toList();
+  }
+
+  @Test
+  void testTargetsAreMaterializedBeforeTheirReferences() throws IOException {
+    DeferredReference.setEnabled(true);
+
+    var resources = generate();
+
+    assertEquals(6, resources.size());
+    for (int i = 0; i < 6; i += 2) {
+      var organization = assertInstanceOf(Organization.class, resources.get(i));
+      var observation = assertInstanceOf(Observation.class, resources.get(i + 1));
+      var reference = observation.getIdentifierFirstRep().getAssigner().getReference();
+      assertEquals("Organization/" + organization.getIdElement().getIdPart(), reference);
+      var again = new DeferredReference(DeferredReference.Target.ORGANIZATION,
+          UUID.fromString(organization.getIdElement().getIdPart())).materialize();
+      assertTrue(organization.equalsDeep((Organization) again.get(0)));
+    }
+    assertEquals(encode(resources), encode(generate()));
+  }
+
+  @Test
+  void testTargetsAreSharedByTheUnitsOfARun() throws IOException {
+    DeferredReference.setEnabled(true);
+
+    var resources = generate(1000);
+
+    var organizations = resources.stream().filter(Organization.class::isInstance).count();
+    assertEquals(1000, resources.size() - organizations);
+    assertTrue(organizations <= DeferredReference.Target.ORGANIZATION.poolSize());
+    assertTrue(organizations > DeferredReference.Target.ORGANIZATION.poolSize() / 2);
+  }
+
+  @Test
+  void testTargetsOfDerivedUnitsAreDrawnFromThePoolsOfTheRun() {
+    Set<UUID> organizations = new HashSet<>();
+    GeneratorRandom.startUnit(42, 0);
+    var patients = IntStream.range(0, 2000)
+        .mapToObj(i -> DeferredReference.create(DeferredReference.Target.PATIENT)).toList();
+    GeneratorRandom.endUnit();
+    // The managing organizations of the patients, drawn while the patients are materialized
+    for (DeferredReference patient : patients) {
+      GeneratorRandom.startDerivedUnit(patient.id());
+      organizations.add(DeferredReference.create(DeferredReference.Target.ORGANIZATION).id());
+      GeneratorRandom.endUnit();
+    }
+    GeneratorRandom.startUnit(42, 1);
+    for (int i = 0; i < 5000; i++) {
+      organizations.add(DeferredReference.create(DeferredReference.Target.ORGANIZATION).id());
+    }
+    GeneratorRandom.endUnit();
+
+    assertTrue(organizations.size() <= DeferredReference.Target.ORGANIZATION.poolSize(),
+        organizations.size() + " organizations");
+  }
+
+  @Test
+  void testRecentTargetsAreWrittenOnce() {
+    var first = new DeferredReference(DeferredReference.Target.ORGANIZATION, UUID.randomUUID());
+    var second = new DeferredReference(DeferredReference.Target.ORGANIZATION, UUID.randomUUID());
+    List<IBaseResource> observations = new ArrayList<>();
+    for (DeferredReference reference : List.of(first, first, second, first)) {
+      var observation = new Observation();
+      DeferredReference.attach(observation, reference);
+      observations.add(observation);
+    }
+
+    var resolved = new DeferredReferenceResolver(null).resolve(observations);
+    assertEquals(6, resolved.size());
+    assertInstanceOf(Organization.class, resolved.get(0));
+    assertInstanceOf(Organization.class, resolved.get(3));
+
+    // The references stay attached for the resolvers of other sinks
+    var resolver = new DeferredReferenceResolver(null, 1);
+    assertEquals(7, resolver.resolve(observations).size());
+    assertEquals(4, resolver.references());
+    assertEquals(3, resolver.materialized());
+  }
+}
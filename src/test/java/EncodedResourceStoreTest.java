@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EncodedResourceStoreTest {
+
+  @TempDir
+  Path tempDir;
+
+  private static List<IBaseResource> resources() {
+    return IntStream.range(0, 500).mapToObj(i -> {
+      if (i % 5 == 0) {
+        var organization = new Organization();
+        organization.setId("org-" + i);
+        organization.setName("Organisation " + i);
+        return (IBaseResource) organization;
+      }
+      var observation = new Observation();
+      observation.setId("obs-" + i);
+      observation.getCode().addCoding().setSystem("http://loinc.org").setCode("1763-2");
+      return (IBaseResource) observation;
+    }).toList();
+  }
+
+  @Test
+  void testSpilledStoreWritesSameNDJsonAsObjects() throws Exception {
+    var resources = resources();
+    var expectedBytes = new AtomicLong();
+    var expected = FhirResourceFactory.writeNDJsonByResourceType(resources,
+        tempDir.resolve("objects").toString(), expectedBytes);
+
+    Parameters actual;
+    var bytes = new AtomicLong();
+    // A threshold below the chunk size spills after every resource.
+    try (var store = new EncodedResourceStore(1)) {
+      store.addAll(resources);
+      assertEquals(400L, store.counts().get("Observation"));
+      assertEquals(100L, store.counts().get("Organization"));
+      actual = store.writeNDJsonByResourceType(tempDir.resolve("bytes").toString(), bytes);
+    }
+
+    assertEquals(expected.getParameter().size(), actual.getParameter().size());
+    for (String type : List.of("Observation", "Organization")) {
+      assertEquals(
+          Files.readString(tempDir.resolve("objects-" + type + ".ndjson"), StandardCharsets.UTF_8),
+          Files.readString(tempDir.resolve("bytes-" + type + ".ndjson"), StandardCharsets.UTF_8));
+    }
+    assertEquals(Files.size(tempDir.resolve("objects-Observation.ndjson"))
+        + Files.size(tempDir.resolve("objects-Organization.ndjson")), expectedBytes.get());
+    assertEquals(expectedBytes.get(), bytes.get());
+  }
+
+  @Test
+  void testTransactionBundleFromBytes() throws Exception {
+    var file = tempDir.resolve("bundle.json");
+    try (var store = new EncodedResourceStore()) {
+      store.addAll(resources());
+      store.writeTransactionBundle(file.toString());
+    }
+
+    var bundle = FhirParserPool.parse(Bundle.class, Files.readString(file));
+    assertEquals(Bundle.BundleType.TRANSACTION, bundle.getType());
+    assertEquals(500, bundle.getEntry().size());
+    var first = bundle.getEntryFirstRep();
+    assertEquals(HTTPVerb.PUT, first.getRequest().getMethod());
+    assertEquals("Observation/" + first.getResource().getIdElement().getIdPart(),
+        first.getRequest().getUrl());
+  }
+}
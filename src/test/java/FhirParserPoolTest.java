@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FhirParserPoolTest {
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * A family name that fails to encode, after the parser wrote the start of the resource.
+   */
+  private static class FailingStringType extends StringType {
+
+    FailingStringType() {
+      super("family");
+    }
+
+    // Not empty without asking for the value, so the parser only fails while writing it
+    @Override
+    public boolean isEmpty() {
+      return false;
+    }
+
+    @Override
+    public String getValueAsString() {
+      throw new IllegalStateException("Encoding failed");
+    }
+  }
+
+  @Test
+  void testFailedEncodingDoesNotLeakIntoTheNextResource() {
+    var invalid = new Patient();
+    invalid.setId("invalid");
+    // Enough names before the failing one that the parser passed a part to the writer
+    for (int i = 0; i < 100; i++) {
+      invalid.addName(new HumanName().setFamily("x".repeat(100)));
+    }
+    invalid.addName(new HumanName().setFamilyElement(new FailingStringType()));
+    assertThrows(RuntimeException.class,
+        () -> FhirParserPool.encodeToBytes(invalid, FhirParserPool.Format.NDJSON));
+
+    var valid = new Patient();
+    valid.setId("valid");
+    assertEquals(FhirParserPool.encodeToString(valid, FhirParserPool.Format.NDJSON),
+        new String(FhirParserPool.encodeToBytes(valid, FhirParserPool.Format.NDJSON),
+            StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testConcurrentWritersKeepTheirFormat() {
+    List<IBaseResource> resources = IntStream.range(0, 200).mapToObj(i -> {
+      var organization = new Organization();
+      organization.setId("org-" + i);
+      organization.setName("Universit\u00e4tsklinikum L\u00fcbeck " + i);
+      return (IBaseResource) organization;
+    }).toList();
+
+    IntStream.range(0, 8).parallel().forEach(i -> {
+      if (i % 2 == 0) {
+        FhirResourceFactory.writeNDJson(resources, tempDir.resolve(i + ".ndjson").toString());
+      } else {
+        FhirResourceFactory.writeResource(resources.get(0),
+            tempDir.resolve(i + ".json").toString());
+      }
+    });
+
+    IntStream.range(0, 8).forEach(i -> {
+      try {
+        if (i % 2 == 0) {
+          var lines = Files.readAllLines(tempDir.resolve(i + ".ndjson"), StandardCharsets.UTF_8);
+          assertEquals(resources.size(), lines.size());
+          assertTrue(lines.get(1).startsWith("{\"resourceType\":\"Organization\""));
+          assertTrue(lines.get(1).contains("Universit\u00e4tsklinikum L\u00fcbeck 1\""));
+        } else {
+          var json = Files.readString(tempDir.resolve(i + ".json"), StandardCharsets.UTF_8);
+          assertTrue(json.lines().count() > 1);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  void testParseEncodedResource() {
+    var patient = new Patient();
+    patient.setId("example");
+    patient.addName().setFamily("M\u00fcller");
+    var json = FhirParserPool.encodeToString(patient, FhirParserPool.Format.NDJSON);
+
+    var parsed = FhirParserPool.parse(Patient.class, json);
+    assertEquals("M\u00fcller", parsed.getNameFirstRep().getFamily());
+  }
+}
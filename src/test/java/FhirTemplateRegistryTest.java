@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class FhirTemplateRegistryTest {
+
+  private static FhirTemplateRegistry registry;
+
+  @BeforeAll
+  static void loadRegistry() throws IOException {
+    registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+  }
+
+  @Test
+  void testResolveObservationByValueVariant() {
+    var quantity = registry.resolve(Map.of(
+        "Observation.id", "randomID()",
+        "Observation.value as Quantity", "randomQuantity(None, None, None, None, None)"));
+    var codeableConcept = registry.resolve(Map.of(
+        "Observation.id", "randomID()",
+        "Observation.value as CodeableConcept.coding", "fixedCoding(a, b, None, None)"));
+    var parenthesized = registry.resolve(Map.of(
+        "Observation.id", "randomID()",
+        "(Observation.value as CodeableConcept).coding", "fixedCoding(a, b, None, None)"));
+
+    assertTrue(((Observation) quantity.orElseThrow()).hasValueQuantity());
+    assertTrue(((Observation) codeableConcept.orElseThrow()).hasValueCodeableConcept());
+    assertTrue(((Observation) parenthesized.orElseThrow()).hasValueCodeableConcept());
+  }
+
+  @Test
+  void testResolveResourceWithoutVariant() {
+    var condition = registry.resolve(Map.of("Condition.id", "randomID()"));
+    assertEquals("Condition", condition.orElseThrow().fhirType());
+  }
+
+  @Test
+  void testResolveUnknownResourceType() {
+    assertTrue(registry.resolve(Map.of("Encounter.id", "randomID()")).isEmpty());
+    assertTrue(registry.resolve(Map.of("Observation.value as Ratio", "randomID()")).isEmpty());
+  }
+
+  @Test
+  void testRegisteredTemplateBecomesResolvable() {
+    var ctx = FhirContext.forR4();
+    var customRegistry = new FhirTemplateRegistry(ctx);
+    customRegistry.register(ctx.newJsonParser().parseResource(Encounter.class,
+        "{\"resourceType\": \"Encounter\", \"status\": \"finished\"}"));
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Encounter.id", "randomID()");
+
+    var compiled = new BluePrintCompiler(customRegistry).compile(0, bluePrint);
+    assertEquals("Encounter", compiled.orElseThrow().resourceType());
+  }
+}
@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GenerationRunTest {
+
+  private static List<CompiledBluePrint> compiledBluePrints;
+
+  @BeforeAll
+  static void compileBluePrints() throws IOException {
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.identifier.value", "randomIdentifierCodeValue()");
+    bluePrint.put("Observation.effective as dateTime", "randomDateTime()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, ng/dL, None)");
+    compiledBluePrints = new BluePrintCompiler(registry).compileAll(
+        IntStream.range(0, 5).mapToObj(i -> bluePrint).toList());
+  }
+
+  private static List<String> generate(ShardPlan plan, long seed) throws IOException {
+    List<String> encoded = new ArrayList<>();
+    new GenerationRun(compiledBluePrints, plan, seed).run(List.of(
+        (bluePrint, resources) -> resources.forEach(resource -> encoded.add(
+            FhirParserPool.encodeToString(resource, FhirParserPool.Format.NDJSON)))));
+    return encoded;
+  }
+
+  @Test
+  void testShardsCoverAllUnitsOnce() {
+    var units = new HashSet<Long>();
+    long total = 0;
+    for (int shard = 0; shard < 7; shard++) {
+      var plan = new ShardPlan(shard, 7, 5, 4);
+      for (long unit = plan.firstUnit(); unit < plan.endUnit(); unit++) {
+        units.add(unit);
+      }
+      total += plan.endUnit() - plan.firstUnit();
+    }
+    assertEquals(20, total);
+    assertEquals(20, units.size());
+  }
+
+  @Test
+  void testShardedRunGeneratesSameResources() throws IOException {
+    var single = generate(ShardPlan.single(5, 4), 42);
+    List<String> sharded = new ArrayList<>();
+    for (int shard = 0; shard < 3; shard++) {
+      sharded.addAll(generate(new ShardPlan(shard, 3, 5, 4), 42));
+    }
+
+    assertEquals(20, single.size());
+    assertEquals(single, sharded);
+    assertEquals(20, single.stream().map(json -> FhirParserPool.parse(json).getIdElement()
+        .getIdPart()).distinct().count());
+  }
+
+  @Test
+  void testSeedChangesResources() throws IOException {
+    var first = generate(ShardPlan.single(5, 1), 1);
+    var second = generate(ShardPlan.single(5, 1), 2);
+    IntStream.range(0, 5).forEach(i -> assertNotEquals(first.get(i), second.get(i)));
+  }
+
+  @Test
+  void testResumedShardEqualsUninterruptedShard(@TempDir Path directory) throws IOException {
+    var plan = new ShardPlan(1, 2, 5, 4);
+    var uninterrupted = new ShardOutput(directory.resolve("uninterrupted"), plan);
+    uninterrupted.generate(new GenerationRun(compiledBluePrints, plan, 42), List.of(), 3, null);
+
+    var interrupted = new ShardOutput(directory.resolve("interrupted"), plan);
+    var units = new AtomicInteger();
+    ResourceSink crash = (bluePrint, resources) -> {
+      if (units.incrementAndGet() > 7) {
+        throw new IOException("crash");
+      }
+    };
+    assertThrows(IOException.class, () -> interrupted.generate(
+        new GenerationRun(compiledBluePrints, plan, 42), List.of(crash), 3, null));
+    // A resource that was only partly written before the crash.
+    Files.writeString(interrupted.file("Observation"), "{\"resourceType\":",
+        StandardOpenOption.APPEND);
+
+    var checkpoint = interrupted.readCheckpoint().orElseThrow();
+    assertEquals("16", checkpoint.getProperty("nextUnit"));
+    interrupted.generate(new GenerationRun(compiledBluePrints, plan, 42), List.of(), 3,
+        checkpoint);
+
+    assertEquals(Files.readString(uninterrupted.file("Observation")),
+        Files.readString(interrupted.file("Observation")));
+    var expectedPart = OutputManifest.read(uninterrupted.manifestFile()).parts().get(0);
+    var part = OutputManifest.read(interrupted.manifestFile()).parts().get(0);
+    assertEquals(expectedPart.lines(), part.lines());
+    assertEquals(expectedPart.bytes(), part.bytes());
+    assertTrue(interrupted.readCheckpoint().isEmpty());
+  }
+
+  @Test
+  void testOnlyShardsOfTheSameRunAreMerged(@TempDir Path directory) throws IOException {
+    List<OutputManifest> manifests = new ArrayList<>();
+    for (int shard = 0; shard < 2; shard++) {
+      var plan = new ShardPlan(shard, 2, 5, 4);
+      var output = new ShardOutput(directory, plan);
+      output.generate(new GenerationRun(compiledBluePrints, plan, 42), List.of(), 10, null);
+      manifests.add(OutputManifest.read(output.manifestFile()));
+    }
+
+    var merged = OutputManifest.mergeShards(manifests);
+    assertEquals(2, merged.parts().size());
+    assertEquals("4", merged.getProperty("instancesPerBluePrint"));
+    assertEquals(GeneratorRandom.referenceTime().toString(),
+        merged.getProperty("referenceTime"));
+
+    var otherTime = OutputManifest.fromJson(manifests.get(1).toJson())
+        .setProperty("referenceTime", "2020-01-01T00:00:00Z");
+    assertThrows(IllegalArgumentException.class,
+        () -> OutputManifest.mergeShards(List.of(manifests.get(0), otherTime)));
+    var outOfRange = OutputManifest.fromJson(manifests.get(1).toJson())
+        .setProperty("shardIndex", 2);
+    assertThrows(IllegalArgumentException.class,
+        () -> OutputManifest.mergeShards(List.of(manifests.get(0), outOfRange)));
+  }
+}
@@ -1,7 +1,12 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import java.time.Instant;
 import java.util.List;
+import java.util.TimeZone;
 import org.hl7.fhir.r4.model.Address.AddressType;
+import org.hl7.fhir.r4.model.DateType;
 import org.junit.jupiter.api.Test;
 
 
@@ -82,6 +87,49 @@ public class GeneratorFunctionsTest {
     assertNotNull(dateTime);
   }
 
+  @Test
+  public void testRandomDateDoesNotDependOnDefaultTimeZone() {
+    var defaultTimeZone = TimeZone.getDefault();
+    var referenceTime = GeneratorRandom.referenceTime();
+    GeneratorRandom.setReferenceTime(Instant.parse("2024-01-01T00:00:00Z"));
+    try {
+      String[] dates = {"", ""};
+      long[] timelineStarts = new long[2];
+      String[] zones = {"Pacific/Kiritimati", "America/Los_Angeles"};
+      for (int i = 0; i < zones.length; i++) {
+        TimeZone.setDefault(TimeZone.getTimeZone(zones[i]));
+        for (long unit = 0; unit < 50; unit++) {
+          GeneratorRandom.startUnit(42, unit);
+          var date = GeneratorFunctions.randomDate();
+          // A parsed date without time zone starts at the same time
+          assertEquals(TemporalGenerator.epochSecond(date),
+              TemporalGenerator.epochSecond(new DateType(date.getValueAsString())));
+          TemporalGenerator.startUnitTimeline(date);
+          dates[i] = dates[i] + date.getValueAsString();
+          timelineStarts[i] += TemporalGenerator.timelineStart();
+          TemporalGenerator.endUnit();
+          GeneratorRandom.endUnit();
+        }
+      }
+      assertEquals(dates[0], dates[1]);
+      assertEquals(timelineStarts[0], timelineStarts[1]);
+    } finally {
+      TimeZone.setDefault(defaultTimeZone);
+      GeneratorRandom.setReferenceTime(referenceTime);
+    }
+  }
+
+  @Test
+  public void testTerminologyClientKeepsTheServerValidationOfOtherClients() {
+    try {
+      GeneratorFunctions.randomCoding("http://hl7.org/fhir/ValueSet/iso3166-1-2");
+    } catch (RuntimeException e) {
+      // The terminology client is created even if the server can not be reached
+    }
+    assertEquals(ServerValidationModeEnum.ONCE,
+        SharedFhirContext.get().getRestfulClientFactory().getServerValidationMode());
+  }
+
   @Test
   public void testFixedCoding() {
     var coding = GeneratorFunctions.fixedCoding(
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IncrementalOutputTest {
+
+  private static BluePrintCompiler compiler;
+
+  @BeforeAll
+  static void createCompiler() throws IOException {
+    compiler = new BluePrintCompiler(FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY));
+  }
+
+  private static List<CompiledBluePrint> compile(String changedUnit) {
+    return compiler.compileAll(IntStream.range(0, 4).mapToObj(i -> {
+      var bluePrint = new HashMap<String, String>();
+      bluePrint.put("Observation.id", "randomID()");
+      bluePrint.put("Observation.effective as dateTime", "randomDateTime()");
+      bluePrint.put("Observation.value as Quantity", "randomQuantity(None, None, "
+          + "http://unitsofmeasure.org, " + (i == 2 ? changedUnit : "ng/dL") + ", None)");
+      return bluePrint;
+    }).toList());
+  }
+
+  private static OutputManifest generate(IncrementalOutput output, List<CompiledBluePrint> compiled)
+      throws IOException {
+    return output.generate(new GenerationRun(compiled, ShardPlan.single(compiled.size(), 3), 42),
+        List.of());
+  }
+
+  @Test
+  void testOnlyChangedBluePrintsAreRegenerated(@TempDir Path directory) throws IOException {
+    var output = new IncrementalOutput(directory);
+    var first = generate(output, compile("ng/dL"));
+    assertEquals("4", first.getProperty("regeneratedBluePrints"));
+    assertEquals(4, first.parts().size());
+
+    var unchanged = generate(output, compile("ng/dL"));
+    assertEquals("0", unchanged.getProperty("regeneratedBluePrints"));
+    assertEquals(first.parts(), unchanged.parts());
+
+    var changed = generate(output, compile("mg/dL"));
+    assertEquals("1", changed.getProperty("regeneratedBluePrints"));
+    assertEquals(first.parts().get(1), changed.parts().get(1));
+    assertNotEquals(first.parts().get(2).path(), changed.parts().get(2).path());
+    assertFalse(Files.exists(Path.of(first.parts().get(2).path())));
+    assertEquals(3, Files.readAllLines(Path.of(changed.parts().get(2).path())).size());
+  }
+}
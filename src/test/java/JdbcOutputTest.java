@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class JdbcOutputTest {
+
+  private static List<IBaseResource> resources(int patients) {
+    List<IBaseResource> resources = new ArrayList<>();
+    for (int i = 0; i < patients; i++) {
+      var patient = new Patient();
+      patient.setId("patient-" + i);
+      var observation = new Observation().setSubject(new Reference("Patient/patient-" + i))
+          .setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "2951-2",
+              null)))
+          .setValue(new Quantity().setValue(new BigDecimal(140)).setCode("mmol/L"))
+          .setEffective(new DateTimeType("2021-03-04T05:06:07+01:00"));
+      observation.setId("obs-" + i);
+      resources.add(patient);
+      resources.add(observation);
+    }
+    return resources;
+  }
+
+  @Test
+  void testResourcesAreInsertedAsRows() throws IOException, SQLException {
+    var url = "jdbc:h2:mem:rows;DB_CLOSE_DELAY=-1";
+    var output = new JdbcOutput(url, null, null, JdbcOutput.DEFAULT_TABLE,
+        JdbcOutput.DEFAULT_SEARCH_COLUMNS, 3, 50, 120);
+
+    try (output) {
+      output.accept(null, resources(500));
+    }
+
+    assertEquals(1000, output.rows());
+    try (var connection = DriverManager.getConnection(url);
+        var statement = connection.createStatement()) {
+      var result = statement.executeQuery("SELECT resource_type, COUNT(*) FROM fhir_resource"
+          + " GROUP BY resource_type ORDER BY resource_type");
+      result.next();
+      assertEquals("Observation", result.getString(1));
+      assertEquals(500, result.getInt(2));
+      result.next();
+      assertEquals(500, result.getInt(2));
+      result = statement.executeQuery("SELECT patient_id, code, date, resource FROM fhir_resource"
+          + " WHERE id = 'obs-7'");
+      result.next();
+      assertEquals("patient-7", result.getString(1));
+      assertEquals("2951-2", result.getString(2));
+      assertEquals("2021-03-04T05:06:07+01:00", result.getString(3));
+      var observation = (Observation) FhirParserPool.parse(result.getString(4));
+      assertEquals("Patient/patient-7", observation.getSubject().getReference());
+      result = statement.executeQuery("SELECT patient_id FROM fhir_resource"
+          + " WHERE id = 'patient-7'");
+      result.next();
+      assertEquals("patient-7", result.getString(1));
+    }
+  }
+
+  @Test
+  void testDatabaseErrorsFailTheOutput() throws IOException, SQLException {
+    var url = "jdbc:h2:mem:errors;DB_CLOSE_DELAY=-1";
+    try (var connection = DriverManager.getConnection(url);
+        var statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE fhir_resource (id VARCHAR(3) NOT NULL,"
+          + " resource_type VARCHAR(64), patient_id VARCHAR(64), resource CLOB)");
+    }
+    var output = new JdbcOutput(url, null, null, JdbcOutput.DEFAULT_TABLE,
+        JdbcOutput.searchColumns(), 1, 10, 10);
+
+    assertThrows(IOException.class, () -> {
+      try (output) {
+        output.accept(null, resources(10));
+      }
+    });
+  }
+
+  @Test
+  @Tag("performance")
+  void testInsertPerformance() throws IOException {
+    var output = new JdbcOutput("jdbc:h2:mem:performance;DB_CLOSE_DELAY=-1", null, null,
+        JdbcOutput.DEFAULT_TABLE, JdbcOutput.DEFAULT_SEARCH_COLUMNS, 4, 1000, 10_000);
+    try (output) {
+      output.accept(null, resources(25_000));
+    }
+    var report = new RunReport();
+    output.report(report);
+    report.print();
+  }
+}
@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class LoadGeneratorTest {
+
+  private HttpServer server;
+  private final AtomicInteger received = new AtomicInteger();
+
+  /**
+   * Starts a stub FHIR server that answers every request after the given delay.
+   */
+  private String startServer(int status, long delayMillis) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/fhir", exchange -> respond(exchange, status, delayMillis));
+    server.start();
+    return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+  }
+
+  private void respond(HttpExchange exchange, int status, long delayMillis) throws IOException {
+    exchange.getRequestBody().readAllBytes();
+    received.incrementAndGet();
+    try {
+      Thread.sleep(delayMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    var body = (exchange.getRequestMethod().equals("POST")
+        ? "{\"resourceType\":\"Bundle\",\"type\":\"batch-response\"}"
+        : "{\"resourceType\":\"OperationOutcome\"}").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  @AfterEach
+  void stopServer() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  private static List<IBaseResource> observations(int count) {
+    return IntStream.range(0, count).mapToObj(i -> (IBaseResource) new Observation()
+        .setStatus(Observation.ObservationStatus.FINAL).setId("obs-" + i)).toList();
+  }
+
+  private static LoadGenerator send(String baseUrl, LoadGenerator.Mode mode, double rate,
+      int maxInFlight, List<IBaseResource> resources) throws IOException {
+    var load = new LoadGenerator(LoadGenerator.createClient(baseUrl, maxInFlight), mode, rate,
+        maxInFlight, 5);
+    try (load) {
+      load.accept(null, resources);
+    }
+    return load;
+  }
+
+  @Test
+  void testLatenciesAreRecordedByTypeAndStatus() throws IOException {
+    var baseUrl = startServer(201, 0);
+
+    var load = send(baseUrl, LoadGenerator.Mode.RESOURCE, 500, 4, observations(20));
+
+    assertEquals(20, received.get());
+    assertEquals(List.of("Observation 201"), List.copyOf(load.histograms().keySet()));
+    assertEquals(20, load.histograms().get("Observation 201").count());
+    assertEquals(0, load.failures());
+  }
+
+  @Test
+  void testFailedRequestsAreRecordedWithTheirStatus() throws IOException {
+    var baseUrl = startServer(500, 0);
+
+    var load = send(baseUrl, LoadGenerator.Mode.RESOURCE, 500, 4, observations(3));
+
+    assertEquals(3, load.histograms().get("Observation 500").count());
+    assertEquals(3, load.failures());
+  }
+
+  @Test
+  void testResourcesAreSentAsBundles() throws IOException {
+    var baseUrl = startServer(200, 0);
+
+    var load = send(baseUrl, LoadGenerator.Mode.BATCH, 500, 2, observations(12));
+
+    assertEquals(3, received.get());
+    assertEquals(3, load.histograms().get("Bundle 200").count());
+  }
+
+  @Test
+  void testLatencyIncludesTheTimeRequestsWaitForTheServer() throws IOException {
+    // One request in flight and 100 ms per request, but a request is due every 20 ms: request i
+    // is sent after about i * 100 ms, its latency includes the i * 80 ms it was late.
+    var baseUrl = startServer(201, 100);
+
+    var load = send(baseUrl, LoadGenerator.Mode.RESOURCE, 50, 1, observations(8));
+
+    var histogram = load.histograms().get("Observation 201");
+    assertEquals(8, histogram.count());
+    assertTrue(histogram.percentileMicros(0) >= 100_000, histogram.toString());
+    assertTrue(histogram.maxMicros() >= 600_000, histogram.toString());
+    assertEquals(0, load.scheduleSlips());
+  }
+
+  @Test
+  void testHistogramBuckets() {
+    var histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 100_000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    assertEquals(100_000, histogram.count());
+    assertEquals(100_000, histogram.maxMicros());
+    long median = histogram.percentileMicros(50);
+    assertTrue(median >= 50_000 && median <= 50_000 * 1.032, String.valueOf(median));
+    for (long micros : new long[]{0, 63, 64, 127, 128, 1_000_000, Long.MAX_VALUE >> 10}) {
+      int bucket = LatencyHistogram.bucket(micros);
+      assertTrue(LatencyHistogram.upperBound(bucket) >= micros);
+      assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < micros);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedNDJsonWriterTest {
+
+  private static List<IBaseResource> observations(int count) {
+    List<IBaseResource> observations = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      var observation = new Observation().setValue(new Quantity().setValue(new BigDecimal(i))
+          .setUnit("\u00b5mol/L " + "x".repeat(i % 300)));
+      observation.setId("obs-" + i);
+      observations.add(observation);
+    }
+    return observations;
+  }
+
+  @Test
+  void testFileIsTruncatedToTheWrittenBytes(@TempDir Path directory) throws IOException {
+    var observations = observations(500);
+    var expected = new ByteArrayOutputStream();
+    for (IBaseResource observation : observations) {
+      expected.write(FhirParserPool.encodeToBytes(observation, FhirParserPool.Format.NDJSON));
+      expected.write('\n');
+    }
+
+    // Regions smaller than a line are remapped while the line is written
+    var file = directory.resolve("Observation.ndjson");
+    var writer = new MappedNDJsonWriter(file, 100);
+    try (writer) {
+      for (IBaseResource observation : observations) {
+        writer.write(observation);
+      }
+    }
+
+    assertEquals(500, writer.lines());
+    assertEquals(expected.size(), writer.bytes());
+    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file));
+    assertThrows(IOException.class, () -> writer.write('\n'));
+  }
+
+  @Test
+  void testEmptyFile(@TempDir Path directory) throws IOException {
+    var file = directory.resolve("empty.ndjson");
+    Files.writeString(file, "previous content");
+    new MappedNDJsonWriter(file).close();
+    assertEquals(0, Files.size(file));
+  }
+
+  @Test
+  void testIncompleteFileIsDeleted(@TempDir Path directory) {
+    var file = directory.resolve("Observation.ndjson");
+    List<IBaseResource> resources = new ArrayList<>(observations(10));
+    // Encoding the null resource fails in the middle of the file
+    resources.add(null);
+
+    assertEquals(0, FhirResourceFactory.writeNDJson(resources, file.toString()));
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  @Tag("performance")
+  void testWritePerformance(@TempDir Path directory) throws IOException {
+    var observations = observations(100_000);
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      try (Writer writer = FhirParserPool.newWriter(directory.resolve("writer.ndjson"))) {
+        for (IBaseResource observation : observations) {
+          FhirParserPool.encode(observation, FhirParserPool.Format.NDJSON, writer);
+          writer.write('\n');
+        }
+      }
+      long writerNanos = System.nanoTime() - start;
+      var mapped = new MappedNDJsonWriter(directory.resolve("mapped.ndjson"));
+      try (mapped) {
+        for (IBaseResource observation : observations) {
+          mapped.write(observation);
+        }
+      }
+      var report = new RunReport();
+      report.recordRate("buffered writer", mapped.bytes() / 1e6, writerNanos, "MB");
+      mapped.report(report, "mapped writer");
+      report.print();
+    }
+  }
+}
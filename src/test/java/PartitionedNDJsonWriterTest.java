@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PartitionedNDJsonWriterTest {
+
+  private static List<IBaseResource> resources(int count) {
+    List<IBaseResource> resources = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      var observation = new Observation().setValue(new Quantity().setValue(new BigDecimal(i))
+          .setUnit("x".repeat(i % 50)));
+      observation.setId("obs-" + i);
+      resources.add(observation);
+      if (i % 10 == 0) {
+        var patient = new Patient();
+        patient.setId("patient-" + i);
+        resources.add(patient);
+      }
+    }
+    return resources;
+  }
+
+  private static OutputManifest write(Path directory, List<IBaseResource> resources,
+      int threads) throws IOException {
+    var writer = new PartitionedNDJsonWriter(directory, 300, 20_000, threads);
+    try (writer) {
+      for (int i = 0; i < resources.size(); i += 7) {
+        writer.accept(null, resources.subList(i, Math.min(i + 7, resources.size())));
+      }
+    }
+    return writer.manifest();
+  }
+
+  @Test
+  void testPartsAreBoundedAndIndependentOfTheThreads(@TempDir Path directory)
+      throws IOException, NoSuchAlgorithmException {
+    var resources = resources(5000);
+
+    var parallel = write(directory.resolve("parallel"), resources, 4);
+    var serial = write(directory.resolve("serial"), resources, 1);
+
+    var expected = new ByteArrayOutputStream();
+    for (IBaseResource resource : resources) {
+      if (resource instanceof Observation) {
+        expected.write(FhirParserPool.encodeToBytes(resource, FhirParserPool.Format.NDJSON));
+        expected.write('\n');
+      }
+    }
+    var observations = new ByteArrayOutputStream();
+    long lines = 0;
+    for (int i = 0; i < parallel.parts().size(); i++) {
+      var part = parallel.parts().get(i);
+      var serialPart = serial.parts().get(i);
+      assertEquals(serialPart.lines(), part.lines());
+      assertEquals(serialPart.bytes(), part.bytes());
+      assertEquals(serialPart.sha256(), part.sha256());
+      assertTrue(part.lines() <= 300 && part.bytes() <= 20_000);
+      var bytes = Files.readAllBytes(Path.of(part.path()));
+      assertEquals(part.bytes(), bytes.length);
+      assertEquals(part.sha256(),
+          HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes)));
+      if (part.resourceType().equals("Observation")) {
+        observations.write(bytes);
+      }
+      lines += part.lines();
+    }
+    assertEquals(serial.parts().size(), parallel.parts().size());
+    assertEquals(resources.size(), lines);
+    assertEquals(expected.toString(), observations.toString());
+    assertTrue(parallel.parts().get(0).path().endsWith("Observation-00001.ndjson"));
+    assertEquals(parallel.parts().size(), parallel.toParameters().getParameter().size());
+  }
+
+  @Test
+  @Tag("performance")
+  void testWritePerformance(@TempDir Path directory) throws IOException {
+    var resources = resources(100_000);
+    var writer = new PartitionedNDJsonWriter(directory, 10_000, 64L << 20,
+        Runtime.getRuntime().availableProcessors());
+    try (writer) {
+      writer.accept(null, resources);
+    }
+    var report = new RunReport();
+    writer.report(report);
+    report.print();
+  }
+}
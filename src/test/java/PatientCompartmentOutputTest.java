@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PatientCompartmentOutputTest {
+
+  private static List<CompiledBluePrint> compiledBluePrints;
+
+  @BeforeAll
+  static void compileBluePrints() throws IOException {
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.subject", "randomPatientReference()");
+    bluePrint.put("Observation.effective as dateTime", "randomDateTime()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, ng/dL, None)");
+    compiledBluePrints = new BluePrintCompiler(registry).compileAll(
+        IntStream.range(0, 3).mapToObj(i -> bluePrint).toList());
+  }
+
+  // Avoids the terminology server used by GeneratorFunctions.randomPatient()
+  private static List<IBaseResource> createPatient() {
+    var patient = new Patient();
+    patient.setId(GeneratorFunctions.randomID());
+    patient.addName(new HumanName().setFamily(GeneratorFunctions.randomFamilyName()));
+    patient.setBirthDateElement(GeneratorFunctions.randomDate());
+    return List.of(patient);
+  }
+
+  private static List<String> generate(Path directory, PatientCompartmentOutput.Layout layout,
+      int instances, int instancesPerPatient) throws IOException {
+    var output = new PatientCompartmentOutput(directory, layout, instancesPerPatient,
+        PatientCompartmentOutputTest::createPatient);
+    output.generate(new GenerationRun(compiledBluePrints, ShardPlan.single(3, instances), 42),
+        List.of());
+    return Files.readAllLines(output.file());
+  }
+
+  @Test
+  void testCompartmentsAreContiguous(@TempDir Path directory) throws IOException {
+    var lines = generate(directory, PatientCompartmentOutput.Layout.NDJSON, 2, 1);
+
+    assertEquals(8, lines.size());
+    for (int compartment = 0; compartment < 2; compartment++) {
+      var patient = (Patient) FhirParserPool.parse(lines.get(compartment * 4));
+      for (int i = 1; i < 4; i++) {
+        var observation = (Observation) FhirParserPool.parse(lines.get(compartment * 4 + i));
+        assertEquals("Patient/" + patient.getIdElement().getIdPart(),
+            observation.getSubject().getReference());
+      }
+    }
+  }
+
+  @Test
+  void testPatientIdsDifferFromTheIdsOfTheLastBluePrint(@TempDir Path directory)
+      throws IOException {
+    // The blueprint with index 1 was skipped while compiling
+    var first = compiledBluePrints.get(0);
+    var last = compiledBluePrints.get(2);
+    var bluePrints = List.of(first, last);
+    var output = new PatientCompartmentOutput(directory, PatientCompartmentOutput.Layout.NDJSON,
+        1, PatientCompartmentOutputTest::createPatient);
+    var run = new GenerationRun(bluePrints, ShardPlan.single(2, 4), 42);
+    assertEquals(12, PatientCompartmentOutput.firstPatientKey(run));
+
+    output.generate(run, List.of());
+
+    var ids = new HashSet<String>();
+    var lines = Files.readAllLines(output.file());
+    for (String line : lines) {
+      ids.add(FhirParserPool.parse(line).getIdElement().getIdPart());
+    }
+    assertEquals(lines.size(), ids.size());
+  }
+
+  @Test
+  void testOneBundlePerPatient(@TempDir Path directory) throws IOException {
+    var lines = generate(directory, PatientCompartmentOutput.Layout.BUNDLE, 2, 1);
+
+    assertEquals(2, lines.size());
+    var bundle = FhirParserPool.parse(Bundle.class, lines.get(0));
+    assertEquals(Bundle.BundleType.TRANSACTION, bundle.getType());
+    assertEquals(4, bundle.getEntry().size());
+  }
+
+  @Test
+  void testTimeSeriesIsSortedAndAfterBirthDate(@TempDir Path directory) throws IOException {
+    var lines = generate(directory, PatientCompartmentOutput.Layout.NDJSON, 8, 4);
+
+    assertEquals(2 * 13, lines.size());
+    for (int compartment = 0; compartment < 2; compartment++) {
+      var patient = (Patient) FhirParserPool.parse(lines.get(compartment * 13));
+      long previous = patient.getBirthDate().getTime();
+      // the 4 instances of the first blueprint
+      for (int i = 1; i <= 4; i++) {
+        var observation = (Observation) FhirParserPool.parse(lines.get(compartment * 13 + i));
+        long effective = observation.getEffectiveDateTimeType().getValue().getTime();
+        assertTrue(effective >= previous, "effective " + effective + " before " + previous);
+        assertTrue(effective <= GeneratorRandom.referenceTime().toEpochMilli());
+        previous = effective;
+      }
+    }
+  }
+}
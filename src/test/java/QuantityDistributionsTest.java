@@ -0,0 +1,55 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+
+public class QuantityDistributionsTest {
+
+  @Test
+  void testDistributionIsFoundByLoincCodeThenUnit() {
+    var distributions = QuantityDistributions.current();
+    var sodium = distributions.find("2951-2", "mmol/L");
+    var random = new Random(1);
+    for (int i = 0; i < 1000; i++) {
+      double value = sodium.sample(random);
+      assertTrue(value >= 110 && value <= 170, "sodium " + value);
+      assertEquals(Math.rint(value), value);
+    }
+    assertSame(distributions.find(null, "mmol/L"), distributions.find("unknown", "mmol/L"));
+    assertSame(QuantityDistributions.DEFAULT_DISTRIBUTION, distributions.find(null, "unknown"));
+  }
+
+  @Test
+  void testComparatorBoundsTheValue() {
+    var percent = QuantityDistributions.current().find(null, "%");
+    var random = new Random(2);
+    for (int i = 0; i < 1000; i++) {
+      double below = percent.sample(random, "<", 5);
+      assertTrue(below >= 0 && below <= 4.9, "below " + below);
+      double above = percent.sample(random, ">=", 99.5);
+      assertTrue(above >= 99.5 && above <= 100, "above " + above);
+    }
+    assertEquals(1.3, percent.round(1.25));
+    assertEquals(100, percent.sample(random, ">", 100));
+  }
+
+  @Test
+  void testCompilerPassesLoincCodeToRandomQuantity() {
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.code.coding", "fixedCoding(http://loinc.org, 2951-2, None, None)");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, mmol/L, None))");
+
+    var compiled = BluePrintCompiler.withLoincCode(bluePrint);
+
+    assertEquals("randomQuantity(None, None, http://unitsofmeasure.org, mmol/L, None, 2951-2)",
+        compiled.get("Observation.value as Quantity"));
+    var quantity = (Quantity) JavaFunctionParser.parse(
+        compiled.get("Observation.value as Quantity")).result();
+    assertTrue(quantity.getValue().doubleValue() >= 110);
+  }
+}
@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReferenceIntegrityCheckTest {
+
+  @AfterEach
+  void disableDeferredReferences() {
+    DeferredReference.setEnabled(false);
+  }
+
+  private static Observation observation(String id, String subject) {
+    var observation = new Observation().setSubject(new Reference(subject));
+    observation.setId(id);
+    return observation;
+  }
+
+  private static Patient patient(String id) {
+    var patient = new Patient();
+    patient.setId(id);
+    return patient;
+  }
+
+  @Test
+  void testIdIndex() {
+    var index = new IdIndex();
+    var random = new Random(1);
+    var uuids = new HashSet<String>();
+    for (int i = 0; i < 100_000; i++) {
+      var uuid = new UUID(random.nextLong(), random.nextLong()).toString();
+      uuids.add(uuid);
+      assertTrue(index.add(uuid));
+    }
+    assertTrue(index.add("patient-1"));
+    assertTrue(index.add(new UUID(0, 0).toString()));
+    assertFalse(index.add("patient-1"));
+
+    assertEquals(100_002, index.size());
+    for (String uuid : uuids) {
+      assertFalse(index.add(uuid));
+      assertTrue(index.contains(uuid));
+    }
+    assertTrue(index.contains("00000000-0000-0000-0000-000000000000"));
+    assertFalse(index.contains(new UUID(random.nextLong(), random.nextLong()).toString()));
+    assertFalse(index.contains(uuids.iterator().next().toUpperCase()));
+    List<String> all = new ArrayList<>();
+    index.forEach(all::add);
+    var distinct = new HashSet<>(all);
+    assertEquals(100_002, distinct.size());
+    assertTrue(distinct.containsAll(uuids));
+  }
+
+  @Test
+  void testReferencesAreCheckedAgainstTheOutput() throws IOException {
+    var check = new ReferenceIntegrityCheck();
+
+    // The second Observation references its Patient before it is written
+    check.accept(null, List.of(patient("p1"), observation("o1", "Patient/p1")));
+    check.accept(null, List.of(observation("o2", "Patient/p2"), patient("p2")));
+    check.accept(null, List.of(observation("o3", "Patient/p3"),
+        observation("o4", "http://example.com/fhir/Patient/p4"),
+        observation("o5", "Patient/p3/_history/1")));
+    check.close();
+
+    assertEquals(7, check.resources());
+    assertEquals(1, check.unresolved());
+    assertEquals(List.of("Patient/p3"), check.examples());
+  }
+
+  @Test
+  void testGeneratedReferencesResolve() throws IOException {
+    DeferredReference.setEnabled(true);
+    var registry = FhirTemplateRegistry.load(FhirContext.forR4(),
+        FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    bluePrint.put("Observation.identifier.assigner", "randomOrganizationReference()");
+    bluePrint.put("Observation.value as Quantity",
+        "randomQuantity(None, None, http://unitsofmeasure.org, ng/dL, None)");
+    var compiled = new BluePrintCompiler(registry).compileAll(List.of(bluePrint));
+    var check = new ReferenceIntegrityCheck();
+    List<IBaseResource> resources = new ArrayList<>();
+
+    // Every resolver materializes the targets for its own sink
+    new GenerationRun(compiled, ShardPlan.single(1, 20), 42).run(List.of(
+        new DeferredReferenceResolver(check),
+        new DeferredReferenceResolver((generated, output) -> resources.addAll(output))));
+    check.close();
+
+    // The blueprint keeps the subject of the template, all assigners resolve
+    assertEquals(List.of("Patient/example"), check.examples());
+    assertEquals(resources.size(), check.resources());
+    assertEquals(20, resources.stream().filter(Organization.class::isInstance).count());
+  }
+
+  @Test
+  void testScanOfNDJsonFiles(@TempDir Path directory) throws IOException {
+    var bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+    bundle.addEntry().setResource(patient("p3"));
+    bundle.addEntry().setResource(observation("o3", "Patient/p3"));
+    Files.writeString(directory.resolve("Patient.ndjson"), encode(List.of(patient("p1"),
+        patient("p2"))), StandardCharsets.UTF_8);
+    Files.createDirectories(directory.resolve("segments"));
+    Files.writeString(directory.resolve("segments/Observation.ndjson"), encode(List.of(
+        observation("o1", "Patient/p1"), observation("o2", "Patient/missing"))),
+        StandardCharsets.UTF_8);
+    Files.writeString(directory.resolve("bundles.ndjson"), encode(List.of(bundle)),
+        StandardCharsets.UTF_8);
+
+    var check = ReferenceIntegrityCheck.scan(directory);
+
+    assertEquals(6, check.resources());
+    assertEquals(1, check.unresolved());
+    assertEquals(List.of("Patient/missing"), check.examples());
+  }
+
+  private static String encode(List<? extends IBaseResource> resources) {
+    var ndjson = new StringBuilder();
+    for (IBaseResource resource : resources) {
+      ndjson.append(FhirParserPool.encodeToString(resource, FhirParserPool.Format.NDJSON))
+          .append('\n');
+    }
+    return ndjson.toString();
+  }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+public class ResourceValidationStageTest {
+
+  @Test
+  void testViolationsAreAggregatedPerBluePrint() throws Exception {
+    var ctx = FhirContext.forR4();
+    var validationSupport = ResourceValidationStage.createValidationSupport(ctx,
+        Path.of(ResourceValidationStage.DEFAULT_STRUCTURE_DEFINITION_DIRECTORY));
+    var bluePrint = new HashMap<String, String>();
+    bluePrint.put("Observation.id", "randomID()");
+    // Observation without the required status and code
+    var compiled = new CompiledBluePrint(7, bluePrint, new Observation());
+
+    var validation = new ResourceValidationStage(ctx, validationSupport, 2, 2,
+        ResultSeverityEnum.ERROR);
+    for (int i = 0; i < 4; i++) {
+      validation.accept(compiled, List.of(new Observation()));
+    }
+    validation.close();
+
+    var results = validation.results();
+    assertEquals(1, results.size());
+    assertEquals(7, results.get(0).index());
+    assertEquals(2, results.get(0).validated());
+    assertEquals(2, results.get(0).withIssues());
+    assertFalse(results.get(0).issues().isEmpty());
+    results.get(0).issues().values().forEach(count -> assertEquals(2L, count));
+  }
+
+  @Test
+  void testReferencedResourcesAreCountedUnderTheirType() throws Exception {
+    var ctx = FhirContext.forR4();
+    var validation = new ResourceValidationStage(ctx,
+        ResourceValidationStage.createValidationSupport(ctx,
+            Path.of(ResourceValidationStage.DEFAULT_STRUCTURE_DEFINITION_DIRECTORY)), 1, 1,
+        ResultSeverityEnum.ERROR);
+    var compiled = new CompiledBluePrint(3, new HashMap<>(), new Observation());
+    validation.accept(compiled, List.of(new Patient(), new Observation()));
+    validation.close();
+
+    var results = validation.results();
+    assertEquals(2, results.size());
+    assertEquals("Observation", results.get(0).resourceType());
+    assertEquals("Patient", results.get(1).resourceType());
+    results.forEach(result -> {
+      assertEquals(3, result.index());
+      assertEquals(1, result.validated());
+    });
+  }
+}
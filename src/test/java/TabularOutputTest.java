@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TabularOutputTest {
+
+  private static final Path VIEW_DIRECTORY = Path.of("src/main/resources/ViewDefinition");
+
+  private static Observation observation(int i) {
+    var observation = new Observation()
+        .setSubject(new Reference("Patient/patient-" + i))
+        .setCode(new CodeableConcept().addCoding(new Coding("http://loinc.org", "2951-2", null)))
+        .setValue(new Quantity().setValue(new BigDecimal("140." + i)).setCode("mmol/L")
+            .setSystem("http://unitsofmeasure.org"))
+        .setEffective(new DateTimeType("2021-03-04T05:06:07+01:00"));
+    observation.setId("obs-" + i);
+    return observation;
+  }
+
+  @Test
+  void testObservationsAreWrittenAsRows(@TempDir Path directory) throws IOException {
+    var coded = new Observation().setSubject(new Reference("Patient/p, \"quoted\""))
+        .setValue(new CodeableConcept().addCoding(new Coding("http://snomed.info/sct", "260373001",
+            null)));
+    coded.setId("coded");
+    var tables = new TabularOutput(directory, TabularOutput.Format.CSV,
+        ViewDefinition.loadAll(VIEW_DIRECTORY));
+
+    try (tables) {
+      tables.accept(null, List.of(new Organization(), observation(1), coded));
+    }
+
+    assertEquals(List.of("id,patient_id,loinc_code,value,unit,value_code,effective",
+            "obs-1,patient-1,2951-2,140.1,mmol/L,,2021-03-04T05:06:07+01:00",
+            "coded,\"p, \"\"quoted\"\"\",,,,260373001,"),
+        Files.readAllLines(directory.resolve("observation.csv")));
+    assertEquals(List.of("id,gender,birth_date,postal_code"),
+        Files.readAllLines(directory.resolve("patient.csv")));
+    assertEquals(Map.of("observation", 2L, "patient", 0L), tables.rows());
+  }
+
+  @Test
+  void testWhereClausesAndTsv(@TempDir Path directory) throws IOException {
+    var view = directory.resolve("quantities.json");
+    Files.writeString(view, """
+        {"resource": "Observation", "name": "quantities",
+         "select": [{"column": [{"name": "id", "path": "id"},
+                                {"name": "codes", "path": "code.coding.code",
+                                 "collection": true}]}],
+         "where": [{"path": "value.ofType(Quantity).value > 140.5"}]}
+        """);
+    var observation = observation(9);
+    observation.getCode().addCoding(new Coding("http://example.org", "a\tb", null));
+    var tables = new TabularOutput(directory, TabularOutput.Format.TSV,
+        ViewDefinition.loadAll(view));
+
+    try (tables) {
+      tables.accept(null, List.of(observation(1), observation));
+    }
+
+    assertEquals(List.of("id\tcodes", "obs-9\t2951-2 a\\tb"),
+        Files.readAllLines(directory.resolve("quantities.tsv")));
+  }
+
+  @Test
+  @Tag("performance")
+  void testTablePerformance(@TempDir Path directory) throws IOException {
+    List<IBaseResource> observations = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      observations.add(observation(i));
+    }
+    var tables = new TabularOutput(directory, TabularOutput.Format.CSV,
+        ViewDefinition.loadAll(VIEW_DIRECTORY));
+    long start = System.nanoTime();
+    try (tables) {
+      tables.accept(null, observations);
+    }
+    long tableNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    List<String> encoded = new ArrayList<>();
+    for (IBaseResource observation : observations) {
+      encoded.add(FhirParserPool.encodeToString(observation, FhirParserPool.Format.NDJSON));
+    }
+    long encodeNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (String json : encoded) {
+      FhirParserPool.parse(json);
+    }
+    long parseNanos = System.nanoTime() - start;
+
+    System.out.printf("20000 Observations: table %d ms, NDJSON encoding %d ms, parsing %d ms%n",
+        TimeUnit.NANOSECONDS.toMillis(tableNanos), TimeUnit.NANOSECONDS.toMillis(encodeNanos),
+        TimeUnit.NANOSECONDS.toMillis(parseNanos));
+  }
+}
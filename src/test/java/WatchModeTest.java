@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Condition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WatchModeTest {
+
+  private static final Path TEMPLATES = Path.of(FhirTemplateRegistry.DEFAULT_TEMPLATE_DIRECTORY);
+
+  private static String bluePrints(String changedUnit) {
+    var bluePrints = new StringBuilder("[");
+    for (int i = 0; i < 3; i++) {
+      bluePrints.append("{\"Observation.id\": \"randomID()\",")
+          .append("\"Observation.effective as dateTime\": \"randomDateTime()\",")
+          .append("\"Observation.value as Quantity\": \"randomQuantity(None, None, ")
+          .append("http://unitsofmeasure.org, ").append(i == 1 ? changedUnit : "ng/dL")
+          .append(", None)\"},\n");
+    }
+    return bluePrints.append("{\"Condition.id\": \"randomID()\",")
+        .append("\"Condition.recordedDate\": \"randomDateTime()\"}]").toString();
+  }
+
+  @Test
+  void testChangesAreRegenerated(@TempDir Path directory)
+      throws IOException, InterruptedException {
+    var templates = Files.createDirectories(directory.resolve("templates"));
+    for (String template : new String[]{"DefaultQuantityObservation.json",
+        "DefaultCondition.json"}) {
+      Files.copy(TEMPLATES.resolve(template), templates.resolve(template));
+    }
+    var bluePrintFile = directory.resolve("bluePrints.json");
+    Files.writeString(bluePrintFile, bluePrints("ng/dL"), StandardCharsets.UTF_8);
+    var output = new IncrementalOutput(directory.resolve("output"));
+
+    try (var watchMode = new WatchMode(bluePrintFile, entry -> true, templates, output,
+        directory.resolve("parameters.json"), 3, 42, BlockGenerator.DEFAULT_BLOCK_SIZE)) {
+      var initial = watchMode.update(Set.of());
+      assertEquals(4, initial.bluePrints());
+      assertEquals(4, initial.compiled());
+      assertEquals(4, initial.regenerated());
+      assertTrue(Files.exists(directory.resolve("parameters.json")));
+
+      Files.writeString(bluePrintFile, bluePrints("mmol/L"), StandardCharsets.UTF_8);
+      var bluePrintChange = watchMode.awaitChanges(10_000);
+      assertEquals(1, bluePrintChange.compiled());
+      assertEquals(1, bluePrintChange.regenerated());
+      System.out.println("Blueprint change: " + bluePrintChange);
+
+      var condition = (Condition) FhirParserPool.parse(Files.readString(
+          templates.resolve("DefaultCondition.json"), StandardCharsets.UTF_8));
+      condition.setLanguage("de");
+      Files.writeString(templates.resolve("DefaultCondition.json"),
+          FhirParserPool.encodeToString(condition, FhirParserPool.Format.NDJSON),
+          StandardCharsets.UTF_8);
+      var templateChange = watchMode.awaitChanges(10_000);
+      assertEquals(1, templateChange.compiled());
+      assertEquals(1, templateChange.regenerated());
+      System.out.println("Template change: " + templateChange);
+
+      var conditions = output.readManifest().orElseThrow().parts().stream()
+          .filter(part -> part.resourceType().equals("Condition")).toList();
+      assertEquals(1, conditions.size());
+      assertTrue(Files.readString(Path.of(conditions.get(0).path()))
+          .contains("\"language\":\"de\""));
+    }
+  }
+}
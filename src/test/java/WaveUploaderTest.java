@@ -0,0 +1,158 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationAdministration;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class WaveUploaderTest {
+
+  private HttpServer server;
+  private final List<String> receivedTypes = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger unavailableResponses = new AtomicInteger();
+  private final Set<String> rejectedTypes = ConcurrentHashMap.newKeySet();
+
+  @AfterEach
+  void stopServer() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Starts a stub FHIR server answering batches, the first requests with 503. Entries of the
+   * rejected types are answered with 400.
+   */
+  private String startServer(int unavailable) throws IOException {
+    unavailableResponses.set(unavailable);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/fhir", this::respond);
+    server.start();
+    return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    var request = FhirParserPool.parse(Bundle.class,
+        new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+    byte[] body;
+    int status;
+    if (unavailableResponses.getAndDecrement() > 0) {
+      status = 503;
+      body = "{\"resourceType\":\"OperationOutcome\"}".getBytes(StandardCharsets.UTF_8);
+    } else {
+      status = 200;
+      var response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+      for (var entry : request.getEntry()) {
+        var type = entry.getResource().fhirType();
+        if (rejectedTypes.contains(type)) {
+          response.addEntry().getResponse().setStatus("400 Bad Request");
+        } else {
+          receivedTypes.add(type);
+          response.addEntry().getResponse().setStatus("201 Created");
+        }
+      }
+      body = FhirParserPool.encodeToBytes(response, FhirParserPool.Format.NDJSON);
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  private static List<IBaseResource> resources() {
+    var organization = new Organization();
+    organization.setId("org");
+    var patient = new Patient().setManagingOrganization(new Reference("Organization/org"));
+    patient.setId("patient");
+    var medication = new Medication();
+    medication.setId("medication");
+    var administration = new MedicationAdministration()
+        .setSubject(new Reference("Patient/patient"))
+        .setMedication(new Reference("Medication/medication"));
+    administration.setId("administration");
+    var observation = new Observation().setSubject(new Reference("Patient/patient"))
+        .addPerformer(new Reference("Organization/other-server"));
+    observation.setId("observation");
+    return List.of(observation, administration, patient, medication, organization);
+  }
+
+  private static List<List<String>> types(List<List<IBaseResource>> waves) {
+    return waves.stream().map(wave -> wave.stream().map(IBaseResource::fhirType).toList())
+        .toList();
+  }
+
+  @Test
+  void testWavesFollowTheReferences() {
+    assertEquals(List.of(List.of("Medication", "Organization"), List.of("Patient"),
+            List.of("Observation", "MedicationAdministration")),
+        types(WaveUploader.waves(resources())));
+  }
+
+  @Test
+  void testCyclesFormTheLastWave() {
+    var first = new Patient().addLink(new Patient.PatientLinkComponent()
+        .setOther(new Reference("Patient/second")));
+    first.setId("first");
+    var second = new Patient().addLink(new Patient.PatientLinkComponent()
+        .setOther(new Reference("Patient/first")));
+    second.setId("second");
+    var organization = new Organization();
+    organization.setId("org");
+
+    var waves = WaveUploader.waves(List.of(first, second, organization));
+
+    assertEquals(2, waves.size());
+    assertEquals(List.of(organization), waves.get(0));
+    assertEquals(List.of(first, second), waves.get(1));
+  }
+
+  @Test
+  void testWavesAreUploadedInOrderWithRetries() throws IOException {
+    var baseUrl = startServer(1);
+    var uploader = new WaveUploader(LoadGenerator.createClient(baseUrl, 2), 2, 1, 10);
+
+    var waves = uploader.upload(resources());
+
+    assertEquals(3, waves.size());
+    assertEquals(Map.of("Medication", 1, "Organization", 1), waves.get(0).resourceTypes());
+    assertEquals(1, waves.stream().mapToLong(WaveUploader.Wave::retries).sum());
+    assertEquals(0, waves.stream().mapToLong(WaveUploader.Wave::failed).sum());
+    assertEquals(5, receivedTypes.size());
+    assertEquals("Patient", receivedTypes.get(2));
+  }
+
+  @Test
+  void testResourcesReferencingFailedResourcesAreSkipped() throws IOException {
+    rejectedTypes.add("Patient");
+    var baseUrl = startServer(0);
+    var uploader = new WaveUploader(LoadGenerator.createClient(baseUrl, 2), 2, 1, 10);
+
+    var waves = uploader.upload(resources());
+
+    assertEquals(List.of("Medication", "Organization"), receivedTypes.stream().sorted().toList());
+    assertEquals(1, waves.get(1).failed());
+    assertEquals(List.of("Patient/patient: 400 Bad Request"), waves.get(1).failures());
+    assertEquals(2, waves.get(2).skipped());
+    assertEquals(0, waves.get(2).failed());
+  }
+}